@@ -0,0 +1,385 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs many OISC programs without user interaction, spread over all
+ * processor cores, and writes a machine readable report of the results.
+ * <br>
+ * Run using: <tt>java batchOISC [-cache &lt;directory&gt;] [-cachesize
+ * &lt;megabytes&gt;] &lt;manifest&gt; [report file] [threads] [budget]
+ * [timeout]</tt>
+ * <br>If report file is not specified name "report.json" is assumed, if
+ * number of threads is not specified one thread per processor is used.
+ * Budget is the number of instructions and timeout the number of
+ * milliseconds after which a run is stopped, 0 or not specified for no
+ * limit. Runs that are proven to loop forever are always stopped.
+ * <tt>-cache</tt> takes compiled images of PKOPL sources from given
+ * compile cache directory (see cacheOISC), and stores newly compiled
+ * ones there, keeping it below <tt>-cachesize</tt> megabytes.
+ * <br>
+ * <br><b>Manifest format</b>
+ * <br>One run per line: <tt>&lt;program file&gt; [input file]</tt>. Program
+ * files ending in <tt>.mif</tt> or <tt>.rom</tt> are loaded as rom images,
+ * anything else is compiled as PKOPL source in memory, into an image that
+ * starts with the ram of its DEF lines in place. The input file is
+ * fed byte by byte to ioPort reads, without it input is empty. Paths are
+ * relative to the manifest. Empty lines and lines starting with
+ * <tt>#</tt> are ignored.
+ * <br>
+ * <br><b>Report format</b>
+ * <br>A JSON array with one object per manifest run, in manifest order:
+ * <tt>line</tt>, <tt>program</tt>, <tt>input</tt>, <tt>status</tt>
+ * (<tt>halted</tt> when pCount left rom, <tt>fault</tt> on a read from
+ * uninitialized ram, <tt>budget</tt> or <tt>timeout</tt> when stopped by
+ * a limit, <tt>loop</tt> when proven to loop forever, <tt>io</tt> when
+ * reading input or writing output failed, <tt>error</tt> if the program
+ * could not be loaded), <tt>instructions</tt> executed,
+ * <tt>wallNanos</tt> spent running, <tt>output</tt> bytes in hex, plus
+ * <tt>faultAddress</tt> and <tt>faultRam</tt> for faults,
+ * <tt>stopAddress</tt> for runs stopped early and <tt>message</tt> for
+ * errors and failed io.
+ * <br>
+ * <br>Every run gets its own virtualOISC instance. Programs used by several
+ * runs are loaded once and their image is shared. Compiler messages are
+ * printed in manifest order, each after the line and status of the run
+ * that compiled the program.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class batchOISC {
+    /**Loaded programs by path, shared between runs*/
+    private ConcurrentHashMap<String,Future<imageOISC>> images;
+    /**instruction budget and timeout in milliseconds of each run*/
+    private long budget, timeout;
+    /**compile cache, null if sources are always compiled*/
+    private cacheOISC cache;
+
+    /**Constructor initializes private variables*/
+    batchOISC(long nbudget, long ntimeout, cacheOISC ncache) {
+        images = new ConcurrentHashMap<String,Future<imageOISC>>();
+        budget = nbudget;
+        timeout = ntimeout;
+        cache = ncache;
+    }
+
+    /**Report names of virtualOISC run statuses*/
+    private static String[] statusNames = {"halted","fault","budget",
+        "timeout","loop","io"};
+
+    /**
+     * One manifest line, holds results once called
+     */
+    private class task implements Callable<task> {
+        private int line;
+        private String program, input;
+        private Path programPath, inputPath;
+
+        private String status, message;
+        private long instructions, wallNanos;
+        private int faultAddress, faultRam, stopAddress;
+        private byte[] output;
+        /**messages of the compiler, if this task compiled its program*/
+        private List<String> messages;
+
+        task(int nline, Path base, String nprogram, String ninput) {
+            line = nline;
+            program = nprogram;
+            input = ninput;
+            programPath = base.resolve(program);
+            inputPath = (input==null) ? null : base.resolve(input);
+            messages = new ArrayList<String>();
+        }
+
+        public task call() {
+            try {
+                imageOISC image = image(programPath,messages);
+                byte[] in = (inputPath==null) ? new byte[0] :
+                    Files.readAllBytes(inputPath);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                virtualOISC vm = new virtualOISC(image);
+                vm.setPort(new portOISC(in,portOISC.to(out)));
+                vm.setBudget(budget);
+                vm.setTimeout(timeout);
+
+                long start = System.nanoTime();
+                instructions = vm.interpret();
+                wallNanos = System.nanoTime()-start;
+
+                output = out.toByteArray();
+                status = statusNames[vm.getStatus()];
+                if (vm.getStatus()==virtualOISC.faulted) {
+                    faultAddress = vm.getPCount();
+                    faultRam = vm.getFault();
+                }
+                else
+                    stopAddress = vm.getPCount();
+                if (vm.getStatus()==virtualOISC.ioFailed)
+                    message = vm.getPort().getError().toString();
+            }
+            catch (NoSuchFileException e) {
+                status = "error";
+                message = "Cannot find file: "+e.getMessage();
+            }
+            catch (Exception e) {
+                status = "error";
+                message = e.getMessage();
+                if (message==null)
+                    message = e.toString();
+            }
+            return this;
+        }
+
+        /**Append this task as a JSON object*/
+        private void report(StringBuffer out) {
+            out.append("  {\"line\": "+line);
+            out.append(", \"program\": "+quote(program));
+            out.append(", \"input\": "+((input==null) ? "null" : quote(input)));
+            out.append(", \"status\": \""+status+"\"");
+            if (status.equals("error")) {
+                out.append(", \"message\": "+quote(message)+"}");
+                return;
+            }
+            out.append(", \"instructions\": "+instructions);
+            out.append(", \"wallNanos\": "+wallNanos);
+            if (status.equals("fault"))
+                out.append(", \"faultAddress\": "+faultAddress+
+                        ", \"faultRam\": "+faultRam);
+            else if (!status.equals("halted"))
+                out.append(", \"stopAddress\": "+stopAddress);
+            if (message!=null)
+                out.append(", \"message\": "+quote(message));
+            out.append(", \"output\": \"");
+            for (int i=0;i<output.length;i++)
+                out.append(String.format("%02x",output[i]&0xff));
+            out.append("\"}");
+        }
+    }
+
+    /**
+     * Image for given program file, loaded or compiled on first use. The
+     * compiler messages are added to given list of the task that compiles
+     * it, they are printed with its result so that messages of tasks on
+     * different threads do not mix.
+     */
+    private imageOISC image(final Path path, final List<String> messages)
+            throws Exception {
+        String key = path.toAbsolutePath().normalize().toString();
+        FutureTask<imageOISC> load = new FutureTask<imageOISC>(
+                new Callable<imageOISC>() {
+            public imageOISC call() throws IOException {
+                String name = path.toString();
+                if (name.endsWith(".mif")||name.endsWith(imageOISC.extension))
+                    return imageOISC.load(name);
+                String source = new String(Files.readAllBytes(path),
+                        "US-ASCII");
+                if (cache!=null)
+                    return cache.compileImage(source,
+                            compileOISC.defaultFlags,messages);
+                return compileOISC.compileImage(source,
+                        compileOISC.defaultFlags,messages);
+            }
+        });
+
+        Future<imageOISC> loaded = images.putIfAbsent(key,load);
+        if (loaded==null) {
+            load.run();
+            loaded = load;
+        }
+        try {
+            return loaded.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs all programs in manifest and writes report.
+     *
+     * @param manifest manifest file
+     * @param reportFile JSON report file to write
+     * @param threads number of worker threads
+     * @param budget instruction budget of each run, 0 for none
+     * @param timeout timeout of each run in milliseconds, 0 for none
+     */
+    public static void batch(String manifest, String reportFile, int threads,
+            long budget, long timeout) {
+        batch(manifest,reportFile,threads,budget,timeout,null);
+    }
+
+    /**
+     * Runs all programs in manifest and writes report, taking compiled
+     * PKOPL sources from given compile cache.
+     *
+     * @param manifest manifest file
+     * @param reportFile JSON report file to write
+     * @param threads number of worker threads
+     * @param budget instruction budget of each run, 0 for none
+     * @param timeout timeout of each run in milliseconds, 0 for none
+     * @param cache compile cache, null to always compile
+     */
+    public static void batch(String manifest, String reportFile, int threads,
+            long budget, long timeout, cacheOISC cache) {
+        System.out.println("Reading manifest "+manifest);
+        batchOISC batch = new batchOISC(budget,timeout,cache);
+        List<task> tasks = new ArrayList<task>();
+
+        Path base = Paths.get(manifest).toAbsolutePath().getParent();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(manifest));
+            try {
+                String curline;
+                int linenum = 0;
+                while ((curline = in.readLine())!=null) {
+                    linenum++;
+                    curline = curline.trim();
+                    if ((curline.length()==0)||curline.startsWith("#"))
+                        continue;
+                    String[] fields = curline.split("\\s+");
+                    tasks.add(batch.new task(linenum,base,fields[0],
+                            (fields.length>1) ? fields[1] : null));
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Cannot read manifest: "+manifest);
+            System.exit(0);
+        }
+
+        System.out.println("Running "+tasks.size()+" programs on "+threads+
+                " threads.");
+        long start = System.nanoTime(), total = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        StringBuffer report = new StringBuffer("[\n");
+        try {
+            List<Future<task>> results = pool.invokeAll(tasks);
+            for (int i=0;i<results.size();i++) {
+                task done = results.get(i).get();
+                total += done.instructions;
+                if (!done.messages.isEmpty()) {
+                    System.out.println("Line "+done.line+" "+done.program+
+                            ": "+done.status);
+                    for (String message : done.messages)
+                        System.out.println("  "+message);
+                }
+                done.report(report);
+                report.append((i<results.size()-1) ? ",\n" : "\n");
+            }
+        }
+        catch (InterruptedException e) {
+            System.out.println("batchOISC:batch:interrupted.");
+            System.exit(0);
+        }
+        catch (ExecutionException e) {
+            System.out.println("batchOISC:batch:run failed: "+e.getCause());
+            System.exit(0);
+        }
+        finally {
+            pool.shutdown();
+        }
+        report.append("]\n");
+
+        try {
+            Writer output = new BufferedWriter(new FileWriter(reportFile));
+            try {
+                output.write(report.toString());
+            }
+            finally {
+                output.close();
+            }
+        }
+        catch (IOException e) {
+            System.out.println("batchOISC:batch:error when writing report.");
+            System.exit(0);
+        }
+
+        System.out.println("Done. "+total+" instructions executed in "+
+                ((System.nanoTime()-start)/1000000)+" ms, report written to "+
+                reportFile+".");
+        if (cache!=null)
+            System.out.println("Compile cache: "+cache.getHits()+" hits, "+
+                    cache.getMisses()+" misses.");
+    }
+
+    /**Quote string for JSON*/
+    private static String quote(String s) {
+        StringBuffer ret = new StringBuffer("\"");
+        for (int i=0;i<s.length();i++) {
+            char c = s.charAt(i);
+            if ((c=='"')||(c=='\\'))
+                ret.append('\\').append(c);
+            else if (c<0x20)
+                ret.append(String.format("\\u%04x",(int) c));
+            else
+                ret.append(c);
+        }
+        return ret.append('"').toString();
+    }
+
+    /**Main method handles command line input*/
+    public static void main(String[] args) {
+        try {
+            int arg = 0;
+            String cacheDir = null;
+            long cacheSize = cacheOISC.defaultCapacity;
+            while (args[arg].startsWith("-")) {
+                if (args[arg].equals("-cache"))
+                    cacheDir = args[++arg];
+                else if (args[arg].equals("-cachesize"))
+                    cacheSize = Long.parseLong(args[++arg])<<20;
+                else {
+                    System.out.println("Unknown option "+args[arg]+".");
+                    System.exit(0);
+                }
+                arg++;
+            }
+
+            String manifest = args[arg];
+            String reportFile = (args.length>arg+1) ? args[arg+1] :
+                "report.json";
+            int threads = (args.length>arg+2) ? Integer.parseInt(args[arg+2]) :
+                Runtime.getRuntime().availableProcessors();
+            if (threads<1) {
+                System.out.println("Invalid number of threads, at least one " +
+                        "thread is needed.");
+                System.exit(0);
+            }
+            long budget = (args.length>arg+3) ? Long.parseLong(args[arg+3]) : 0;
+            long timeout = (args.length>arg+4) ? Long.parseLong(args[arg+4]) :
+                0;
+
+            cacheOISC cache = null;
+            if (cacheDir!=null)
+                try {
+                    cache = new cacheOISC(cacheDir,cacheSize);
+                }
+                catch (IOException e) {
+                    System.out.println("Cannot create cache directory: "+
+                            cacheDir);
+                    System.exit(0);
+                }
+            batchOISC.batch(manifest,reportFile,threads,budget,timeout,cache);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid input, you need to specify manifest file.");
+            System.exit(0);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid number of threads, budget, timeout " +
+                    "or cache size.");
+            System.exit(0);
+        }
+    }
+}
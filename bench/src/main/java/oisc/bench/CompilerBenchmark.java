@@ -0,0 +1,73 @@
+package oisc.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compiles large generated PKOPL sources. The {@code lines} counter
+ * reports source lines compiled per second; its inverse is the time per
+ * {@code compileLine}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+    @Param({"1000", "10000"})
+    public int size;
+
+    private String source;
+    private String sourceFile, targetFile;
+
+    /** Compiled line counter, reported as a rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Lines {
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lines = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        source = Programs.large(size, 42);
+        Path dir = Files.createTempDirectory("oisc-bench");
+        sourceFile = dir.resolve("large.txt").toString();
+        targetFile = dir.resolve("large.mif").toString();
+        Files.writeString(Path.of(sourceFile), source);
+    }
+
+    /** Front and middle end only, no file access. */
+    @Benchmark
+    public String compileString(Lines counter) throws Throwable {
+        counter.lines += size;
+        return (String) Core.COMPILE_STRING.invokeExact(source);
+    }
+
+    /** Whole compile() path, reading source and writing the .mif file. */
+    @Benchmark
+    public void compileFile(Lines counter) throws Throwable {
+        counter.lines += size;
+        Core.COMPILE.invokeExact(sourceFile, targetFile);
+    }
+}
@@ -0,0 +1,87 @@
+package oisc.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handles to the VM and compiler classes. They live in the default
+ * package, which java code in a named package cannot refer to by name,
+ * so benchmarks reach them through method handles looked up once.
+ */
+final class Core {
+    static final Class<?> VM, IMAGE, COMPILER, MIF;
+
+    /** {@code new virtualOISC()} */
+    static final MethodHandle NEW_VM;
+    /** {@code virtualOISC.load(imageOISC)} */
+    static final MethodHandle LOAD;
+    /** {@code virtualOISC.interpret()} */
+    static final MethodHandle INTERPRET;
+    /** {@code virtualOISC.jit()} */
+    static final MethodHandle JIT;
+    /** {@code virtualOISC.runJit()} */
+    static final MethodHandle RUN_JIT;
+    /** {@code virtualOISC.getStatus()} */
+    static final MethodHandle STATUS;
+    /** {@code virtualOISC.halted} */
+    static final int HALTED;
+    /** {@code imageOISC.load(String)} */
+    static final MethodHandle LOAD_IMAGE;
+    /** {@code imageOISC.read(String)} */
+    static final MethodHandle READ_IMAGE;
+    /** {@code mifOISC.read(String,int[])} */
+    static final MethodHandle READ_MIF;
+    /** {@code compileOISC.compile(String,String)} */
+    static final MethodHandle COMPILE;
+    /** {@code compileOISC.compile(String,String,int)} */
+    static final MethodHandle COMPILE_FLAGS;
+    /** {@code compileOISC.compileString(String)} */
+    static final MethodHandle COMPILE_STRING;
+    /** {@code compileOISC.compileString(String,int)} */
+    static final MethodHandle COMPILE_STRING_FLAGS;
+
+    static {
+        try {
+            ClassLoader loader = Core.class.getClassLoader();
+            VM = Class.forName("virtualOISC", true, loader);
+            IMAGE = Class.forName("imageOISC", true, loader);
+            COMPILER = Class.forName("compileOISC", true, loader);
+            MIF = Class.forName("mifOISC", true, loader);
+
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            NEW_VM = lookup.findConstructor(VM, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            LOAD = lookup.findVirtual(VM, "load", MethodType.methodType(void.class, IMAGE))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            INTERPRET = lookup.findVirtual(VM, "interpret", MethodType.methodType(long.class))
+                    .asType(MethodType.methodType(long.class, Object.class));
+            JIT = lookup.findVirtual(VM, "jit", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            RUN_JIT = lookup.findVirtual(VM, "runJit", MethodType.methodType(long.class))
+                    .asType(MethodType.methodType(long.class, Object.class));
+            STATUS = lookup.findVirtual(VM, "getStatus", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            HALTED = VM.getField("halted").getInt(null);
+            LOAD_IMAGE = lookup.findStatic(IMAGE, "load", MethodType.methodType(IMAGE, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            READ_IMAGE = lookup.findStatic(IMAGE, "read", MethodType.methodType(IMAGE, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            READ_MIF = lookup.findStatic(MIF, "read",
+                    MethodType.methodType(int.class, String.class, int[].class));
+            COMPILE = lookup.findStatic(COMPILER, "compile",
+                    MethodType.methodType(void.class, String.class, String.class));
+            COMPILE_FLAGS = lookup.findStatic(COMPILER, "compile",
+                    MethodType.methodType(void.class, String.class, String.class, int.class));
+            COMPILE_STRING = lookup.findStatic(COMPILER, "compileString",
+                    MethodType.methodType(String.class, String.class));
+            COMPILE_STRING_FLAGS = lookup.findStatic(COMPILER, "compileString",
+                    MethodType.methodType(String.class, String.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Core() {
+    }
+}
@@ -0,0 +1,59 @@
+package oisc.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads the same program from a .mif file and from a binary rom image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBenchmark {
+    private String mif, rom;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Path dir = Files.createTempDirectory("oisc-bench");
+        Path source = dir.resolve("ifChain.txt");
+        Files.writeString(source, Programs.ifChain(40));
+        mif = dir.resolve("ifChain.mif").toString();
+        rom = dir.resolve("ifChain.rom").toString();
+        Core.COMPILE.invokeExact(source.toString(), mif);
+        Core.COMPILE.invokeExact(source.toString(), rom);
+    }
+
+    @Benchmark
+    public int[] readMif() throws Throwable {
+        int[] words = new int[256];
+        int count = (int) Core.READ_MIF.invokeExact(mif, words);
+        return words;
+    }
+
+    @Benchmark
+    public Object readImage() throws Throwable {
+        return (Object) Core.READ_IMAGE.invokeExact(rom);
+    }
+
+    /** Format detection plus loading, as virtualOISC's load command does it. */
+    @Benchmark
+    public Object loadMif() throws Throwable {
+        return (Object) Core.LOAD_IMAGE.invokeExact(mif);
+    }
+}
@@ -0,0 +1,131 @@
+package oisc.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates PKOPL sources for the benchmarks.
+ * <p>
+ * PKOPL jumps take absolute rom addresses, so loop targets are found by
+ * compiling the program up to the target line and counting the emitted
+ * instructions. Jump addresses in source are those of the unoptimized
+ * code, so the programs are counted, and must be compiled, without the
+ * optimizer: it would fold the tests on constant values away.
+ */
+final class Programs {
+    private Programs() {
+    }
+
+    /** Source of the named benchmark program. */
+    static String byName(String name) throws Throwable {
+        switch (name) {
+        case "mulLoop":
+            return mulLoop();
+        case "divLoop":
+            return divLoop();
+        case "ifChain":
+            return ifChain(40);
+        default:
+            throw new IllegalArgumentException("unknown program " + name);
+        }
+    }
+
+    /** 100 iterations of a MUL whose repeated subtraction loop runs 100 times. */
+    static String mulLoop() throws Throwable {
+        List<String> lines = new ArrayList<>();
+        lines.add("DEF N 100");
+        lines.add("DEF ONE 1");
+        lines.add("DEF ZERO 0");
+        lines.add("DEF A 1");
+        lines.add("DEF B 100");
+        lines.add("DEF C 0");
+        int top = address(lines);
+        lines.add("MUL A B C");
+        lines.add("SUB ONE N N");
+        lines.add("IFGT N ZERO " + top);
+        return join(lines);
+    }
+
+    /** 100 iterations of a DIV whose repeated subtraction loop runs 120 times. */
+    static String divLoop() throws Throwable {
+        List<String> lines = new ArrayList<>();
+        lines.add("DEF N 100");
+        lines.add("DEF ONE 1");
+        lines.add("DEF ZERO 0");
+        lines.add("DEF A 1");
+        lines.add("DEF B 120");
+        lines.add("DEF C 0");
+        int top = address(lines);
+        lines.add("DIV A B C");
+        lines.add("SUB ONE N N");
+        lines.add("IFGT N ZERO " + top);
+        return join(lines);
+    }
+
+    /**
+     * 100 iterations over a chain of alternating IFGT/IFLE tests, each of
+     * them jumping or falling through to the next test.
+     */
+    static String ifChain(int depth) throws Throwable {
+        List<String> lines = new ArrayList<>();
+        lines.add("DEF N 100");
+        lines.add("DEF ONE 1");
+        lines.add("DEF ZERO 0");
+        lines.add("DEF X 5");
+        lines.add("DEF Y 7");
+        int top = address(lines);
+        for (int i = 0; i < depth; i++) {
+            //placeholder target, patched once the next line's address is known
+            lines.add(((i % 2 == 0) ? "IFGT" : "IFLE") + " X Y 0");
+            int next = address(lines);
+            lines.set(lines.size() - 1, ((i % 2 == 0) ? "IFGT" : "IFLE") + " X Y " + next);
+        }
+        lines.add("SUB ONE N N");
+        lines.add("IFGT N ZERO " + top);
+        return join(lines);
+    }
+
+    /**
+     * Large straight-line source for compiler benchmarks: variable
+     * definitions followed by a random mix of all operators.
+     */
+    static String large(int size, long seed) {
+        Random random = new Random(seed);
+        String[] ops = {"ADD", "SUB", "MUL", "DIV", "MOV", "IFGT", "IFLE", "JMP"};
+        StringBuilder src = new StringBuilder();
+        int vars = 50;
+        for (int i = 0; i < vars; i++)
+            src.append("DEF V").append(i).append(' ').append(random.nextInt(255) - 127).append('\n');
+        for (int i = vars; i < size; i++) {
+            String op = ops[random.nextInt(ops.length)];
+            src.append(op);
+            if (op.equals("JMP")) {
+                src.append(' ').append(random.nextInt(256));
+            } else {
+                src.append(" V").append(random.nextInt(vars));
+                src.append(" V").append(random.nextInt(vars));
+                if (op.startsWith("IF"))
+                    src.append(" $").append(Integer.toHexString(16 + random.nextInt(240)));
+                else if (!op.equals("MOV"))
+                    src.append(" V").append(random.nextInt(vars));
+            }
+            src.append('\n');
+        }
+        return src.toString();
+    }
+
+    /** Rom address the next line of given program would be compiled to. */
+    private static int address(List<String> lines) throws Throwable {
+        String code = (String) Core.COMPILE_STRING_FLAGS.invokeExact(join(lines), 0);
+        int count = 0;
+        for (int i = 0; i < code.length(); i++)
+            if (code.charAt(i) == '\n')
+                count++;
+        return count;
+    }
+
+    private static String join(List<String> lines) {
+        return String.join("\n", lines) + "\n";
+    }
+}
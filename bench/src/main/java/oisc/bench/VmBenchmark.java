@@ -0,0 +1,87 @@
+package oisc.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs representative programs on {@code virtualOISC}, with the
+ * interpreter or the jit. Besides runs per second, the
+ * {@code instructions} counter reports executed OISC instructions per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VmBenchmark {
+    @Param({"mulLoop", "divLoop", "ifChain"})
+    public String program;
+
+    @Param({"interp", "jit"})
+    public String engine;
+
+    private Object vm;
+    private boolean jit;
+
+    /** Executed instruction counter, reported as a rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Instructions {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            instructions = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        Path dir = Files.createTempDirectory("oisc-bench");
+        Path source = dir.resolve(program + ".txt");
+        Path rom = dir.resolve(program + ".rom");
+        Files.writeString(source, Programs.byName(program));
+        //without the optimizer, see Programs
+        Core.COMPILE_FLAGS.invokeExact(source.toString(), rom.toString(), 0);
+
+        Object image = (Object) Core.LOAD_IMAGE.invokeExact(rom.toString());
+        vm = (Object) Core.NEW_VM.invokeExact();
+        Core.LOAD.invokeExact(vm, image);
+
+        //a program that loops or faults would make the jit run forever
+        long count = (long) Core.INTERPRET.invokeExact(vm);
+        int status = (int) Core.STATUS.invokeExact(vm);
+        if (status != Core.HALTED)
+            throw new IllegalStateException(program + " did not halt, status " + status
+                    + " after " + count + " instructions");
+
+        jit = engine.equals("jit");
+        if (jit && !(boolean) Core.JIT.invokeExact(vm))
+            throw new IllegalStateException("jit compilation failed");
+    }
+
+    @Benchmark
+    public long run(Instructions counter) throws Throwable {
+        long count = jit ? (long) Core.RUN_JIT.invokeExact(vm)
+                : (long) Core.INTERPRET.invokeExact(vm);
+        counter.instructions += count;
+        return count;
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On disk cache of compiled images, so a PKOPL source is only compiled
+ * once no matter how often it is compiled again. Images are stored in the
+ * binary format of imageOISC, in files named after a SHA-256 hash of the
+ * source text, the compiler version and the compile flags, so any change
+ * to one of them misses the cache. The compiler version is a hash of the
+ * class files of the compiler, which changes whenever the compiler does.
+ * <br>
+ * <br>The cache is kept below a size cap by deleting the least recently
+ * used images, going by the modification time of their files, which is
+ * updated on every hit. Any number of threads and JVMs can share a cache
+ * directory: files are locked through a lock file in the directory, shared
+ * while reading and exclusive while storing and evicting, and images are
+ * written to a temporary file that is renamed into place, so readers never
+ * see half written images. Images are compiled outside the lock, so two
+ * JVMs can compile the same source at the same time, the last one stores
+ * it.
+ * <br>
+ * <br>Binary images do not hold the source lines of rom addresses, so
+ * cached images can not be profiled by source line, and compiler
+ * messages are only printed when the image is compiled.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class cacheOISC {
+    /**Size cap in bytes used if none is given*/
+    public static long defaultCapacity = 64L<<20;
+    /**Name of the lock file in the cache directory*/
+    private static final String lockName = "cache.lock";
+    /**
+     * Classes whose code decides the images compileOISC generates, their
+     * nested and anonymous classes are hashed with them
+     */
+    private static final String[] compilerClasses = {"compileOISC",
+        "parseOISC","lexerOISC","optimizeOISC","imageOISC","virtualOISC"};
+    /**Hash of the compiler classes, computed on first use*/
+    private static byte[] compilerVersion;
+
+    private Path directory, lockFile;
+    /**size cap of all images in bytes*/
+    private long capacity;
+    /**number of lookups that found an image and that did not*/
+    private AtomicLong hits, misses;
+
+    /**
+     * Constructor for a cache in given directory, which is created if it
+     * does not exist
+     *
+     * @param ndirectory cache directory
+     * @param ncapacity size cap of all images in bytes
+     * @throws IOException if the directory cannot be created
+     */
+    public cacheOISC(String ndirectory, long ncapacity) throws IOException {
+        directory = Paths.get(ndirectory);
+        Files.createDirectories(directory);
+        lockFile = directory.resolve(lockName);
+        capacity = ncapacity;
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+    }
+
+    /**accessor for number of lookups that found an image*/
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**accessor for number of lookups that did not find an image*/
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Image compiled from given source with given flags, taken from the
+     * cache or compiled and stored in it
+     *
+     * @param source PKOPL source
+     * @param flags sum of compileOISC flags such as optimizeFlag
+     * @return compiled image
+     * @throws IOException if the cache cannot be read or written
+     */
+    public imageOISC compileImage(String source, int flags)
+            throws IOException {
+        return compileImage(source,flags,null);
+    }
+
+    /**
+     * Image compiled from given source with given flags, taken from the
+     * cache or compiled and stored in it. Compiler messages are added to
+     * given list, there are none when the image is taken from the cache.
+     *
+     * @param source PKOPL source
+     * @param flags sum of compileOISC flags such as optimizeFlag
+     * @param messages list compiler messages are added to, null to print
+     * them
+     * @return compiled image
+     * @throws IOException if the cache cannot be read or written
+     */
+    public imageOISC compileImage(String source, int flags,
+            List<String> messages) throws IOException {
+        String key = key(source,flags);
+        imageOISC image = get(key);
+        if (image==null) {
+            image = compileOISC.compileImage(source,flags,messages);
+            put(key,image);
+        }
+        return image;
+    }
+
+    /**
+     * Cache key of given source compiled with given flags, a hex SHA-256
+     * hash of compiler version, flags and source text
+     */
+    public String key(CharSequence source, int flags) {
+        MessageDigest digest = digest();
+        digest.update(version());
+        digest.update(new byte[] {(byte) (flags>>24),(byte) (flags>>16),
+                (byte) (flags>>8),(byte) flags});
+
+        //hash chars as they are, every char is two bytes
+        byte[] buf = new byte[8192];
+        int count = 0;
+        for (int i=0;i<source.length();i++) {
+            char c = source.charAt(i);
+            buf[count++] = (byte) (c>>8);
+            buf[count++] = (byte) c;
+            if (count==buf.length) {
+                digest.update(buf,0,count);
+                count = 0;
+            }
+        }
+        digest.update(buf,0,count);
+
+        StringBuffer ret = new StringBuffer();
+        for (byte b : digest.digest())
+            ret.append(String.format("%02x",b&0xff));
+        return ret.toString();
+    }
+
+    /**
+     * Cached image of given key. A hit marks the image as recently used.
+     *
+     * @param key cache key, see key
+     * @return cached image, null if there is none
+     * @throws IOException if the cache cannot be read
+     */
+    public imageOISC get(String key) throws IOException {
+        Path file = file(key);
+        synchronized (cacheOISC.class) {
+            FileChannel channel = lockChannel();
+            try {
+                channel.lock(0,Long.MAX_VALUE,true);
+                if (!Files.exists(file)) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                imageOISC image;
+                try {
+                    image = imageOISC.read(file.toString());
+                }
+                catch (IOException e) {
+                    //treat images that cannot be read as missing, storing
+                    //the image again replaces them
+                    misses.incrementAndGet();
+                    return null;
+                }
+                try {
+                    Files.setLastModifiedTime(file,
+                            FileTime.fromMillis(System.currentTimeMillis()));
+                }
+                catch (IOException e) {
+                    //evicted a bit early then
+                }
+                hits.incrementAndGet();
+                return image;
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Store given image under given key, then evict least recently used
+     * images until the cache is below its size cap again
+     *
+     * @param key cache key, see key
+     * @param image image to store
+     * @throws IOException if the cache cannot be written
+     */
+    public void put(String key, imageOISC image) throws IOException {
+        Path file = file(key);
+        Path temp = Files.createTempFile(directory,key,".tmp");
+        try {
+            image.write(temp.toString());
+            synchronized (cacheOISC.class) {
+                FileChannel channel = lockChannel();
+                try {
+                    channel.lock();
+                    Files.move(temp,file,StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    evict(file);
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Delete least recently used images until all images fit in capacity,
+     * keeping given image. Called with the exclusive lock held.
+     */
+    private void evict(Path keep) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        final Map<Path,Long> used = new HashMap<Path,Long>();
+        long total = 0;
+        DirectoryStream<Path> dir = Files.newDirectoryStream(directory,
+                "*"+imageOISC.extension);
+        try {
+            for (Path file : dir) {
+                try {
+                    used.put(file,Files.getLastModifiedTime(file).toMillis());
+                    total += Files.size(file);
+                    files.add(file);
+                }
+                catch (NoSuchFileException e) {
+                    //deleted by hand meanwhile
+                }
+            }
+        }
+        finally {
+            dir.close();
+        }
+        if (total<=capacity)
+            return;
+
+        Collections.sort(files,new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                int order = used.get(a).compareTo(used.get(b));
+                return (order!=0) ? order : a.compareTo(b);
+            }
+        });
+        for (Path file : files) {
+            if (total<=capacity)
+                break;
+            if (file.equals(keep))
+                continue;
+            try {
+                long size = Files.size(file);
+                Files.delete(file);
+                total -= size;
+            }
+            catch (IOException e) {
+                //deleted by hand meanwhile
+            }
+        }
+    }
+
+    /**Image file of given key*/
+    private Path file(String key) {
+        return directory.resolve(key+imageOISC.extension);
+    }
+
+    /**Open channel of the lock file, to be locked and closed by caller*/
+    private FileChannel lockChannel() throws IOException {
+        return FileChannel.open(lockFile,StandardOpenOption.CREATE,
+                StandardOpenOption.READ,StandardOpenOption.WRITE);
+    }
+
+    /**New SHA-256 digest*/
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            //every java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compiler version, a hash of the class files of the compiler as found
+     * by the class loader of this class
+     */
+    private static synchronized byte[] version() {
+        if (compilerVersion!=null)
+            return compilerVersion;
+        MessageDigest digest = digest();
+        byte[] buf = new byte[8192];
+        for (String name : compilerClasses) {
+            Class<?> c = null;
+            try {
+                c = Class.forName(name,false,cacheOISC.class.getClassLoader());
+            }
+            catch (ClassNotFoundException e) {}
+            hashClass(digest,name,c,buf);
+        }
+        compilerVersion = digest.digest();
+        return compilerVersion;
+    }
+
+    /**
+     * Add the class file of given class to digest, then those of its
+     * member classes in name order and of its anonymous classes, which
+     * are numbered from 1
+     *
+     * @param name binary name of the class
+     * @param c the class, null if it cannot be loaded
+     * @return false if there is no class file
+     */
+    private static boolean hashClass(MessageDigest digest, String name,
+            Class<?> c, byte[] buf) {
+        digest.update(name.getBytes());
+        InputStream in = cacheOISC.class.getResourceAsStream(name+".class");
+        if (in==null)
+            return false;
+        try {
+            try {
+                int count;
+                while ((count = in.read(buf))>0)
+                    digest.update(buf,0,count);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (c!=null) {
+            Class<?>[] members = c.getDeclaredClasses();
+            Arrays.sort(members,new Comparator<Class<?>>() {
+                public int compare(Class<?> x, Class<?> y) {
+                    return x.getName().compareTo(y.getName());
+                }
+            });
+            for (Class<?> member : members)
+                hashClass(digest,member.getName(),member,buf);
+        }
+        int i = 1;
+        while (hashClass(digest,name+"$"+i,null,buf))
+            i++;
+        return true;
+    }
+}
@@ -1,14 +1,53 @@
 import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.*;
-import java.util.regex.Pattern;
 
 /**
  * Converts a file written in Paksoy Kader OISC Programming Language (PKOPL) into
  * binary code that runs on our OISC chip. The output files are readable by the VHDL
  * compiler.
  * <br>
- * Run using: <tt>java compileOISC &lt;source text file&gt; [output file]</tt>
+ * Run using: <tt>java compileOISC [-O|-O0|-Ofast] [-strip]
+ * [-cache &lt;directory&gt;] &lt;source text file&gt; [output file]</tt>
  * <br>If output file is not specified name "compiled.mif" is assumed
+ * <br>The source is parsed into a list of operations by parseOISC first,
+ * code is generated from that list.
+ * <br><tt>-O</tt> runs the peephole optimizer (see optimizeOISC) on the
+ * generated code, which is the default, <tt>-O0</tt> turns it off. The
+ * optimizer moves jump targets along with the instructions, so jump
+ * addresses in source are always those of the unoptimized code.
+ * <tt>-Ofast</tt> also generates MUL code that takes a number of steps
+ * bound by the word width instead of by the multiplier, and DIV code
+ * that subtracts 8 times the divisor at a time while it can. They take
+ * 35 (MUL) and 33 (DIV) rom words instead of 12. Jump addresses in
+ * source stay those of the code with the loops: like the optimizer, the
+ * compiler moves them along with the code, and a MUL or DIV whose loop a
+ * source jump goes into keeps its loop. The program is sized with the short
+ * code first, fast code is then used in program order only while the
+ * whole program still fits in rom. A program that does not fit in rom
+ * is reported, code past the end of rom is left out.
+ * <br>If output file name ends with <tt>.rom</tt> a binary rom image (see
+ * imageOISC) is written instead of a .mif file, for fast loading in virtualOISC.
+ * The image also holds the ram set up by the load instructions at the
+ * start of the program (the DEF lines and the reference values), with an
+ * entry address after them, so virtualOISC can start with that ram in
+ * place instead of running them. <tt>-strip</tt> leaves those load
+ * instructions out of the rom of the image altogether, which moves the
+ * addresses of all following lines like the optimizer does. A jump into
+ * the stripped loads would re-run them, so loads from the first jump
+ * target on are kept. .mif files always keep them, as the chip has no
+ * other way to set up ram.
+ * <br><tt>-cache</tt> keeps .rom images in given cache directory (see
+ * cacheOISC), and only compiles sources that are not in there yet.
+ * <br>Each .mif line is followed by a <tt>-- line n</tt> comment giving the
+ * source line it was compiled from, which the profiler of virtualOISC
+ * uses to report where time is spent.
+ * <br>A session compiles successive versions of the same program
+ * incrementally: only lines that changed are parsed and compiled again,
+ * the code of the others is moved to its new address.
  * <br><br>
  * 
  * <h3>PKOPL Syntax and Operators</h3>
@@ -30,6 +69,10 @@ import java.util.regex.Pattern;
  * <li> <tt>DEF x <i>constant</i>:</tt> define variable 'x' to be <i>constant</i>
  * <li> <tt>MOV a b:</tt> move m(a) to m(b)
  * </ul>
+ * <h4>Input and output</h4>
+ * The reserved variable <tt>ioPort</tt> is the special io address of the emulator.
+ * <tt>MOV ioPort x</tt> reads an input value into x and <tt>MOV x ioPort</tt>
+ * outputs m(x). Other operators should not be given ioPort as an operand.
  * <h4>Syntax</h4>
  * <b>General</b>
  * <br>
@@ -68,63 +111,169 @@ import java.util.regex.Pattern;
  */
 
 public class compileOISC {
-    private int heapPt, pCount;
+    private int heapPt, pCount, lineCount;
+    /**Source line being compiled starting from 1, 0 for generated code*/
+    private int sourceLine;
+    /**
+     * Generated instructions as rom words and the source line of each,
+     * by address. size instructions are used, generated is the number of
+     * instructions before optimizing.
+     */
+    private int[] code, lines;
+    private int size, generated;
+    /**
+     * ram set up by the load instructions at the start of the code, the
+     * number of those instructions, and how many of them were stripped
+     */
+    private int[] ram;
+    private int entry, stripped;
+    
+    /**Flag for compile: run the peephole optimizer on generated code*/
+    public static final int optimizeFlag = 1;
+    /**
+     * Flag for compile: generate MUL and DIV code that runs in fewer
+     * steps, see fastMultiply and fastDivide
+     */
+    public static final int fastMathFlag = 2;
+    /**
+     * Flag for compile: leave the load instructions that set up ram out of
+     * the rom of binary images, which hold that ram instead
+     */
+    public static final int stripFlag = 4;
+    /**Flags used if none are given*/
+    public static int defaultFlags = optimizeFlag;
+    /**Flags given to compile*/
+    private int flags;
     /**Definitions end flag*/
     private boolean defEnd;
+    /**
+     * Heap cells used by fast MUL and DIV code, allocated on first use
+     * below the variables
+     */
+    private int[] mathCells;
     
     /**Variable lookup table*/
     private Hashtable<String,variable> variables;
     
     /**
-     * theInstruction is the normal instruction that uses direct addressing for all
-     * parameters
+     * Kept for the next compilation of a session: source text, offsets at
+     * which its lines start (see parseOISC.getLineStarts), its operations
+     * with the line of each and the code generated for each, null where it
+     * has to be generated again, and the DEF lines the code depends on
+     */
+    private char[] text;
+    private int textLength;
+    private int[] lineStarts;
+    private List<parseOISC.operation> program;
+    private int[] opLines;
+    private opCode[] opCodes;
+    private String symbols;
+    /**True if code is recorded into opCodes, see session*/
+    private boolean recording;
+    /**Code of the operation being compiled, null if not recording*/
+    private opCode current;
+    /**Instructions and messages of current so far*/
+    private int[] currentWords;
+    private int currentCount;
+    private List<String> currentMessages;
+    /**Number of operations whose code was reused*/
+    private int reused;
+    /**
+     * Rom words still free for the extra words of fast MUL and DIV code,
+     * see useFastMath
+     */
+    private int fastRoom;
+    /**True if messages are not printed, for sizing the short code*/
+    private boolean quiet;
+    /**Messages are added to this list instead of printed, if not null*/
+    private List<String> said;
+    /**
+     * Where each operation starts in the code with MUL compiled to its
+     * loop, which source jump addresses refer to, and the addresses
+     * source jumps go to there, see remapJumps
+     */
+    private int[] shortStarts;
+    private boolean[] shortTargets;
+    /**Where each operation starts in the generated code*/
+    private int[] opStarts;
+    /**Index of the operation being compiled*/
+    private int opIndex;
+    /**True for instructions whose C operand is an address from source*/
+    private boolean[] sourceJumps;
+    
+    /**
+     * theInstruction is the op code bit of the normal instruction that uses
+     * direct addressing for all parameters
      * <br>loadInstruction take a parameter as immediate value and stores it at b,
      * jumps to c if b<=0
      * <br>cr is the line terminator for this platform, courtesy of  
      * http://www.javapractices.com/Topic42.cjp
      */
-    public static String theInstruction = "0", cr=System.getProperty("line.separator"),
-                loadInstruction = "1";
+    public static final int theInstruction = 0,
+        loadInstruction = virtualOISC.loadBit;
+    public static String cr=System.getProperty("line.separator");
     /**maximum number of variables allowed*/
     private static int maxVar = 100;
     /**heapPtStart is the lowest point of the heap*/
     private static Integer heapPtStart = 249;
+    /**
+     * Fast MUL code uses the repeated subtraction loop for up to this
+     * many steps, since it is faster for small multipliers
+     */
+    private static int slowSteps = 24;
+    /**
+     * Fast DIV code uses the repeated subtraction loop for the first
+     * divSteps+1 steps, at least 9 so that only divisors below 16 are
+     * left after them
+     */
+    private static int divSteps = 8;
+    /**Number of rom words of fast MUL and DIV code, and of the loops*/
+    private static int fastMulSize = 35, fastDivSize = 33, mathSize = 12;
+    
+    /**
+     * Marks instruction words of an opCode whose C operand is relative to
+     * the address of the first instruction of the operation
+     */
+    private static final int relativeBit = 1<<25;
+    
+    /**Name of the variable bound to the io address*/
+    public static String ioPortName = "ioPort";
     
     /**Reserved memory addresses for registers*/
-    public static String negOneRegister="11111110",tempAReg="11111101",tempBReg="11111100",
-        tempCReg="11111011",zeroRegister="11111010";
+    public static final int negOneRegister=254,tempAReg=253,tempBReg=252,
+        tempCReg=251,zeroRegister=250;
     
     /**Constructor initializes local variables*/
     compileOISC() {
         heapPt = heapPtStart;
         pCount = 0;
+        lineCount = 0;
+        sourceLine = 0;
+        code = new int[virtualOISC.memSize];
+        lines = new int[virtualOISC.memSize];
+        sourceJumps = new boolean[virtualOISC.memSize];
         defEnd = false;
         variables = new Hashtable<String,variable>();
+        variables.put(ioPortName,new variable(ioPortName,virtualOISC.ioPort,0));
     }
 
     /**Private variable class represents variables*/
     private class variable {
         private int memLoc,value;
-        private String memLocBin, valueBin, name;
+        private String name;
         
         variable(String nname, int mem, int val) {
             value = val;
             memLoc = mem;
-            memLocBin = decToBin(mem);
             name = nname;
         }
         
-        public String getMemLocBin() {
-            return memLocBin;
-        }
-        
         public int getMemLoc() {
             return memLoc;
         }
         
         public void setMemLoc(int newloc) {
             memLoc = newloc;
-            memLocBin = decToBin(newloc);
         }
         
         public int getValue() {
@@ -145,117 +294,799 @@ public class compileOISC {
     }
     
     /**
-     * Expand hex representation to binary
-     * @param hex number in hex form, should be 2 chars
-     * @return number in 8-bit binary form
+     * Code generated for one operation, in a form that does not depend
+     * on the address it is placed at: jump targets inside the code are
+     * kept relative to its first instruction, see relativeBit. Fast MUL
+     * and DIV code is only generated while the rom words it takes fit in
+     * what the program leaves free, so that code is only valid as long as
+     * it still does (or still does not).
      */
-    public static String hexToBin(String hex) {
-        char[] hexRep = hex.toCharArray();
-        int numchars = hexRep.length;
+    private static class opCode {
+        /**instruction words*/
+        private int[] words;
+        /**messages printed while compiling*/
+        private String[] messages;
+        /**size of fast MUL or DIV code checked for, 0 if none*/
+        private int fastSize;
+        /**true if fast code fit in the free rom words*/
+        private boolean fits;
+        /**rom words the code takes beyond the loop of MUL or DIV*/
+        private int extra;
+        /**true if the heap cells of fast code were allocated by it*/
+        private boolean allocates;
+        /**true if a source jump went into the loop fast code replaces*/
+        private boolean into;
         
-        //check input length
-        if (numchars>2) {
-            System.out.println("compileOISC:hexToBin:hex representation too long, " +
-                    "high bits will be discarded. Input: \""+hex+"\".");
-            numchars=2;
+        /**
+         * True if this code is still valid when given number of rom words
+         * are free for fast code and a source jump goes into its loop or not
+         */
+        private boolean fitsIn(int room, boolean ninto) {
+            return (fastSize==0)||
+                (((fastSize-mathSize<=room)==fits)&&(into==ninto));
         }
-            
-        else if (numchars<2)
-            System.out.println("compileOISC:hexToBin:hex representation too short, " +
-                    "leading 0's will be added. Input: \""+hex+"\".");
+    }
+    
+    /**
+     * Compiles successive versions of a program, each time reusing what
+     * did not change since the previous compilation. Only the lines that
+     * changed are parsed again. Code of operations other than DEF is
+     * kept from the previous compilation and moved to its new address
+     * as long as the DEF lines at the start of the program, and with them
+     * the addresses of all variables, stay the same, so an edit only
+     * compiles the operations on the lines that changed. The optimizer
+     * still runs on the whole rom.
+     * <br>The results are the same as those of compiling each version on
+     * its own, messages included.
+     */
+    public static class session {
+        private int flags;
+        /**compiler of the previous compilation, null if none*/
+        private compileOISC last;
         
-        StringBuffer binaryRep = new StringBuffer();
-        for (int i=0;i<numchars;i++) {
-            //First convert hex representation to integer and then retreive in
-            //binary form
-            String singlehex = Integer.toBinaryString(
-                    Integer.parseInt(((Character) hexRep[i]).toString(),16));
-            
-            //fill in missing leading zero's
-            for (int j=singlehex.length();j<4;j++)
-                singlehex = "0"+singlehex;
-            
-            //append to result string
-            binaryRep.append(singlehex);
+        /**Constructor for a session using default flags*/
+        public session() {
+            this(defaultFlags);
         }
         
-        for (int i=numchars;i<2;i++)
-            binaryRep.insert(0,"0000");
+        /**
+         * Constructor for a session
+         * 
+         * @param nflags sum of flags such as optimizeFlag
+         */
+        public session(int nflags) {
+            flags = nflags;
+        }
+        
+        /**
+         * Compiles given source code file like compileOISC.compile, and
+         * writes the result to given target file
+         * 
+         * @param inputFile file that contains source
+         * @param targetFile file to write to
+         */
+        public void compile(String inputFile, String targetFile) {
+            compileFile(inputFile,targetFile,flags,this,null);
+        }
+        
+        /**
+         * Compiles given source code text without writing any files
+         * 
+         * @param source PKOPL source
+         * @return assembly code lines in .mif content format, without padding
+         */
+        public String compileString(String source) {
+            StringBuffer ret = new StringBuffer();
+            compileLines(source,flags&~stripFlag,this).format(ret);
+            return ret.toString();
+        }
+        
+        /**
+         * Compiles given source code text into an image, without writing
+         * any files
+         * 
+         * @param source PKOPL source
+         * @return rom, ram set up by its load instructions and entry address
+         */
+        public imageOISC compileImage(String source) {
+            return compileLines(source,flags,this).getImage();
+        }
         
-        return binaryRep.toString();
+        /**Number of operations whose code the last compilation reused*/
+        public int getReused() {
+            return (last==null) ? 0 : last.reused;
+        }
     }
     
-    /**Convert integer to its 8bit unsigned binary representation*/
-    public static String decToBin (int dec) {
+    /**
+     * Parse hex representation of an operand
+     * @param hex number in hex form, should be 2 chars
+     * @return number as 8-bit unsigned value
+     */
+    public static int hexToInt(String hex) {
+        String warning = hexWarning(hex);
+        if (warning!=null)
+            System.out.println(warning);
+        return hexValue(hex);
+    }
+    
+    /**Warning for hex representations that are not 2 chars, null if none*/
+    private static String hexWarning(String hex) {
+        //check input length
+        if (hex.length()>2)
+            return "compileOISC:hexToInt:hex representation too long, " +
+                    "high bits will be discarded. Input: \""+hex+"\".";
+        else if (hex.length()<2)
+            return "compileOISC:hexToInt:hex representation too short, " +
+                    "leading 0's will be added. Input: \""+hex+"\".";
+        return null;
+    }
+    
+    /**Value of hex representation, see hexToInt*/
+    private static int hexValue(String hex) {
+        int numchars = Math.min(hex.length(),2);
+        int ret = 0;
+        for (int i=0;i<numchars;i++) {
+            int digit = Character.digit(hex.charAt(i),16);
+            if (digit<0)
+                throw new NumberFormatException("For input string: \""+hex+
+                        "\" under radix 16");
+            ret = (ret<<4)|digit;
+        }
+        return ret;
+    }
+    
+    /**Clamp integer to an 8bit unsigned address*/
+    public static int toAddress(int dec) {
         //low bound
         if (dec<=0)
-            return "00000000";
+            return 0;
         
         //upper bound 
         else if (dec>=255) 
-            return "11111111";
+            return 255;
         
-        else {
-            //generate binary string
-            String ret = Integer.toBinaryString(dec);
-            int retlen = ret.length();
-            
-            //fill in preceding zeros if necessary
-            for (int i=retlen;i<8;i++)
-                ret = "0" + ret;
-            
-            //discard unnecessary preceding zeros
-            ret = ret.substring((ret.length()-8));
-            return ret;
-        }
+        return dec;
     }
     
     /**
-     * Make given binary number 8 bits long, by either padding with leading
-     * or truncating high bits.
+     * Parse binary representation of an operand, truncating high bits
+     * past 8.
      * 
      * @param bin input binary number
-     * @return 8-bit long binary number 
+     * @return number as 8-bit unsigned value
      */
-    public static String binToBin(String bin) {
-        String ret = bin;
-
-        //fill in preceeding zeros
-        for (int i=bin.length();i<8;i++)
-            ret = "0" + ret;
-        
-        //discard unnecessary preceding zeros
-        ret = ret.substring((ret.length()-8));
-        
+    public static int binToInt(String bin) {
+        int ret = 0;
+        for (int i=Math.max(0,bin.length()-8);i<bin.length();i++) {
+            char c = bin.charAt(i);
+            if ((c!='0')&&(c!='1'))
+                throw new NumberFormatException("For input string: \""+bin+
+                        "\" under radix 2");
+            ret = (ret<<1)|(c-'0');
+        }
         return ret;
     }
+    
+    /**
+     * Clamp integer to an 8bit two's complement immediate value. Values
+     * from -127 down load as -128.
+     */
+    public static int toValue(int operand) {
+        //check bounds
+        if (operand>=127)
+            return 127;
+        else if (operand<=-127)
+            return -128;
+        return operand;
+    }
         
+    /**Compiles given source code file with default flags, and writes
+     * the result to given target file
+     * @param inputFile file that contains source
+     * @param targetFile file to write to
+     */
+    public static void compile(String inputFile, String targetFile) {
+        compile(inputFile,targetFile,defaultFlags);
+    }
+    
     /**Compiles given source code file, and writes the result to
      * given target file
      * @param inputFile file that contains source
      * @param targetFile file to write to
+     * @param flags sum of flags such as optimizeFlag
      */
-    public static void compile(String inputFile, String targetFile) {
+    public static void compile(String inputFile, String targetFile, int flags) {
+        compileFile(inputFile,targetFile,flags,null,null);
+    }
+    
+    /**Compiles given source code file, and writes the result to
+     * given target file, taking images from given cache if possible
+     * @param inputFile file that contains source
+     * @param targetFile file to write to
+     * @param flags sum of flags such as optimizeFlag
+     * @param cache cache of images, only used for binary images
+     */
+    public static void compile(String inputFile, String targetFile, int flags,
+            cacheOISC cache) {
+        compileFile(inputFile,targetFile,flags,null,cache);
+    }
+    
+    /**
+     * Compiles given source code file and writes the result to given
+     * target file, as part of given session if there is one
+     * 
+     * @param inputFile file that contains source
+     * @param targetFile file to write to
+     * @param flags sum of flags such as optimizeFlag
+     * @param s session the compilation is part of, or null
+     * @param cache cache of images, or null
+     */
+    private static void compileFile(String inputFile, String targetFile,
+            int flags, session s, cacheOISC cache) {
         System.out.println("Reading source from file: "+inputFile);
-        int counter = 0;
 
-        //Scanner reads input file
-        Scanner source = null;
+        CharBuffer source = null;
         try {
-            source = new Scanner(new FileInputStream(inputFile));
+            source = readSource(inputFile);
         } catch (FileNotFoundException e) {
             System.out.println("Cannot find file: "+inputFile);
             System.exit(0);
+        } catch (IOException e) {
+            System.out.println("compileOISC:compile:error when reading " +
+                    "file.");
+            System.exit(0);
         }
 
+        boolean image = targetFile.endsWith(imageOISC.extension);
+        if (!image&&((flags&stripFlag)!=0)) {
+            System.out.println("Load instructions are only stripped from " +
+                    imageOISC.extension+" images, keeping them.");
+            flags &= ~stripFlag;
+        }
+        
+        String key = null;
+        if ((cache!=null)&&!image)
+            System.out.println("Only "+imageOISC.extension+" images are " +
+                    "cached, compiling.");
+        else if (cache!=null) {
+            try {
+                key = cache.key(source,flags);
+                imageOISC cached = cache.get(key);
+                if (cached!=null) {
+                    writeImage(cached,targetFile);
+                    System.out.println("Found "+inputFile+" in compile " +
+                            "cache, wrote cached image.");
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("compileOISC:compile:error when reading " +
+                        "cache: "+e.getMessage());
+                key = null;
+            }
+        }
+        boolean again = (s!=null)&&(s.last!=null);
+        compileOISC compiler = compileLines(source,flags,s);
+        
+        if (image)
+            writeImage(compiler.getImage(),targetFile);
+        else
+            writeMif(compiler,targetFile);
+        
+        System.out.println("Finished compiling file "+inputFile+" "+
+                compiler.lineCount+" lines read.");
+        if ((flags&optimizeFlag)!=0)
+            System.out.println("Optimizer removed "+
+                    (compiler.generated-compiler.size-compiler.stripped)+
+                    " of "+compiler.generated+" instructions.");
+        if (compiler.stripped>0)
+            System.out.println("Stripped "+compiler.stripped+" load " +
+                    "instructions, their values are in the ram of the image.");
+        if (again)
+            System.out.println("Reused the code of "+compiler.reused+" of "+
+                    compiler.program.size()+" operations.");
+        if (key!=null)
+            try {
+                cache.put(key,compiler.getImage());
+            } catch (IOException e) {
+                System.out.println("compileOISC:compile:error when writing " +
+                        "cache: "+e.getMessage());
+            }
+    }
+    
+    /**
+     * Compiles given source code text with default flags, without
+     * writing any files
+     * 
+     * @param source PKOPL source
+     * @return assembly code lines in .mif content format, without padding
+     */
+    public static String compileString(String source) {
+        return compileString(source,defaultFlags);
+    }
+    
+    /**
+     * Compiles given source code text without writing any files
+     * 
+     * @param source PKOPL source
+     * @param flags sum of flags such as optimizeFlag
+     * @return assembly code lines in .mif content format, without padding
+     */
+    public static String compileString(String source, int flags) {
+        StringBuffer ret = new StringBuffer();
+        compileLines(source,flags&~stripFlag,null).format(ret);
+        return ret.toString();
+    }
+    
+    /**
+     * Compiles given source code text into decoded rom words with default
+     * flags, without writing any files
+     * 
+     * @param source PKOPL source
+     * @return rom words indexed by address
+     */
+    public static int[] compileRom(String source) {
+        return compileRom(source,defaultFlags);
+    }
+    
+    /**
+     * Compiles given source code text into decoded rom words, without
+     * writing any files
+     * 
+     * @param source PKOPL source
+     * @param flags sum of flags such as optimizeFlag
+     * @return rom words indexed by address
+     */
+    public static int[] compileRom(String source, int flags) {
+        return compileLines(source,flags&~stripFlag,null).getRom();
+    }
+    
+    /**
+     * Compiles given source code text into an image with default flags,
+     * without writing any files
+     * 
+     * @param source PKOPL source
+     * @return rom, ram set up by its load instructions and entry address
+     */
+    public static imageOISC compileImage(String source) {
+        return compileImage(source,defaultFlags);
+    }
+    
+    /**
+     * Compiles given source code text into an image, without writing any
+     * files
+     * 
+     * @param source PKOPL source
+     * @param flags sum of flags such as optimizeFlag
+     * @return rom, ram set up by its load instructions and entry address
+     */
+    public static imageOISC compileImage(String source, int flags) {
+        return compileLines(source,flags,null).getImage();
+    }
+    
+    /**
+     * Compiles given source code text into an image, without writing any
+     * files, and adds the messages of the compiler to given list instead
+     * of printing them
+     * 
+     * @param source PKOPL source
+     * @param flags sum of flags such as optimizeFlag
+     * @param messages list compiler messages are added to, null to print
+     * them
+     * @return rom, ram set up by its load instructions and entry address
+     */
+    public static imageOISC compileImage(String source, int flags,
+            List<String> messages) {
+        return compileLines(source,flags,null,messages).getImage();
+    }
+    
+    /**
+     * Reads given source file in the default charset, like the text
+     * readers of java.io do
+     * 
+     * @param inputFile file that contains source
+     * @return source text, backed by an array
+     */
+    private static CharBuffer readSource(String inputFile) throws IOException {
+        FileInputStream in = new FileInputStream(inputFile);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+            while ((channel.read(bytes)>=0)&&bytes.hasRemaining())
+                ;
+            bytes.flip();
+            return Charset.defaultCharset().decode(bytes);
+        }
+        finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Parses given source code (see parseOISC) and compiles its
+     * operations, then optimizes the generated code if asked to. Given a
+     * previous compilation, only the lines that changed are parsed again
+     * and the code of operations is reused where possible, see session.
+     * 
+     * @param source source code, char buffers given are kept by the
+     * compiler and must not change
+     * @param flags sum of flags such as optimizeFlag
+     * @param s session the compilation is part of, null for a compilation
+     * on its own
+     * @return compiler instance used, holds generated code and line count
+     */
+    private static compileOISC compileLines(CharSequence source, int flags,
+            session s) {
+        return compileLines(source,flags,s,null);
+    }
+    
+    /**
+     * Compiles like compileLines(source,flags,s), adding the messages of
+     * the compiler to given list instead of printing them
+     * 
+     * @param messages list compiler messages are added to, null to print
+     * them
+     */
+    private static compileOISC compileLines(CharSequence source, int flags,
+            session s, List<String> messages) {
+        compileOISC previous = (s==null) ? null : s.last;
         //create instance of compiler class to start reading
         compileOISC compiler = new compileOISC();
-
+        compiler.flags = flags;
+        compiler.said = messages;
+        if ((source instanceof CharBuffer)&&((CharBuffer) source).hasArray()&&
+                (((CharBuffer) source).arrayOffset()==0)&&
+                (((CharBuffer) source).position()==0))
+            compiler.text = ((CharBuffer) source).array();
+        else
+            compiler.text = source.toString().toCharArray();
+        compiler.textLength = source.length();
+        if ((previous!=null)&&(previous.flags==flags))
+            compiler.parse(previous);
+        else
+            compiler.parse(null);
+            
+        //load useful values
+        compiler.loadRefVals();
+        
+        //compile all operations, reusing the code of the previous
+        //compilation if all variables are still the same
+        compiler.recording = s!=null;
+        compiler.symbols = compiler.symbols();
+        if ((previous==null)||(previous.flags!=flags)||
+                !compiler.symbols.equals(previous.symbols))
+            Arrays.fill(compiler.opCodes,null);
+        //the last word stays free, C cannot jump past the end of rom
+        if ((flags&fastMathFlag)!=0)
+            compiler.fastRoom = virtualOISC.memSize-1-compiler.shortSize();
+        compiler.generate();
+        if ((flags&fastMathFlag)!=0)
+            compiler.remapJumps();
+        
+        if (compiler.pCount>virtualOISC.memSize)
+            compiler.say("compileOISC:compile:program needs "+
+                    compiler.pCount+" rom words, only "+virtualOISC.memSize+
+                    " fit. Code past address "+(virtualOISC.memSize-1)+
+                    " is left out.");
+        compiler.generated = compiler.size = Math.min(compiler.pCount,
+                virtualOISC.memSize);
+        if ((flags&optimizeFlag)!=0)
+            compiler.size = optimizeOISC.optimize(compiler.code,
+                    compiler.lines,compiler.size);
+        
+        compiler.initRam();
+        if ((flags&stripFlag)!=0) {
+            compiler.size = optimizeOISC.strip(compiler.code,compiler.lines,
+                    compiler.size,compiler.entry);
+            compiler.stripped = compiler.entry;
+            compiler.entry = 0;
+        }
+        if (s!=null)
+            s.last = compiler;
+        return compiler;
+    }
+    
+    /**
+     * Number of rom words the program takes with MUL compiled to its
+     * loop, found by compiling it quietly without fastMathFlag. Keeps
+     * where operations start and source jumps go in that code.
+     */
+    private int shortSize() {
+        compileOISC sizer = new compileOISC();
+        sizer.flags = flags&~fastMathFlag;
+        sizer.quiet = true;
+        sizer.program = program;
+        sizer.opLines = opLines;
+        sizer.opCodes = new opCode[program.size()];
+        sizer.loadRefVals();
+        sizer.generate();
+        shortStarts = sizer.opStarts;
+        shortTargets = new boolean[virtualOISC.memSize];
+        for (int i=0;i<Math.min(sizer.pCount,virtualOISC.memSize);i++)
+            if (sizer.sourceJumps[i])
+                shortTargets[virtualOISC.operC(sizer.code[i])] = true;
+        return sizer.pCount;
+    }
+    
+    /**
+     * True if a source jump goes into the code of given operation, past
+     * its first instruction, in the code with MUL compiled to its loop
+     */
+    private boolean jumpedInto(int op) {
+        for (int addr=shortStarts[op]+1;(addr<shortStarts[op+1])&&
+                (addr<virtualOISC.memSize);addr++)
+            if (shortTargets[addr])
+                return true;
+        return false;
+    }
+    
+    /**
+     * Move the addresses source jumps go to from the code with MUL
+     * compiled to its loop to the generated code. An address keeps its
+     * offset in the operation it is in, fast code is never jumped into
+     * (see useFastMath), and addresses past the program keep their
+     * distance from its end.
+     */
+    private void remapJumps() {
+        int ops = opStarts.length-1, shortEnd = shortStarts[ops];
+        for (int addr=0;addr<Math.min(pCount,virtualOISC.memSize);addr++) {
+            if (!sourceJumps[addr])
+                continue;
+            int target = virtualOISC.operC(code[addr]), to;
+            if (target>=shortEnd)
+                to = target+pCount-shortEnd;
+            else {
+                //last operation starting at or before target
+                int op = ops-1;
+                while ((op>=0)&&(shortStarts[op]>target))
+                    op--;
+                to = (op<0) ? target : opStarts[op]+target-shortStarts[op];
+            }
+            code[addr] = (code[addr]&~0xff)|
+                Math.min(to,virtualOISC.memSize-1);
+        }
+    }
+    
+    /**
+     * Parse text into program. Given the compiler of a previous
+     * compilation, only the lines from the first to the last one that
+     * changed are parsed, operations on other lines are taken over with
+     * their code and moved to their new line.
+     * 
+     * @param previous compiler of the previous compilation, or null
+     */
+    private void parse(compileOISC previous) {
+        parseOISC parser = new parseOISC();
+        if ((previous==null)||(previous.text==null)) {
+            program = parser.parse(text,0,textLength);
+            lineStarts = parser.getLineStarts();
+            lineCount = parser.getLines();
+            opLines = new int[program.size()];
+            for (int i=0;i<opLines.length;i++)
+                opLines[i] = program.get(i).line;
+            opCodes = new opCode[program.size()];
+            return;
+        }
+        
+        //characters both texts start and end with
+        char[] old = previous.text;
+        int oldLength = previous.textLength;
+        int max = Math.min(textLength,oldLength), prefix = 0, suffix = 0;
+        while ((prefix<max)&&(old[prefix]==text[prefix]))
+            prefix++;
+        while ((suffix<max-prefix)&&
+                (old[oldLength-1-suffix]==text[textLength-1-suffix]))
+            suffix++;
+        
+        //parse from the start of the line holding the first change, up to
+        //the first line whose line terminator is past the last change, so
+        //\r\n pairs at either end stay the same
+        int[] starts = previous.lineStarts;
+        int oldLines = previous.lineCount;
+        int first = (prefix==0) ? 0 : lineAt(starts,oldLines,prefix-1);
+        int last = first+1;
+        while ((last<oldLines)&&(starts[last]<oldLength-suffix+2))
+            last++;
+        last = Math.min(last,oldLines);
+        int end = textLength-(oldLength-starts[last]);
+        List<parseOISC.operation> parsed = parser.parse(text,starts[first],
+                end-starts[first],first+1);
+        int parsedLines = parser.getLines();
+        int[] parsedStarts = parser.getLineStarts();
+        lineCount = first+parsedLines+(oldLines-last);
+        
+        //line starts after the parsed lines move with the text
+        lineStarts = new int[lineCount+1];
+        System.arraycopy(starts,0,lineStarts,0,first);
+        System.arraycopy(parsedStarts,0,lineStarts,first,parsedLines);
+        for (int i=last;i<=oldLines;i++)
+            lineStarts[i-last+first+parsedLines] = starts[i]+
+                (textLength-oldLength);
+        
+        //operations before and after the parsed lines are kept, the
+        //latter moved by the number of lines added
+        int before = 0, after = previous.opLines.length;
+        while ((before<after)&&(previous.opLines[before]<=first))
+            before++;
+        while ((after>before)&&(previous.opLines[after-1]>last))
+            after--;
+        int count = before+parsed.size()+(previous.opLines.length-after);
+        int shift = parsedLines-(last-first);
+        program = new ArrayList<parseOISC.operation>(count);
+        program.addAll(previous.program.subList(0,before));
+        program.addAll(parsed);
+        program.addAll(previous.program.subList(after,
+                previous.program.size()));
+        opLines = new int[count];
+        opCodes = new opCode[count];
+        System.arraycopy(previous.opLines,0,opLines,0,before);
+        System.arraycopy(previous.opCodes,0,opCodes,0,before);
+        for (int i=0;i<parsed.size();i++)
+            opLines[before+i] = parsed.get(i).line;
+        for (int i=after;i<previous.opLines.length;i++) {
+            int j = i-after+before+parsed.size();
+            opLines[j] = previous.opLines[i]+shift;
+            opCodes[j] = previous.opCodes[i];
+        }
+    }
+    
+    /**Index of the line holding given offset, starts as in lineStarts*/
+    private static int lineAt(int[] starts, int lines, int offset) {
+        int low = 0, high = lines-1;
+        while (low<high) {
+            int mid = (low+high+1)>>>1;
+            if (starts[mid]<=offset)
+                low = mid;
+            else
+                high = mid-1;
+        }
+        return low;
+    }
+    
+    /**
+     * The DEF lines before the first other operation, which decide the
+     * addresses of all variables, as text
+     */
+    private String symbols() {
+        StringBuffer ret = new StringBuffer();
+        for (parseOISC.operation op : program) {
+            if ((op.operator==parseOISC.unknown)||!op.complete)
+                continue;
+            if (op.operator!=parseOISC.def)
+                break;
+            ret.append(op.operands[0].text).append(' ').
+                append(op.operands[1].text).append('\n');
+        }
+        return ret.toString();
+    }
+    
+    /**
+     * Generate the code of all operations of program. Code kept in
+     * opCodes is moved to the address of its operation where it is still
+     * valid, the other operations are compiled.
+     */
+    private void generate() {
+        opStarts = new int[opCodes.length+1];
+        for (int i=0;i<opCodes.length;i++) {
+            opStarts[i] = pCount;
+            opIndex = i;
+            opCode prev = opCodes[i];
+            if ((prev!=null)&&prev.fitsIn(fastRoom,
+                    (prev.fastSize!=0)&&jumpedInto(i))) {
+                place(prev,opLines[i]);
+                reused++;
+            }
+            else
+                opCodes[i] = compileOperation(program.get(i),opLines[i]);
+        }
+        opStarts[opCodes.length] = pCount;
+    }
+    
+    /**
+     * Place code of an operation, compiled before, at pCount. Instructions
+     * past the end of rom are left out, see emit.
+     * 
+     * @param op code of the operation
+     * @param line source line of the operation
+     */
+    private void place(opCode op, int line) {
+        sourceLine = line;
+        defEnd = true;
+        for (String message : op.messages)
+            say(message);
+        if (op.allocates&&(mathCells==null))
+            allocateMathCells();
+        fastRoom -= op.extra;
+        int start = pCount;
+        pCount += op.words.length;
+        for (int i=0;(i<op.words.length)&&(start+i<virtualOISC.memSize);i++) {
+            int word = op.words[i];
+            int target = word&0xff;
+            if ((word&relativeBit)!=0)
+                target = toAddress(start+target);
+            code[start+i] = (word&~relativeBit&~0xff)|target;
+            lines[start+i] = line;
+            sourceJumps[start+i] = (word&relativeBit)==0;
+        }
+    }
+    
+    /**
+     * Find the load instructions at the start of the code that only set
+     * up ram, and the ram they set up. They end at the first instruction
+     * that is not a load, writes ioPort, jumps, or is the target of a
+     * jump.
+     */
+    private void initRam() {
+        boolean[] target = new boolean[size+1];
+        for (int i=0;i<size;i++) {
+            int c = virtualOISC.operC(code[i]);
+            if ((c!=i+1)&&(c<=size))
+                target[c] = true;
+        }
+        
+        ram = new int[virtualOISC.memSize];
+        Arrays.fill(ram,virtualOISC.uninit);
+        for (entry=0;(entry<size)&&!target[entry];entry++) {
+            int word = code[entry];
+            if (!virtualOISC.isLoad(word)||
+                    (virtualOISC.operB(word)==virtualOISC.ioPort)||
+                    ((virtualOISC.operA(word)<=0)&&
+                    (virtualOISC.operC(word)!=entry+1)))
+                break;
+            ram[virtualOISC.operB(word)] = virtualOISC.operA(word);
+        }
+    }
+    
+    /**Append generated code as "address : instruction ;" lines*/
+    private void format(StringBuffer out) {
+        for (int i=0;i<size;i++)
+            formatLine(out,i);
+    }
+    
+    /**
+     * Append the "address : instruction ;" line of given address, followed
+     * by a comment naming its source line if there is one
+     */
+    private void formatLine(StringBuffer out, int addr) {
+        appendBin(out,addr,8);
+        out.append(" : ");
+        appendBin(out,code[addr],virtualOISC.instrWidth);
+        out.append(" ;");
+        if (lines[addr]!=0)
+            out.append(" -- line ").append(lines[addr]);
+        out.append(cr);
+    }
+    
+    /**Append the lowest width bits of value as 0s and 1s, high bit first*/
+    private static void appendBin(StringBuffer out, int value, int width) {
+        for (int i=width-1;i>=0;i--)
+            out.append((char) ('0'+((value>>>i)&1)));
+    }
+    
+    /**Generated code as rom words indexed by address*/
+    private int[] getRom() {
+        int[] rom = new int[virtualOISC.memSize];
+        System.arraycopy(code,0,rom,0,size);
+        return rom;
+    }
+    
+    /**Generated code as image with the ram its load instructions set up*/
+    private imageOISC getImage() {
+        return new imageOISC(getRom(),ram,lines,entry);
+    }
+    
+    /**
+     * Writes generated code to a .mif file, padding rom with
+     * empty instructions.
+     * 
+     * @param compiler compiler holding generated code
+     * @param targetFile file to write to
+     */
+    private static void writeMif(compileOISC compiler, String targetFile) {
         //file write library usage code taken from: 
         //http://www.javapractices.com/Topic42.cjp 
         Writer output = null;
         try {
-            StringBuffer  sourceoutput = new StringBuffer();
             output = new BufferedWriter( new FileWriter(targetFile) );
             
             //write mif headers 
@@ -267,20 +1098,18 @@ public class compileOISC {
                     "CONTENT"+cr+ 
                     "BEGIN"+cr);
             
-            //load useful values
-            sourceoutput.append(compiler.loadRefVals());
-            
-            //Read all lines
-            while (source.hasNextLine()) 
-                sourceoutput.append(compiler.compileLine(source.nextLine(),
-                        counter++));
-            
-            //write result
-            output.write(sourceoutput.toString());
-            
-            //fill lines upto 256
-            for (int i = compiler.getPCount();i<256;i++)
-                output.write(decToBin(i)+" : 0000000000000000000000000 ;"+cr);
+            //write result one line at a time through the same buffer,
+            //rom past the generated code is all empty words
+            StringBuffer line = new StringBuffer();
+            char[] chars = new char[64];
+            for (int i=0;i<virtualOISC.memSize;i++) {
+                line.setLength(0);
+                compiler.formatLine(line,i);
+                if (line.length()>chars.length)
+                    chars = new char[line.length()];
+                line.getChars(0,line.length(),chars,0);
+                output.write(chars,0,line.length());
+            }
             
             //write end mark
             output.write("END;"+cr);
@@ -301,9 +1130,22 @@ public class compileOISC {
                 System.exit(0);
             }
         }
-        
-        System.out.println("Finished compiling file "+inputFile+" "+
-                counter+" lines read.");
+    }
+    
+    /**
+     * Writes generated code to a binary rom image.
+     * 
+     * @param image image of generated code
+     * @param targetFile file to write to
+     */
+    private static void writeImage(imageOISC image, String targetFile) {
+        try {
+            image.write(targetFile);
+        } catch (IOException e) {
+            System.out.println("compileOISC:compile:error when writing to " +
+                    "file.");
+            System.exit(0);
+        }
     }
     
     /**Accessor fir program counter*/
@@ -311,72 +1153,95 @@ public class compileOISC {
         return pCount;
     }
     
-    /**Compiles a given line of source code.
-     * <br>Each line can only contain one operator. Operands are extracted
-     * and passed onto seperatemethods that handle different operations, where
+    /**Compiles a given operation.
+     * <br>Each line can only contain one operator. Operands are passed
+     * onto seperate methods that handle different operations, where
      * they are parsed further. 
      * 
-     * @param input string to compile
-     * @return String assembly code for this line
+     * @param op operation parsed from source
+     * @param line source line of the operation
+     * @return code generated if recording and op is not a DEF, else null
      */
-    private String compileLine(String input, int linenum) {
-        Scanner linereader = new Scanner(input);
-
-        //check if line empty
-        if (!linereader.hasNext())
-            return "";
+    private opCode compileOperation(parseOISC.operation op, int line) {
+        sourceLine = line;
+        int linenum = line-1;
+        parseOISC.operand[] opers = op.operands;
         
-        String oper = linereader.next();
-        StringBuffer ret = new StringBuffer();
+        //parse failed
+        if (op.operator==parseOISC.unknown) {
+            say("compileOISC:compileLine:Cannot parse operator \""
+                    +op.name+"\" on line " +linenum+", skipping line.");
+            return null;
+        }
+        if (!op.complete) {
+            say("compileOISC:compileLine:need more operands for " +
+                    op.name+ " on line "+linenum+".");
+            return null;
+        }
         
-        //parse operator 
-        try {
-            if (oper.equals("DEF"))
-                ret.append(define(linereader.next(),
-                        Byte.parseByte(linereader.next())));
-            
-            else if (oper.equals("JMP"))
-                ret.append(jump(linereader.next()));
-            
-            else if (oper.equals("ADD")) 
-                ret.append(add(linereader.next(),linereader.next(),
-                        linereader.next()));
-            
-            else if (oper.equals("SUB")) 
-                ret.append(sub(linereader.next(),linereader.next(),
-                        linereader.next()));
-                
-            else if (oper.equals("DIV")) 
-                ret.append(divide(linereader.next(),linereader.next(),
-                        linereader.next()));
-                
-            else if (oper.equals("MUL"))
-                ret.append(multiply(linereader.next(),linereader.next(),
-                        linereader.next()));
-                
-            else if (oper.equals("IFGT")) 
-                ret.append(ifgt(linereader.next(),linereader.next(),
-                        linereader.next()));                
-            
-            else if (oper.equals("IFLE")) 
-                ret.append(ifle(linereader.next(),linereader.next(),
-                        linereader.next()));                
-            
-            else if (oper.equals("MOV")) 
-                ret.append(move(linereader.next(),linereader.next()));
-            
-            //parse failed
-            else {
-                System.out.println("compileOISC:compileLine:Cannot parse operator \""
-                        +oper+"\" on line " +linenum+", skipping line.");
-                return "";
-            }
-        } catch (NoSuchElementException e) {
-            System.out.println("compileOISC:compileLine:need more operands for " +
-                    oper+ " on line "+linenum+".");
+        //record code of operations other than DEF, whose code only
+        //depends on the variables
+        if (recording&&(op.operator!=parseOISC.def)) {
+            current = new opCode();
+            currentWords = new int[16];
+            currentCount = 0;
+            currentMessages = new ArrayList<String>();
         }
         
-        return ret.toString();
+        switch (op.operator) {
+        case parseOISC.def:
+            define(opers[0],Byte.parseByte(opers[1].text));
+            break;
+        case parseOISC.jmp:
+            jump(opers[0]);
+            break;
+        case parseOISC.add:
+            add(opers[0],opers[1],opers[2]);
+            break;
+        case parseOISC.sub:
+            sub(opers[0],opers[1],opers[2]);
+            break;
+        case parseOISC.div:
+            divide(opers[0],opers[1],opers[2]);
+            break;
+        case parseOISC.mul:
+            multiply(opers[0],opers[1],opers[2]);
+            break;
+        case parseOISC.ifgt:
+            ifgt(opers[0],opers[1],opers[2]);
+            break;
+        case parseOISC.ifle:
+            ifle(opers[0],opers[1],opers[2]);
+            break;
+        case parseOISC.mov:
+            move(opers[0],opers[1]);
+            break;
+        }
+        
+        opCode ret = current;
+        current = null;
+        if (ret!=null) {
+            ret.words = Arrays.copyOf(currentWords,currentCount);
+            ret.messages = currentMessages.toArray(new String[0]);
+        }
+        return ret;
+    }
+    
+    /**Print given message, and record it with the current operation*/
+    private void message(String message) {
+        say(message);
+        if (current!=null)
+            currentMessages.add(message);
+    }
+    
+    /**Print given message, unless the compiler is quiet*/
+    private void say(String message) {
+        if (quiet)
+            return;
+        if (said!=null)
+            said.add(message);
+        else
+            System.out.println(message);
     }
     
     /**
@@ -385,67 +1250,61 @@ public class compileOISC {
      * 
      * @param varname name of variable to create
      * @param val value to initially assign to variable
-     * @return instruction to initialize mem loc with val
      */
-    private String define(String varname, int val) {
+    private void define(parseOISC.operand var, int val) {
+        String varname = var.text;
         if (defEnd) {
-            System.out.println("compileOISC:define:" +
+            say("compileOISC:define:" +
                     "can only define variables at beginning of file.");
-            return "";
+            return;
         }
 
         //check if variable name is only composed of numbers
-        else if (Pattern.matches("\\d+",varname)) {
-            System.out.println("compileOISC:define:" +
+        else if (var.kind==parseOISC.number) {
+            say("compileOISC:define:" +
                     "invalid variable name "+varname+" must also contain non-numeric " +
                     "characters.");
-            return "";
+            return;
         }
         //check if variable already exists
         variable oldvar = variables.get(varname);
         if (oldvar==null) {
             //check if number of max variables is exceeded
             if ((heapPtStart-heapPt)>=maxVar) {
-                System.out.println("compileOISC:define:out of heap space," +
+                say("compileOISC:define:out of heap space," +
                         " maximum number of variables exceeded. cannot define" +
                         " new variable "+varname+".");
-                return "";
+                return;
             }
             
             //create new variable object
             variable nvar = new variable(varname,heapPt,val);
-            String ret = loadABC(intToBin(val),parseOperand(heapPt)).
-                    toString();
+            loadABC(val,parseOperand(heapPt));
             //put new variable in hashtable
             variables.put(varname,nvar);
             //move heapPt down
             heapPt--;
-            return ret;
+            return;
         }
         //if variable already exists redefine
-        if (varname.equals("ioPort")) {
-            System.out.println("compileOISC:define:" +
+        if (varname.equals(ioPortName)) {
+            say("compileOISC:define:" +
             "ioPort is a reserved variable name.");
-            return "";
+            return;
         }
         variables.put(varname,new variable(varname,oldvar.getMemLoc(),
                 val));
         
-        return loadABC(intToBin(val),oldvar.getMemLocBin()).
-                toString();
+        loadABC(val,oldvar.getMemLoc());
     }
     
     /**Load useful values*/
-    private StringBuffer loadRefVals() {
-        StringBuffer ret = new StringBuffer();
-        
-        ret.append(loadABC("00000000",zeroRegister));
-        ret.append(loadABC("11111111",negOneRegister));
-        ret.append(loadABC("00000000",tempAReg));
-        ret.append(loadABC("00000000",tempBReg));
-        ret.append(loadABC("00000000",tempCReg));
-        
-        return ret;
+    private void loadRefVals() {
+        loadABC(0,zeroRegister);
+        loadABC(-1,negOneRegister);
+        loadABC(0,tempAReg);
+        loadABC(0,tempBReg);
+        loadABC(0,tempCReg);
     }
     
     
@@ -454,31 +1313,28 @@ public class compileOISC {
      * @param a first variable
      * @param b second variable
      * @param c dest variable
-     * @return source code that does c = a + b
      */
-    private StringBuffer add(String a, String b, String c) {
+    private void add(parseOISC.operand a, parseOISC.operand b,
+            parseOISC.operand c) {
         if (!defEnd)
             defEnd = true;
-        StringBuffer ret = new StringBuffer();
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
-        String operC = parseOperand(c);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
+        int operC = parseOperand(c);
         
         //if parse fails for any of the operands skip line
-        if ((operA==null)||(operB==null)||(operC==null))
-            return new StringBuffer();
+        if ((operA<0)||(operB<0)||(operC<0))
+            return;
         
         //generate assembly code
         //combine variables in temporary register
-        ret.append(insABC(operA,zeroRegister));
-        ret.append(insABC(operB,zeroRegister));
+        insABC(operA,zeroRegister);
+        insABC(operB,zeroRegister);
         //clear destination and store
-        ret.append(insABC(operC,operC));
-        ret.append(insABC(zeroRegister,operC));
+        insABC(operC,operC);
+        insABC(zeroRegister,operC);
         //clear zero register
-        ret.append(insABC(zeroRegister,zeroRegister));
-
-        return ret;
+        insABC(zeroRegister,zeroRegister);
     }
     
     /**
@@ -487,86 +1343,77 @@ public class compileOISC {
      * @param a first variable
      * @param b second variable
      * @param c destination var
-     * @return source code that does c = b - a
      */
-    private StringBuffer sub(String a, String b, String c) {
+    private void sub(parseOISC.operand a, parseOISC.operand b,
+            parseOISC.operand c) {
         if (!defEnd)
             defEnd = true;
-        StringBuffer ret = new StringBuffer();
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
-        String operC = parseOperand(c);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
+        int operC = parseOperand(c);
         
         //if parse fails for any of the operands skip this line
         //of source
-        if ((operA==null)||(operB==null)||(operC==null))
-            return new StringBuffer();
+        if ((operA<0)||(operB<0)||(operC<0))
+            return;
             
         //generate assembly code
-        ret.append(clearReg(tempAReg));
-        ret.append(clearReg(tempBReg));
+        clearReg(tempAReg);
+        clearReg(tempBReg);
         //ta = -a
-        ret.append(insABC(operA,tempAReg));
+        insABC(operA,tempAReg);
         //tb = -b
-        ret.append(insABC(operB,tempBReg));
+        insABC(operB,tempBReg);
         //ta = b-a
-        ret.append(insABC(tempBReg,tempAReg));
-        ret.append(insABC(operC,operC));
-        ret.append(clearReg(tempBReg));
-        ret.append(insABC(tempAReg,tempBReg));
-        ret.append(insABC(tempBReg,operC));
-        
-        return ret;
+        insABC(tempBReg,tempAReg);
+        insABC(operC,operC);
+        clearReg(tempBReg);
+        insABC(tempAReg,tempBReg);
+        insABC(tempBReg,operC);
     }
     
     /**
      * Generates assembly code that jumps to a
      * 
      * @param a jump loacta?on
-     * @return jump to a
      */
-    private StringBuffer jump(String a) {
+    private void jump(parseOISC.operand a) {
         if (!defEnd)
             defEnd = true;
-        String operA = parseOperand(a);
+        int operA = parseOperand(a);
         
         //if operand doesn't parse skip line
-        if (operA==null)
-            return new StringBuffer();
+        if (operA<0)
+            return;
         
         pCount++;
-        return insABC(zeroRegister,zeroRegister,operA);
+        insABC(zeroRegister,zeroRegister,operA);
     }
     
     /**
      * Jump indirect: jump to location in m(a)
      * 
      * @param a pointer location
-     * @return jump to m(a)
      */
-    private StringBuffer jumpi(String a) {
+    private void jumpi(parseOISC.operand a) {
         if (!defEnd)
             defEnd = true;
-        String operA = parseOperand(a);
+        int operA = parseOperand(a);
         
         //if operand doesn't parse skip line
-        if (operA==null)
-            return new StringBuffer();
-        
-        StringBuffer ret = new StringBuffer();
+        if (operA<0)
+            return;
         
         //zr=-m(a)
-        ret.append(insABC(operA,zeroRegister));
+        insABC(operA,zeroRegister);
         //tempa=0
-        ret.append(insABC(tempAReg,tempAReg));
+        insABC(tempAReg,tempAReg);
         //tempa=m(a)
-        ret.append(insABC(zeroRegister,tempAReg));
+        insABC(zeroRegister,tempAReg);
         //zr=0, jump to m(a)
         pCount++;
-        ret.append(insABC(zeroRegister,zeroRegister,
-                tempAReg));
-        
-        return ret;
+        insABC(zeroRegister,zeroRegister,
+                tempAReg);
     }
     
     
@@ -574,29 +1421,27 @@ public class compileOISC {
      * m(b) = m(a)
      * @param a mem loc a
      * @param b mem loc b
-     * @return assembly code that does m(b) = m(a)
      */
-    private StringBuffer move(String a, String b) {
+    private void move(parseOISC.operand a, parseOISC.operand b) {
         if (!defEnd)
             defEnd = true;
-        StringBuffer ret = new StringBuffer();
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
         
         //if parse fails for any of the operands skip this line
         //of source
-        if ((operA==null)||(operB==null))
-            return new StringBuffer();
+        if ((operA<0)||(operB<0))
+            return;
             
         //generate assembly code
-        //clear destination
-        ret.append(insABC(operB,operB));
-        ret.append(insABC(operA,zeroRegister));
-        ret.append(insABC(zeroRegister,operB));
+        //clear destination, unless it is the io address which reads as 0
+        //as destination and would take input as source
+        if (operB!=virtualOISC.ioPort)
+            insABC(operB,operB);
+        insABC(operA,zeroRegister);
+        insABC(zeroRegister,operB);
         //clear zeroRegister
-        ret.append(insABC(zeroRegister,zeroRegister));
-        
-        return ret;
+        insABC(zeroRegister,zeroRegister);
     }
     
     /**
@@ -605,48 +1450,45 @@ public class compileOISC {
      * @param a operand a
      * @param b operand b
      * @param c destination addr c
-     * @return m(c) = m(b) / m(a)
      */
-    private StringBuffer divide(String a,String b,String c) {
+    private void divide(parseOISC.operand a, parseOISC.operand b,
+            parseOISC.operand c) {
         if (!defEnd)
             defEnd = true;
-        
-        StringBuffer ret = new StringBuffer();
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
-        String operC = parseOperand(c);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
+        int operC = parseOperand(c);
         
         //if parse fails for any of the operands skip this line
         //of source
-        if ((operA==null)||(operB==null)||(operC==null))
-            return new StringBuffer();
+        if ((operA<0)||(operB<0)||(operC<0))
+            return;
+        if (useFastMath(fastDivSize,operA,operB,operC)) {
+            fastDivide(operA,operB,operC);
+            return;
+        }
+        int start = pCount;
         
         //Clear tempA
-        ret.append(clearReg(tempAReg));
-        ret.append(clearReg(tempBReg));
-        ret.append(clearReg(tempCReg));
+        clearReg(tempAReg);
+        clearReg(tempBReg);
+        clearReg(tempCReg);
         
         //load temp regs
         //tempb = b
-        ret.append(insABC(operB,tempAReg));
-        ret.append(insABC(tempAReg,tempBReg));
+        insABC(operB,tempAReg);
+        insABC(tempAReg,tempBReg);
 
         //tempc = a
-        ret.append(clearReg(tempAReg));
-        ret.append(insABC(operA,tempAReg));
-        ret.append(insABC(tempAReg,tempCReg));
-        ret.append(clearReg(operC));
+        clearReg(tempAReg);
+        insABC(operA,tempAReg);
+        insABC(tempAReg,tempCReg);
+        clearReg(operC);
 
         //c++
-        ret.append(insABC(negOneRegister,operC));
-        pCount++;
-        ret.append(insABC(tempCReg,tempBReg,
-                parseOperand(pCount+1)));
-        pCount++;
-        ret.append(insABC(zeroRegister,zeroRegister,
-                parseOperand(pCount-3)));
-           
-        return ret;
+        insABC(negOneRegister,operC);
+        branch(tempCReg,tempBReg,start+12);
+        branch(zeroRegister,zeroRegister,start+9);
     }
     
     /**
@@ -655,53 +1497,227 @@ public class compileOISC {
      * @param a operand a
      * @param b operand b
      * @param c destination addr c
-     * 
-     * @return m(c) = m(b) * m(a)
      */
-    private StringBuffer multiply(String a,String b,String c) {
+    private void multiply(parseOISC.operand a, parseOISC.operand b,
+            parseOISC.operand c) {
         if (!defEnd)
             defEnd = true;
-        
-        StringBuffer ret = new StringBuffer();
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
-        String operC = parseOperand(c);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
+        int operC = parseOperand(c);
         
         //if parse fails for any of the operands skip this line
         //of source
-        if ((operA==null)||(operB==null)||(operC==null))
-            return new StringBuffer();
+        if ((operA<0)||(operB<0)||(operC<0))
+            return;
+        if (useFastMath(fastMulSize,operA,operB,operC)) {
+            fastMultiply(operA,operB,operC);
+            return;
+        }
+        int start = pCount;
         
         //Clear registers
-        ret.append(clearReg(tempAReg));
-        ret.append(clearReg(tempBReg));
-        ret.append(clearReg(tempCReg));
+        clearReg(tempAReg);
+        clearReg(tempBReg);
+        clearReg(tempCReg);
         
         //tempb = b
-        ret.append(insABC(operB,tempAReg));
-        ret.append(insABC(tempAReg,tempBReg));
+        insABC(operB,tempAReg);
+        insABC(tempAReg,tempBReg);
         
         //tempc= 1
-        ret.append(insABC(negOneRegister,tempCReg));
+        insABC(negOneRegister,tempCReg);
         
         //tempa = -a
-        ret.append(clearReg(tempAReg));
-        ret.append(insABC(operA,tempAReg));
+        clearReg(tempAReg);
+        insABC(operA,tempAReg);
         
         //clear destination
-        ret.append(clearReg(operC));
+        clearReg(operC);
         
         //sub -a from dest and b--, when b<=0 esc
-        ret.append(insABC(tempAReg,operC));
-        pCount++;
-        ret.append(insABC(tempCReg,tempBReg,
-                parseOperand(pCount+1)));
+        insABC(tempAReg,operC);
+        branch(tempCReg,tempBReg,start+12);
         //loop back
-        pCount++;
-        ret.append(insABC(zeroRegister,zeroRegister,
-                parseOperand(pCount-3)));
+        branch(zeroRegister,zeroRegister,start+9);
+    }
+    
+    /**
+     * Check if fast MUL or DIV code should be generated: it has to be
+     * asked for with fastMathFlag, its words beyond those of the loop
+     * must fit in the rom words fastRoom the rest of the program leaves
+     * free, no source jump may go into the loop it replaces, it has to
+     * have its heap cells, and no operand may be the io address. Fast
+     * code is used in program order as long as it fits.
+     * 
+     * @param size number of rom words of the fast code
+     * @param opers parsed operands
+     * @return true if fast code should be generated
+     */
+    private boolean useFastMath(int size, int... opers) {
+        if ((flags&fastMathFlag)==0)
+            return false;
+        //the code now depends on where it is placed and jumps into it
+        boolean into = jumpedInto(opIndex);
+        if (current!=null) {
+            current.fastSize = size;
+            current.fits = size-mathSize<=fastRoom;
+            current.into = into;
+        }
+        if ((size-mathSize>fastRoom)||into)
+            return false;
+        for (int oper : opers)
+            if (oper==virtualOISC.ioPort)
+                return false;
+        if (mathCells==null) {
+            if ((heapPtStart-heapPt)+2>maxVar) {
+                message("compileOISC:useFastMath:out of heap " +
+                        "space, using short MUL and DIV code.");
+                return false;
+            }
+            allocateMathCells();
+            if (current!=null)
+                current.allocates = true;
+        }
+        fastRoom -= size-mathSize;
+        if (current!=null)
+            current.extra = size-mathSize;
+        return true;
+    }
+    
+    /**Allocate the heap cells of fast MUL and DIV code*/
+    private void allocateMathCells() {
+        mathCells = new int[2];
+        for (int i=0;i<mathCells.length;i++)
+            mathCells[i] = parseOperand(heapPt--);
+    }
+    
+    /**
+     * Multiply a by b and store in c, with shift and add. Gives the same
+     * result as the repeated subtraction loop of multiply unless the
+     * product overflows. Multipliers below slowSteps still use that loop.
+     * <br>The multiplier r is kept as n = 64-r, so its high bit is set
+     * when n&lt;=0. Each of the 7 steps doubles c, adds a if the high bit
+     * is set and shifts r left, which turns n into 2n+64 or 2n-64.
+     * 
+     * @param operA parsed operand a
+     * @param operB parsed operand b
+     * @param operC parsed destination c
+     */
+    private void fastMultiply(int operA, int operB, int operC) {
+        int k = mathCells[0], t = mathCells[1];
+        int start = pCount;
         
-        return ret;
+        //tempb = b, or 1 if b<=0 like the loop does
+        clearReg(tempAReg);
+        clearReg(tempBReg);
+        insABC(operB,tempAReg);
+        insABC(tempAReg,tempBReg);
+        branch(zeroRegister,tempBReg,start+6);
+        branch(zeroRegister,zeroRegister,start+8);
+        clearReg(tempBReg);
+        insABC(negOneRegister,tempBReg);
+        
+        //tempa = -a
+        clearReg(tempAReg);
+        insABC(operA,tempAReg);
+        
+        //small multipliers use the loop of multiply
+        loadABC(slowSteps,t);
+        branch(tempBReg,t,start+18);
+        clearReg(tempCReg);
+        insABC(negOneRegister,tempCReg);
+        clearReg(operC);
+        insABC(tempAReg,operC);
+        branch(tempCReg,tempBReg,start+fastMulSize);
+        branch(zeroRegister,zeroRegister,start+15);
+        
+        //tempc = n = 64-b, tempb counts steps from -6 to 0
+        loadABC(64,k);
+        loadABC(64,tempCReg);
+        insABC(tempBReg,tempCReg);
+        loadABC(-6,tempBReg);
+        clearReg(operC);
+        
+        //c = 2c
+        insABC(operC,zeroRegister);
+        insABC(zeroRegister,operC);
+        clearReg(zeroRegister);
+        //t = -n, if n<=0 high bit is set
+        loadABC(0,t);
+        insABC(tempCReg,t);
+        branch(zeroRegister,tempCReg,start+31);
+        insABC(k,tempCReg);
+        branch(zeroRegister,zeroRegister,start+33);
+        insABC(k,t);
+        insABC(tempAReg,operC);
+        //n = n-t
+        insABC(t,tempCReg);
+        branch(negOneRegister,tempBReg,start+23);
+    }
+    
+    /**
+     * Integer division b by a and store result in c. Gives the same
+     * result as the repeated subtraction loop of divide, which runs for up
+     * to divSteps steps first, and on its own if a&lt;=0.
+     * <br>b&gt;0 is left after that many steps only if a&lt;16 (b&lt;=0 can
+     * wrap in the first step, to 126 at most), so 8a is subtracted from b
+     * next as long as b stays above 0, then a. The
+     * steps are counted down from -1 in tempa, so each loop takes 2
+     * instructions instead of 3, and -tempa is added to c at the end.
+     * 
+     * @param operA parsed operand a
+     * @param operB parsed operand b
+     * @param operC parsed destination c
+     */
+    private void fastDivide(int operA, int operB, int operC) {
+        int k = mathCells[0], t = mathCells[1];
+        int start = pCount;
+        
+        //tempb = b, tempa = -a, tempc = a
+        clearReg(tempAReg);
+        clearReg(tempBReg);
+        clearReg(tempCReg);
+        insABC(operB,tempAReg);
+        insABC(tempAReg,tempBReg);
+        clearReg(tempAReg);
+        insABC(operA,tempAReg);
+        insABC(tempAReg,tempCReg);
+        clearReg(operC);
+        
+        //loop of divide, counting steps in k from -divSteps
+        loadABC(-divSteps,k);
+        insABC(negOneRegister,operC);
+        branch(tempCReg,tempBReg,start+fastDivSize);
+        branch(negOneRegister,k,start+10);
+        //k = a, a<=0 stays in the loop
+        loadABC(0,k);
+        branch(tempAReg,k,start+10);
+        
+        //k = 8a
+        insABC(tempAReg,k);
+        loadABC(0,t);
+        insABC(k,t);
+        insABC(t,k);
+        loadABC(0,t);
+        insABC(k,t);
+        insABC(t,k);
+        
+        //subtract 8a while b>0, tempa -= 8
+        loadABC(8,t);
+        loadABC(-1,tempAReg);
+        branch(k,tempBReg,start+26);
+        branch(t,tempAReg,start+24);
+        //b += 8a
+        loadABC(0,t);
+        insABC(k,t);
+        insABC(t,tempBReg);
+        
+        //subtract a until b<=0, tempa -= 1, c -= tempa
+        loadABC(1,t);
+        branch(tempCReg,tempBReg,start+32);
+        branch(t,tempAReg,start+30);
+        insABC(tempAReg,operC);
     }
     
     /**
@@ -710,37 +1726,34 @@ public class compileOISC {
      * @param a operand a
      * @param b operand b
      * @param c jump location
-     * @return jmp c if m(a)&lt;=m(b)
      */
-    private StringBuffer ifle(String a,String b,String c) {
+    private void ifle(parseOISC.operand a, parseOISC.operand b,
+            parseOISC.operand c) {
         if (!defEnd)
             defEnd = true;
         
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
-        String operC = parseOperand(c);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
+        int operC = parseOperand(c);
         
         //if parse fails for any of the operands skip this line
         //of source
-        if ((operA==null)||(operB==null)||(operC==null))
-            return new StringBuffer();
-        StringBuffer ret = new StringBuffer();
+        if ((operA<0)||(operB<0)||(operC<0))
+            return;
 
         //tempAReg = 0
-        ret.append(insABC(tempAReg,tempAReg)); 
+        insABC(tempAReg,tempAReg); 
         //tempAREg = -a
-        ret.append(insABC(operA,tempAReg));
+        insABC(operA,tempAReg);
         //tempBReg = 0
-        ret.append(insABC(tempBReg,tempBReg)); 
+        insABC(tempBReg,tempBReg); 
         //tempBReg = a
-        ret.append(insABC(tempAReg,tempBReg));
+        insABC(tempAReg,tempBReg);
         
         pCount++;
         //tempBReg = a-b, if tempBReg>=0 jmp
-        ret.append(insABC(operB,tempBReg,
-                operC));
-        
-        return ret;
+        insABC(operB,tempBReg,
+                operC);
     }
     
     /**
@@ -749,36 +1762,32 @@ public class compileOISC {
      * @param a operand
      * @param b operand
      * @param c jump location
-     * @return branching code
      */
-    private StringBuffer ifgt(String a, String b, String c) {
+    private void ifgt(parseOISC.operand a, parseOISC.operand b,
+            parseOISC.operand c) {
         if (!defEnd)
             defEnd = true;
-        
-        StringBuffer ret = new StringBuffer();
-        String operA = parseOperand(a);
-        String operB = parseOperand(b);
-        String operC = parseOperand(c);
+        int operA = parseOperand(a);
+        int operB = parseOperand(b);
+        int operC = parseOperand(c);
         
         //if parse fails for any of the operands skip this line
         //of source
-        if ((operA==null)||(operB==null)||(operC==null))
-            return new StringBuffer();
+        if ((operA<0)||(operB<0)||(operC<0))
+            return;
         
         //tempA = 0
-        ret.append(insABC(tempAReg,tempAReg));
+        insABC(tempAReg,tempAReg);
         //tempA = -A
-        ret.append(insABC(operA,tempAReg));
+        insABC(operA,tempAReg);
         //tempB = 0
-        ret.append(insABC(tempBReg,tempBReg));
+        insABC(tempBReg,tempBReg);
         //tempB = -B
-        ret.append(insABC(operB,tempBReg));
+        insABC(operB,tempBReg);
         pCount++;
         //tempA = B-A, if tempA<=0 jmp c
-        ret.append(insABC(tempBReg,tempAReg,
-                operC));
-        
-        return ret;
+        insABC(tempBReg,tempAReg,
+                operC);
     }
     
     /**
@@ -787,127 +1796,138 @@ public class compileOISC {
      * If neither is true, operand is treated as variable
      *  
      * @param operand raw operand
-     * @return 8-bit binary address
+     * @return 8-bit address, -1 if operand is an unknown variable
      */
-    private String parseOperand(String operand) {
-        //check if operand needs to be treated as decimal
-        if (Pattern.matches("\\d+",operand))
-            return decToBin(Integer.parseInt(operand));
-        
-        //check binary prefix
-        else if (operand.startsWith("#"))
-            return binToBin(operand.substring(1));
-        
-        //check hex prefix
-        else if (operand.startsWith("$"))
-            return hexToBin(operand.substring(1));
+    private int parseOperand(parseOISC.operand operand) {
+        switch (operand.kind) {
+        case parseOISC.number:
+            return toAddress(Integer.parseInt(operand.text));
+        case parseOISC.binary:
+            return binToInt(operand.digits());
+        case parseOISC.hex:
+            String warning = hexWarning(operand.digits());
+            if (warning!=null)
+                message(warning);
+            return hexValue(operand.digits());
+        }
         
         //lookup variable from table
-        variable var = variables.get(operand);
+        variable var = variables.get(operand.text);
         //check if variable exists
         if (var==null) {
-            System.out.println("compileOISC:parseOperand:" +
-                    "cannot find variable: "+operand);
-            return null;
+            message("compileOISC:parseOperand:" +
+                    "cannot find variable: "+operand.text);
+            return -1;
         }
         //return address assigned to variable
-        return var.getMemLocBin();
+        return var.getMemLoc();
     }
     
     /**parseOperand wrapper for handling integers directly*/
-    private String parseOperand(int operand) {
-        return decToBin(operand);
-    }
-    
-    /**Convert byte value to two's complement binary*/
-    public static String intToBin(int operand) {
-        //check bounds
-        if (operand>=127)
-            return "01111111";
-        else if (operand<=-127)
-            return "10000000";
-        else if (operand==0)
-            return "00000000";
-        else {
-            String binRep = "";
-            //if number is positive just create binary representation
-            //and pad with leading zeros
-            if (operand>0) {
-                binRep = Integer.toBinaryString(operand);
-                
-                for (int i=binRep.length();i<8;i++)
-                    binRep = "0"+binRep;
-            }
-            else {
-                int diff = operand + 128,i=64;
-                
-                while (diff!=0) {
-                    if (diff>=i) {
-                        diff -= i;
-                        binRep = binRep+"1";
-                    }
-                    else
-                        binRep = binRep+"0";
-                    
-                    i = i/2;
-                }
-                
-                binRep = "1"+binRep;
-            }
-            
-            return binRep;
-        }
+    private int parseOperand(int operand) {
+        return toAddress(operand);
     }
 
     /**Makes a single theInstruction using given parsed operands*/
-    private StringBuffer insABC(String a, String b, String c) {
-        StringBuffer ret = new StringBuffer();
-        ret.append(decToBin(pCount-1)+" : ");
-        ret.append(theInstruction);
-        ret.append(a);
-        ret.append(b);
-        ret.append(c);
-        ret.append(" ;"+cr);
-        return ret;
+    private void insABC(int a, int b, int c) {
+        emit(theInstruction|(a<<16)|(b<<8),c,false);
+    }
+    
+    /**
+     * Record instruction word at address pCount-1, with given C operand.
+     * Instructions past the end of rom are left out, compileLines reports
+     * that the program does not fit.
+     * 
+     * @param word instruction word without C operand
+     * @param c address C jumps to
+     * @param relative true if c is an address inside the code of the
+     * current operation, which moves along with it
+     */
+    private void emit(int word, int c, boolean relative) {
+        int addr = pCount-1;
+        if (addr<virtualOISC.memSize) {
+            code[addr] = word|toAddress(c);
+            lines[addr] = sourceLine;
+            sourceJumps[addr] = !relative;
+        }
+        
+        if (current!=null) {
+            //address of the first instruction of the operation
+            int start = pCount-1-currentCount;
+            if (currentCount==currentWords.length)
+                currentWords = Arrays.copyOf(currentWords,currentCount*2);
+            currentWords[currentCount++] = relative ?
+                    word|relativeBit|(c-start) : word|toAddress(c);
+        }
     }
     
     /**Wrapper for insABC that assumes jump to next line*/
-    private StringBuffer insABC(String a, String b) {
+    private void insABC(int a, int b) {
         pCount++;
-        return insABC(a,b,parseOperand(pCount));
+        emit(theInstruction|(a<<16)|(b<<8),pCount,true);
     }
     
-    /**Makes a single loadInstruction using given parsed operands*/
-    private StringBuffer loadABC(String a,String b,String c) {
-        StringBuffer ret = new StringBuffer();
-        //memory address
-        ret.append(decToBin(pCount-1)+" : ");
-        ret.append(loadInstruction);
-        ret.append(a);
-        ret.append(b);
-        ret.append(c);
-        ret.append(" ;"+cr);
-        return ret;
+    /**Wrapper for insABC that jumps to given address if result is <=0*/
+    private void branch(int a, int b, int target) {
+        pCount++;
+        emit(theInstruction|(a<<16)|(b<<8),target,true);
+    }
+    
+    /**
+     * Makes a single loadInstruction using given parsed operands, a is
+     * the immediate value
+     */
+    private void loadABC(int a, int b, int c) {
+        emit(loadInstruction|((toValue(a)&0xff)<<16)|(b<<8),c,false);
     }
     
     /**Wrapper for loadABC that assumes jump to next line*/
-    private StringBuffer loadABC(String a, String b) {
+    private void loadABC(int a, int b) {
         pCount++;
-        return loadABC(a,b,parseOperand(pCount));
+        emit(loadInstruction|((toValue(a)&0xff)<<16)|(b<<8),pCount,true);
     }
     
-    /**Returns code that clears given register*/
-    private StringBuffer clearReg(String a) {
-        return insABC(a,a);
+    /**Clears given register*/
+    private void clearReg(int a) {
+        insABC(a,a);
     }
     
     /**Main method handles command line input*/
     public static void main(String[] args) {
         try {
-            String sourceFile = args[0];
+            int flags = defaultFlags, arg = 0;
+            cacheOISC cache = null;
+            while (args[arg].startsWith("-")) {
+                if (args[arg].equals("-O"))
+                    flags |= optimizeFlag;
+                else if (args[arg].equals("-O0"))
+                    flags &= ~optimizeFlag;
+                else if (args[arg].equals("-Ofast"))
+                    flags |= optimizeFlag|fastMathFlag;
+                else if (args[arg].equals("-strip"))
+                    flags |= stripFlag;
+                else if (args[arg].equals("-cache")) {
+                    arg++;
+                    try {
+                        cache = new cacheOISC(args[arg],
+                                cacheOISC.defaultCapacity);
+                    } catch (IOException e) {
+                        System.out.println("Cannot create cache directory: "+
+                                args[arg]);
+                        System.exit(0);
+                    }
+                }
+                else {
+                    System.out.println("Unknown option "+args[arg]+".");
+                    System.exit(0);
+                }
+                arg++;
+            }
+            
+            String sourceFile = args[arg];
             String targetFile;
-            if (args.length>1) {
-                targetFile = args[1];
+            if (args.length>arg+1) {
+                targetFile = args[arg+1];
                 System.out.println("Using output file: "+targetFile);
             }
             else {
@@ -917,7 +1937,7 @@ public class compileOISC {
             
             
             //Compile
-            compileOISC.compile(sourceFile,targetFile);
+            compileOISC.compile(sourceFile,targetFile,flags,cache);
         }
         catch (ArrayIndexOutOfBoundsException e) {
             System.out.println("Invalid input, you need to specify source file.");
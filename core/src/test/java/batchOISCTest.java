@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of batch runs: the report has the status the interpreter gives
+ * every program, and compiler messages are printed after the run that
+ * compiled the program, in manifest order.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class batchOISCTest {
+    private static final String[] statusNames = {"halted","fault","budget",
+        "timeout","loop","io"};
+
+    @Test
+    void reportAndMessagesFollowManifest() throws IOException {
+        Random random = new Random(8);
+        Path dir = Files.createTempDirectory("batchOISCTest");
+        List<Path> files = new ArrayList<Path>();
+        try {
+            int runs = 24;
+            String[] expected = new String[runs];
+            StringBuffer manifest = new StringBuffer();
+            for (int i=0;i<runs;i++) {
+                //every program has a line the compiler warns about
+                String src = sampleOISC.random(random,2+random.nextInt(10),1,
+                        sampleOISC.math)+"FOO V"+i+"\n";
+                Path file = dir.resolve("p"+i+".pk");
+                Files.write(file,src.getBytes("US-ASCII"));
+                files.add(file);
+                manifest.append("p"+i+".pk\n");
+                virtualOISC vm = new virtualOISC(compileOISC.compileImage(src));
+                vm.setBudget(sampleOISC.budget);
+                vm.interpret();
+                expected[i] = statusNames[vm.getStatus()];
+            }
+            Path manifestFile = dir.resolve("manifest.txt");
+            Path report = dir.resolve("report.json");
+            Files.write(manifestFile,manifest.toString().getBytes("US-ASCII"));
+            files.add(manifestFile);
+            files.add(report);
+
+            PrintStream out = System.out;
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(printed,true));
+            try {
+                batchOISC.batch(manifestFile.toString(),report.toString(),4,
+                        sampleOISC.budget,0);
+            }
+            finally {
+                System.setOut(out);
+            }
+
+            String text = new String(Files.readAllBytes(report),"US-ASCII");
+            String[] lines = printed.toString().split("\\r?\\n");
+            int at = 0;
+            for (int i=0;i<runs;i++) {
+                assertTrue(text.contains("\"program\": \"p"+i+".pk\", " +
+                        "\"input\": null, \"status\": \""+expected[i]+"\""),
+                        "run "+i);
+                while (!lines[at].startsWith("Line "))
+                    at++;
+                assertEquals("Line "+(i+1)+" p"+i+".pk: "+expected[i],
+                        lines[at++]);
+                assertTrue(lines[at].contains("\"FOO\""),lines[at]);
+            }
+        }
+        finally {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+}
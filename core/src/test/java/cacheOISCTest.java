@@ -0,0 +1,153 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the image cache: an image taken from the cache has to run like
+ * the image compiled from the source, whichever instance stored it, and
+ * the cache has to stay below its size cap.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class cacheOISCTest {
+    @Test
+    void hitGivesCompiledImage() throws IOException {
+        Path directory = Files.createTempDirectory("cacheOISCTest");
+        try {
+            Random random = new Random(20);
+            cacheOISC cache = new cacheOISC(directory.toString(),
+                    cacheOISC.defaultCapacity);
+            int[] flags = {0,compileOISC.optimizeFlag,compileOISC.stripFlag,
+                    compileOISC.fastMathFlag|compileOISC.optimizeFlag};
+            for (int i=0;i<20;i++) {
+                String src = sampleOISC.randomJumps(random,
+                        2+random.nextInt(12));
+                int flag = flags[i%flags.length];
+                imageOISC image = compileOISC.compileImage(src,flag);
+                imageOISC stored = cache.compileImage(src,flag);
+                //a new instance only finds what the first one stored
+                imageOISC hit = new cacheOISC(directory.toString(),
+                        cacheOISC.defaultCapacity).compileImage(src,flag);
+                assertArrayEquals(image.getRom(),hit.getRom(),src);
+                assertArrayEquals(image.getRam(),hit.getRam(),src);
+                assertEquals(image.getEntry(),hit.getEntry(),src);
+                assertEquals(sampleOISC.interpret(src,0),
+                        sampleOISC.interpret(hit),src);
+                assertEquals(sampleOISC.interpret(stored),
+                        sampleOISC.interpret(hit),src);
+            }
+            assertEquals(0,cache.getHits());
+            assertEquals(20,cache.getMisses());
+        }
+        finally {
+            for (Path file : files(directory,"*"))
+                Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void flagsAreSeparateEntries() throws IOException {
+        Path directory = Files.createTempDirectory("cacheOISCTest");
+        try {
+            cacheOISC cache = new cacheOISC(directory.toString(),
+                    cacheOISC.defaultCapacity);
+            String src = "DEF A 3\nDEF B 4\nMUL A B A\n";
+            cache.compileImage(src,0);
+            cache.compileImage(src,compileOISC.fastMathFlag);
+            cache.compileImage(src,0);
+            assertEquals(1,cache.getHits());
+            assertEquals(2,cache.getMisses());
+            assertEquals(2,files(directory,"*"+imageOISC.extension).size());
+        }
+        finally {
+            for (Path file : files(directory,"*"))
+                Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void hitHasNoMessages() throws IOException {
+        Path directory = Files.createTempDirectory("cacheOISCTest");
+        try {
+            cacheOISC cache = new cacheOISC(directory.toString(),
+                    cacheOISC.defaultCapacity);
+            String src = "DEF A 1\nFOO A A A\nADD A A A\n";
+            List<String> messages = new ArrayList<String>();
+            cache.compileImage(src,0,messages);
+            assertEquals(1,messages.size());
+            assertTrue(messages.get(0).contains("FOO"));
+
+            messages.clear();
+            assertEquals(sampleOISC.interpret(src,0),
+                    sampleOISC.interpret(cache.compileImage(src,0,messages)));
+            assertTrue(messages.isEmpty());
+            assertEquals(1,cache.getHits());
+        }
+        finally {
+            for (Path file : files(directory,"*"))
+                Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void evictionKeepsSizeCap() throws IOException {
+        Path directory = Files.createTempDirectory("cacheOISCTest");
+        try {
+            imageOISC image = compileOISC.compileImage("DEF A 1\n",0);
+            Path file = directory.resolve("size"+imageOISC.extension);
+            image.write(file.toString());
+            long size = Files.size(file);
+            Files.delete(file);
+
+            //room for two images
+            cacheOISC cache = new cacheOISC(directory.toString(),
+                    size*2+size/2);
+            String last = null;
+            for (int i=0;i<5;i++) {
+                last = "DEF A "+(i+1)+"\nADD A A A\n";
+                cache.compileImage(last,0);
+                assertTrue(files(directory,"*"+imageOISC.extension).size()<=2);
+            }
+            assertEquals(5,cache.getMisses());
+            //the image just stored is never evicted
+            assertEquals(sampleOISC.interpret(last,0),
+                    sampleOISC.interpret(cache.compileImage(last,0)));
+            assertEquals(1,cache.getHits());
+        }
+        finally {
+            for (Path file : files(directory,"*"))
+                Files.delete(file);
+            Files.delete(directory);
+        }
+    }
+
+    /**Files of given directory matching given glob*/
+    private static List<Path> files(Path directory, String glob)
+            throws IOException {
+        List<Path> ret = new ArrayList<Path>();
+        DirectoryStream<Path> dir = Files.newDirectoryStream(directory,glob);
+        try {
+            for (Path file : dir)
+                ret.add(file);
+        }
+        finally {
+            dir.close();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of code generation: programs compiled with -Ofast have to give
+ * the same results as with -O0, jump addresses in source included.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class compileOISCTest {
+    private static final int fast = compileOISC.fastMathFlag;
+
+    /**
+     * Result with the given number of variables only, fast MUL and DIV use
+     * the cells below them
+     */
+    private static String declared(String source, int flags, int vars) {
+        String[] words = sampleOISC.interpret(source,flags).split(" ");
+        return String.join(" ",java.util.Arrays.copyOf(words,
+                Math.min(words.length,vars+1)));
+    }
+
+    /**A jump over code after a MUL, to an address of the -O0 code*/
+    @Test
+    void fastMathMovesSourceJumps() {
+        String src = "DEF A 3\nDEF B 4\nDEF C 0\nDEF D 9\nMUL A B C\n" +
+                "JMP 26\nMOV A D\n";
+        assertEquals("halted 3 4 12 9",declared(src,0,4));
+        assertEquals("halted 3 4 12 9",declared(src,fast,4));
+        assertEquals("halted 3 4 12 9",declared(src,
+                fast|compileOISC.optimizeFlag,4));
+        assertEquals("halted 3 4 12 9",declared(src,
+                fast|compileOISC.stripFlag,4));
+    }
+
+    /**A jump into the loop of a MUL keeps that loop*/
+    @Test
+    void fastMathKeepsLoopJumpedInto() {
+        //the MUL takes addresses 9 to 20, 17 is inside its loop
+        String src = "DEF A 3\nDEF B 4\nDEF C 0\nDEF D 1\nMUL A B C\n" +
+                "SUB D D D\nIFGT D B 17\n";
+        assertEquals(compileOISC.compileString(src,0),
+                compileOISC.compileString(src,fast));
+        assertEquals(declared(src,0,4),declared(src,fast,4));
+    }
+
+    /**Operands over the whole word range, wrapping ones included*/
+    @Test
+    void fastDivideMatchesLoop() {
+        for (int a=-128;a<128;a+=5)
+            for (int b=-128;b<128;b+=3) {
+                String src = "DEF A "+a+"\nDEF B "+b+"\nDEF C 0\n" +
+                        "DIV A B C\n";
+                assertEquals(declared(src,0,3),declared(src,fast,3),src);
+            }
+    }
+
+    @Test
+    void fastMathMatchesO0() {
+        Random random = new Random(14);
+        for (int i=0;i<300;i++) {
+            String src = sampleOISC.random(random,4+random.nextInt(20),1,
+                    sampleOISC.math);
+            assertEquals(sampleOISC.interpret(src,0),
+                    sampleOISC.interpret(src,fast),src);
+        }
+    }
+
+    @Test
+    void fastMathMatchesO0WithJumps() {
+        Random random = new Random(1414);
+        for (int i=0;i<300;i++) {
+            String src = sampleOISC.randomJumps(random,4+random.nextInt(14));
+            String slow = sampleOISC.interpret(src,0);
+            assertEquals(slow,sampleOISC.interpret(src,fast),src);
+            assertEquals(slow,sampleOISC.interpret(src,
+                    fast|compileOISC.optimizeFlag),src);
+            assertEquals(slow,sampleOISC.interpret(src,
+                    fast|compileOISC.stripFlag),src);
+        }
+    }
+}
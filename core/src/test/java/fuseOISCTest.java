@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of superinstructions: a run with fusion has to end with the ram
+ * contents, pCount, status and instruction count of the same run without
+ * it, also when the budget runs out in the middle of a superinstruction.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class fuseOISCTest {
+    @Test
+    void fusionMatchesInstructions() {
+        Random random = new Random(21);
+        int[] flags = {0,compileOISC.optimizeFlag,
+                compileOISC.fastMathFlag|compileOISC.optimizeFlag};
+        for (int i=0;i<300;i++) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(20));
+            imageOISC image = compileOISC.compileImage(src,flags[i%3]);
+            assertEquals(run(image,false,sampleOISC.budget),
+                    run(image,true,sampleOISC.budget),src);
+        }
+    }
+
+    @Test
+    void fusionStopsAtBudget() {
+        Random random = new Random(22);
+        for (int i=0;i<20;i++) {
+            String src = sampleOISC.random(random,2+random.nextInt(6),1,
+                    sampleOISC.math);
+            imageOISC image = compileOISC.compileImage(src,0);
+            for (long budget=1;budget<300;budget++)
+                assertEquals(run(image,false,budget),run(image,true,budget),
+                        "budget "+budget+":\n"+src);
+        }
+    }
+
+    @Test
+    void macrosAreFused() {
+        imageOISC image = compileOISC.compileImage(
+                "DEF A 3\nDEF B 4\nDEF C 0\nMOV A C\nADD A B C\nMUL A B C\n",
+                0);
+        boolean[] found = new boolean[3];
+        for (int addr=0;addr<virtualOISC.memSize;addr++)
+            if (image.fused[addr]!=null)
+                found[image.fused[addr].kind] = true;
+        assertTrue(found[fuseOISC.move]);
+        assertTrue(found[fuseOISC.add]);
+        assertTrue(found[fuseOISC.loop]);
+    }
+
+    /**Everything a run of given image leaves behind, as text*/
+    private static String run(imageOISC image, boolean fusion, long budget) {
+        virtualOISC vm = new virtualOISC(image);
+        vm.setFusion(fusion);
+        vm.setBudget(budget);
+        long count = vm.interpret();
+        StringBuffer ret = new StringBuffer();
+        ret.append("status "+vm.getStatus()+" pc "+vm.getPCount()+
+                " fault "+vm.getFault()+" count "+count+" ram");
+        for (int i=0;i<virtualOISC.memSize;i++)
+            ret.append(' ').append(vm.getRam(i));
+        return ret.toString();
+    }
+}
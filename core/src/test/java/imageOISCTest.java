@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of binary images: an image read back from its file has to be the
+ * image that was written, with or without the load instructions in rom,
+ * and an image without them has to run like the code compiled with -O0.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class imageOISCTest {
+    @Test
+    void readGivesWrittenImage() throws IOException {
+        Random random = new Random(5);
+        Path file = Files.createTempFile("imageOISCTest",imageOISC.extension);
+        try {
+            for (int i=0;i<50;i++) {
+                String src = sampleOISC.randomJumps(random,2+random.nextInt(12));
+                int flags = (i%2==0) ? 0 : compileOISC.stripFlag;
+                imageOISC image = compileOISC.compileImage(src,flags);
+                image.write(file.toString());
+                imageOISC read = imageOISC.read(file.toString());
+                assertArrayEquals(image.getRom(),read.getRom(),src);
+                assertArrayEquals(image.getRam(),read.getRam(),src);
+                assertEquals(image.getEntry(),read.getEntry(),src);
+                assertEquals(sampleOISC.interpret(image),
+                        sampleOISC.interpret(read),src);
+            }
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void strippedMatchesO0() {
+        Random random = new Random(16);
+        for (int i=0;i<300;i++) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(20));
+            int flags = compileOISC.stripFlag|
+                ((i%2==0) ? 0 : compileOISC.optimizeFlag);
+            imageOISC image = compileOISC.compileImage(src,flags),
+                kept = compileOISC.compileImage(src,
+                        flags&~compileOISC.stripFlag);
+            assertEquals(sampleOISC.interpret(src,0),
+                    sampleOISC.interpret(image),src);
+            //the loads runs start past are left out of rom
+            assertEquals(0,image.getEntry(),src);
+            assertArrayEquals(kept.getRam(),image.getRam(),src);
+            assertEquals(loads(kept)-kept.getEntry(),loads(image),src);
+        }
+    }
+
+    @Test
+    void readRejectsTruncatedImage() throws IOException {
+        final Path file = Files.createTempFile("imageOISCTest",
+                imageOISC.extension);
+        try {
+            compileOISC.compileImage("DEF A 1\nADD A A A\n",0)
+                    .write(file.toString());
+            RandomAccessFile raf = new RandomAccessFile(file.toFile(),"rw");
+            try {
+                raf.setLength(raf.length()-1);
+            }
+            finally {
+                raf.close();
+            }
+            assertThrows(IOException.class,() ->
+                    imageOISC.read(file.toString()));
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    /**Number of load instructions in rom of given image*/
+    private static int loads(imageOISC image) {
+        int ret = 0;
+        for (int word : image.getRom())
+            if (virtualOISC.isLoad(word))
+                ret++;
+        return ret;
+    }
+}
@@ -0,0 +1,43 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the jit: a jit compiled program has to leave ram, pCount,
+ * status and instruction count like the interpreter does.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class jitOISCTest {
+    @Test
+    void jitMatchesInterpreter() {
+        Random random = new Random(3);
+        for (int i=0;i<20;i++) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(14));
+            virtualOISC vm = new virtualOISC(compileOISC.compileImage(src,
+                    (i%2==0) ? 0 : compileOISC.optimizeFlag));
+            vm.setBudget(sampleOISC.budget);
+            long count = vm.interpret();
+            int status = vm.getStatus(), pc = vm.getPCount();
+            int[] ram = sampleOISC.ram(vm);
+
+            assertTrue(vm.jit(),src);
+            long jitCount = vm.runJit();
+            //the jit does not look for endless loops, it runs to the budget
+            if ((status!=virtualOISC.halted)&&(status!=virtualOISC.faulted)) {
+                assertEquals(virtualOISC.outOfBudget,vm.getStatus(),src);
+                continue;
+            }
+            assertEquals(status,vm.getStatus(),src);
+            assertEquals(count,jitCount,src);
+            assertEquals(pc,vm.getPCount(),src);
+            assertArrayEquals(ram,sampleOISC.ram(vm),src);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of lockstep sweeps: every lane has to give the result the
+ * interpreter gives for the program with its value in V0, also when the
+ * lanes take different branches.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class lockstepOISCTest {
+    private static final Pattern def = Pattern.compile("DEF V0 -?\\d+"),
+        jump = Pattern.compile("(?m)^(JMP|IFGT|IFLE) .*?(\\d+)$");
+
+    /**
+     * True if no jump of given source goes into the load instructions at
+     * the start of rom, which would set V0 again
+     */
+    private static boolean jumpsPastLoads(String source, imageOISC image) {
+        int loads = 0;
+        while (virtualOISC.isLoad(image.rom[loads]))
+            loads++;
+        Matcher m = jump.matcher(source);
+        while (m.find())
+            if (Integer.parseInt(m.group(2))<loads)
+                return false;
+        return true;
+    }
+
+    /**Result of given lane, see sampleOISC.result*/
+    private static String result(lockstepOISC sweep, int lane) {
+        int[] ram = new int[virtualOISC.memSize];
+        for (int i=0;i<ram.length;i++)
+            ram[i] = sweep.getRam(lane,i);
+        return sampleOISC.result(sweep.getStatus(lane),ram);
+    }
+
+    @Test
+    void lanesMatchInterpreter() {
+        Random random = new Random(22);
+        int programs = 0;
+        while (programs<60) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(14));
+            imageOISC image = compileOISC.compileImage(src,0);
+            if (!jumpsPastLoads(src,image))
+                continue;
+            programs++;
+            int lanes = 29;
+            lockstepOISC sweep = new lockstepOISC(image,lanes);
+            sweep.setBudget(sampleOISC.budget);
+            for (int i=0;i<lanes;i++)
+                sweep.setRam(i,sampleOISC.firstVar,-128+9*i);
+            sweep.run();
+            for (int i=0;i<lanes;i++) {
+                String lane = def.matcher(src).replaceFirst(
+                        "DEF V0 "+(-128+9*i));
+                String expected = sampleOISC.interpret(lane,0);
+                //the interpreter finds endless loops, lanes use the budget
+                if (!expected.startsWith("halted"))
+                    expected = "stopped";
+                assertEquals(expected,result(sweep,i),lane);
+            }
+        }
+    }
+}
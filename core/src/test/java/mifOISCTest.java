@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the .mif reader: files written by compileOISC have to read
+ * back as the rom and source lines compiled, and the other supported
+ * syntax has to give the rom it describes.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class mifOISCTest {
+    private static final int size = virtualOISC.memSize;
+
+    /**Rom read from a .mif file with given contents*/
+    private static int[] read(String contents) throws IOException {
+        Path file = Files.createTempFile("mifOISCTest",".mif");
+        try {
+            Files.write(file,contents.getBytes("US-ASCII"));
+            int[] rom = new int[size];
+            mifOISC.read(file.toString(),rom);
+            return rom;
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void readGivesCompiledRom() throws IOException {
+        Random random = new Random(6);
+        Path source = Files.createTempFile("mifOISCTest",".pk");
+        Path mif = Files.createTempFile("mifOISCTest",".mif");
+        try {
+            for (int i=0;i<20;i++) {
+                String src = sampleOISC.randomJumps(random,2+random.nextInt(14));
+                Files.write(source,src.getBytes("US-ASCII"));
+                compileOISC.compile(source.toString(),mif.toString(),0);
+
+                int[] rom = new int[size], lines = new int[size];
+                mifOISC.read(mif.toString(),rom,lines);
+                assertArrayEquals(compileOISC.compileRom(src,0),rom,src);
+                imageOISC image = compileOISC.compileImage(src,0);
+                for (int j=0;j<size;j++)
+                    assertEquals(image.getLine(j),lines[j],src);
+            }
+        }
+        finally {
+            Files.delete(source);
+            Files.delete(mif);
+        }
+    }
+
+    @Test
+    void readsOtherSyntax() throws IOException {
+        int[] rom = read("% header %\nwidth=25; depth = 16;\n" +
+                "address_radix = dec; data_radix = hex;\n" +
+                "content begin\n" +
+                "  [0..3] : 1 2; -- repeated over the range\n" +
+                "  4 : 1FFFFFF 0 7;\n" +
+                "  12 : 10;\n" +
+                "end;\n");
+        int[] expected = new int[size];
+        expected[0] = expected[2] = 1;
+        expected[1] = expected[3] = 2;
+        expected[4] = 0x1ffffff;
+        expected[6] = 7;
+        expected[12] = 0x10;
+        assertArrayEquals(expected,rom);
+    }
+
+    @Test
+    void errorsGiveLineAndColumn() {
+        IOException e = assertThrows(IOException.class,() ->
+                read("WIDTH = 25;\nDEPTH = 256;\nCONTENT BEGIN\n" +
+                        "0 : 2;\n1 2;\nEND;\n"));
+        assertTrue(e.getMessage().endsWith(".mif:5:3: expected ':'."),
+                e.getMessage());
+    }
+}
@@ -0,0 +1,110 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the multi core simulator: a core that is the only one, or the
+ * only one using its cells, gives the same results as the interpreter, in
+ * both modes. A failing io port stops the core at the instruction using
+ * it, like in virtualOISC.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class multiOISCTest {
+    /**Result of the first core of given machine, see sampleOISC.result*/
+    private static String result(multiOISC machine) {
+        int[] ram = new int[virtualOISC.memSize];
+        for (int i=0;i<ram.length;i++)
+            ram[i] = machine.getRam(i);
+        return sampleOISC.result(machine.getStatus(0),ram);
+    }
+
+    private static multiOISC machine(imageOISC... images) {
+        multiOISC machine = new multiOISC(images);
+        machine.setBudget(sampleOISC.budget);
+        return machine;
+    }
+
+    @Test
+    void singleCoreMatchesInterpreter() throws InterruptedException {
+        Random random = new Random(25);
+        for (int i=0;i<100;i++) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(14));
+            imageOISC image = compileOISC.compileImage(src,0);
+            String expected = sampleOISC.interpret(image);
+
+            multiOISC machine = machine(image);
+            machine.runScheduled();
+            assertEquals(expected,result(machine),src);
+            machine = machine(image);
+            machine.setQuantum(1000);
+            machine.runScheduled();
+            assertEquals(expected,result(machine),src);
+            machine = machine(image);
+            machine.runThreads();
+            assertEquals(expected,result(machine),src);
+        }
+    }
+
+    /**A second core that halts at once does not change the first*/
+    @Test
+    void otherCoreDoesNotChangeResults() throws InterruptedException {
+        Random random = new Random(2525);
+        imageOISC empty = new imageOISC(new int[virtualOISC.memSize],null);
+        for (int i=0;i<50;i++) {
+            String src = sampleOISC.random(random,2+random.nextInt(14),1,
+                    sampleOISC.math);
+            imageOISC image = compileOISC.compileImage(src,
+                    compileOISC.optimizeFlag);
+            multiOISC machine = machine(image,empty);
+            machine.runThreads();
+            assertEquals(sampleOISC.interpret(image),result(machine),src);
+            assertEquals(virtualOISC.halted,machine.getStatus(1));
+        }
+    }
+
+    /**Port whose input fails on the first read*/
+    private static portOISC failingPort() {
+        return new portOISC(new portOISC.source() {
+            public int read(byte[] buf, int off, int len) throws IOException {
+                throw new IOException("failed");
+            }
+            public void close() {}
+        },null);
+    }
+
+    @Test
+    void portFailureStopsCore() throws InterruptedException {
+        int[] rom = new int[virtualOISC.memSize];
+        //m(0) = 5, m(0) -= input, m(1) = 1
+        rom[0] = virtualOISC.loadBit|(5<<16)|(0<<8)|1;
+        rom[1] = (virtualOISC.ioPort<<16)|(0<<8)|2;
+        rom[2] = virtualOISC.loadBit|(1<<16)|(1<<8)|3;
+        imageOISC image = new imageOISC(rom,null);
+        virtualOISC vm = new virtualOISC(image);
+        vm.setPort(failingPort());
+        vm.interpret();
+        assertEquals(virtualOISC.ioFailed,vm.getStatus());
+
+        for (int mode=0;mode<2;mode++) {
+            multiOISC machine = machine(image);
+            machine.setPort(failingPort());
+            if (mode==0)
+                machine.runScheduled();
+            else
+                machine.runThreads();
+            assertEquals(virtualOISC.ioFailed,machine.getStatus(0));
+            assertEquals(virtualOISC.ioPort,machine.getFault(0));
+            assertEquals(vm.getPCount(),machine.getPCount(0));
+            assertEquals(vm.getRam(0),machine.getRam(0));
+            assertEquals(vm.getRam(1),machine.getRam(1));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the optimizer: code compiled with -O has to give the results
+ * code compiled with -O0 gives, in no more rom words and, without jumps
+ * in the source, in no more steps.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class optimizeOISCTest {
+    @Test
+    void optimizedMatchesO0() {
+        Random random = new Random(12);
+        for (int i=0;i<300;i++) {
+            String src = sampleOISC.random(random,2+random.nextInt(20),1,
+                    sampleOISC.math);
+            assertEquals(sampleOISC.interpret(src,0),
+                    sampleOISC.interpret(src,compileOISC.optimizeFlag),src);
+            assertTrue(sampleOISC.size(src,compileOISC.optimizeFlag)<=
+                    sampleOISC.size(src,0),src);
+            assertTrue(steps(src,compileOISC.optimizeFlag)<=steps(src,0),src);
+        }
+    }
+
+    @Test
+    void optimizedMatchesO0WithJumps() {
+        Random random = new Random(13);
+        for (int i=0;i<300;i++) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(20));
+            assertEquals(sampleOISC.interpret(src,0),
+                    sampleOISC.interpret(src,compileOISC.optimizeFlag),src);
+            assertTrue(sampleOISC.size(src,compileOISC.optimizeFlag)<=
+                    sampleOISC.size(src,0),src);
+        }
+    }
+
+    @Test
+    void optimizedLoopMatchesO0() {
+        //counts A down past 0 in steps of B, jumping back to the SUB
+        String defs = "DEF A 100\nDEF B 3\nDEF C 0\nDEF D 1\nDEF Z 0\n",
+            src = defs+"SUB B A A\nADD C D C\nIFGT A Z "+
+                sampleOISC.size(defs,0)+"\n";
+        assertTrue(sampleOISC.interpret(src,0)
+                .startsWith("halted -2 3 34 1 0"));
+        assertEquals(sampleOISC.interpret(src,0),
+                sampleOISC.interpret(src,compileOISC.optimizeFlag));
+    }
+
+    /**Number of steps a run of given source compiled with given flags takes*/
+    private static long steps(String source, int flags) {
+        virtualOISC vm = new virtualOISC(
+                compileOISC.compileImage(source,flags));
+        vm.setBudget(sampleOISC.budget);
+        return vm.interpret();
+    }
+}
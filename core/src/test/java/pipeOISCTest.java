@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of pipelines: programs run as a pipeline have to write what they
+ * write when run one after the other on the output of the one before,
+ * whatever the capacity of the pipes.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class pipeOISCTest {
+    @Test
+    void pipelineMatchesRunsInTurn() throws InterruptedException {
+        Random random = new Random(24);
+        imageOISC[] images = new imageOISC[3];
+        for (int i=0;i<images.length;i++)
+            images[i] = compileOISC.compileImage(sampleOISC.filter(i+2),
+                    (i%2==0) ? 0 : compileOISC.optimizeFlag);
+        for (int capacity : new int[] {1,7,pipeOISC.defaultCapacity}) {
+            byte[] input = new byte[random.nextInt(4000)];
+            for (int i=0;i<input.length;i++)
+                input[i] = (byte) (2+random.nextInt(100));
+            byte[] expected = input;
+            for (imageOISC image : images)
+                expected = sampleOISC.output(image,expected,
+                        portOISC.bufferSize);
+
+            virtualOISC[] stages = new virtualOISC[images.length];
+            for (int i=0;i<stages.length;i++) {
+                stages[i] = new virtualOISC(images[i]);
+                stages[i].setBudget(sampleOISC.budget);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long[] counts = pipeOISC.pipeline(stages,
+                    portOISC.from(new ByteArrayInputStream(input)),
+                    portOISC.to(out),capacity);
+            assertArrayEquals(expected,out.toByteArray(),
+                    "capacity "+capacity);
+            for (int i=0;i<stages.length;i++) {
+                assertEquals(virtualOISC.halted,stages[i].getStatus());
+                assertTrue(counts[i]>0);
+            }
+        }
+    }
+
+    @Test
+    void pipeKeepsOrder() throws IOException {
+        pipeOISC pipe = new pipeOISC(8);
+        final portOISC.sink sink = pipe.sink();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    byte[] chunk = new byte[13];
+                    for (int i=0;i<1000;i++) {
+                        for (int j=0;j<chunk.length;j++)
+                            chunk[j] = (byte) (i*chunk.length+j);
+                        sink.write(chunk,0,chunk.length);
+                    }
+                    sink.close();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        portOISC.source source = pipe.source();
+        byte[] buf = new byte[5];
+        int pos = 0;
+        for (int n;(n = source.read(buf,0,buf.length))>=0;)
+            for (int i=0;i<n;i++)
+                assertEquals((byte) pos++,buf[i]);
+        assertEquals(13000,pos);
+    }
+}
@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the io port: a program has to read the same input and write
+ * the same output whatever the size of the port buffers, the source and
+ * sink, and the flags it was compiled with, and a failing sink has to
+ * stop its run.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class portOISCTest {
+    @Test
+    void buffersGiveSameOutput() {
+        Random random = new Random(23);
+        String src = sampleOISC.filter(5);
+        int[] flags = {0,compileOISC.optimizeFlag,
+                compileOISC.fastMathFlag|compileOISC.optimizeFlag};
+        int[] sizes = {1,2,7,portOISC.bufferSize};
+        for (int i=0;i<20;i++) {
+            byte[] input = input(random,random.nextInt(3000));
+            byte[] expected = new byte[input.length+1];
+            for (int j=0;j<input.length;j++)
+                expected[j] = (byte) (input[j]+5);
+            expected[input.length] = 5;
+            for (int flag : flags)
+                for (int size : sizes)
+                    assertArrayEquals(expected,sampleOISC.output(
+                            compileOISC.compileImage(src,flag),input,size),
+                            "flags "+flag+" size "+size);
+        }
+    }
+
+    @Test
+    void byteArrayAndQueueGiveSameOutput() throws IOException {
+        Random random = new Random(24);
+        imageOISC image = compileOISC.compileImage(sampleOISC.filter(3),0);
+        byte[] input = input(random,5000);
+        byte[] expected = sampleOISC.output(image,input,portOISC.bufferSize);
+
+        virtualOISC vm = new virtualOISC(image);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        vm.setPort(new portOISC(input,portOISC.to(out)));
+        vm.interpret();
+        assertArrayEquals(expected,out.toByteArray());
+
+        BlockingQueue<byte[]> in = new LinkedBlockingQueue<byte[]>(),
+            written = new LinkedBlockingQueue<byte[]>();
+        for (int pos=0;pos<input.length;) {
+            int n = Math.min(input.length-pos,1+random.nextInt(100));
+            byte[] chunk = new byte[n];
+            System.arraycopy(input,pos,chunk,0,n);
+            in.add(chunk);
+            pos += n;
+        }
+        in.add(portOISC.end);
+        vm.setPort(new portOISC(portOISC.from(in),portOISC.to(written),64));
+        vm.interpret();
+        vm.getPort().close();
+        out.reset();
+        for (byte[] chunk=written.poll();chunk!=portOISC.end;
+                chunk=written.poll())
+            out.write(chunk);
+        assertArrayEquals(expected,out.toByteArray());
+    }
+
+    @Test
+    void failingSinkStopsRun() {
+        imageOISC image = compileOISC.compileImage(sampleOISC.filter(1),0);
+        //fails during the run with one byte buffers, else when it ends
+        for (int size : new int[] {1,portOISC.bufferSize}) {
+            virtualOISC vm = new virtualOISC(image);
+            vm.setPort(new portOISC(portOISC.from(
+                    new ByteArrayInputStream(new byte[] {2,3,4})),
+                    new portOISC.sink() {
+                public void write(byte[] buf, int off, int len)
+                        throws IOException {
+                    throw new IOException("sink failed");
+                }
+                public void flush() {}
+                public void close() {}
+            },size));
+            vm.setBudget(sampleOISC.budget);
+            vm.interpret();
+            assertEquals(virtualOISC.ioFailed,vm.getStatus());
+            assertEquals("sink failed",vm.getPort().getError().getMessage());
+        }
+    }
+
+    /**Given number of random input values the filter programs pass on*/
+    private static byte[] input(Random random, int length) {
+        byte[] ret = new byte[length];
+        for (int i=0;i<length;i++)
+            ret[i] = (byte) (2+random.nextInt(119));
+        return ret;
+    }
+}
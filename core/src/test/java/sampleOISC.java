@@ -0,0 +1,154 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Programs and results shared by the tests. Random programs define the
+ * variables V0 to V7 and then run a random mix of operators, jumps go to
+ * random addresses of the code compiled with -O0, which is what jump
+ * addresses in source refer to. The result of a run is the contents of
+ * the variables if it halted, so runs of the same program through
+ * different compilers and engines can be compared.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class sampleOISC {
+    /**Number of variables of random programs*/
+    static final int vars = 8;
+    /**Address of V0, DEF allocates addresses from there down*/
+    static final int firstVar = 249;
+    /**Instruction budget of test runs*/
+    static final long budget = 200000;
+
+    /**Operators of random programs without and with jumps*/
+    static final String[] math = {"MUL","DIV","ADD","SUB","MOV"},
+        all = {"MUL","DIV","ADD","SUB","MOV","JMP","IFGT","IFLE"};
+
+    private sampleOISC() {}
+
+    /**
+     * Random program using given operators. Jump addresses take the same
+     * randomness whatever their range, so only they depend on it.
+     *
+     * @param random source of randomness
+     * @param ops number of operations after the DEF lines
+     * @param jumps jumps go to addresses below this
+     * @param operators operators to choose from
+     * @return PKOPL source
+     */
+    static String random(Random random, int ops, int jumps,
+            String[] operators) {
+        StringBuffer src = new StringBuffer();
+        for (int i=0;i<vars;i++)
+            src.append("DEF V"+i+" "+(random.nextInt(20)+1)+"\n");
+        for (int i=0;i<ops;i++) {
+            String op = operators[random.nextInt(operators.length)];
+            src.append(op);
+            if (op.equals("JMP"))
+                src.append(" "+jump(random,jumps));
+            else {
+                src.append(" V"+random.nextInt(vars)+" V"+
+                        random.nextInt(vars));
+                if (op.startsWith("IF"))
+                    src.append(" "+jump(random,jumps));
+                else if (!op.equals("MOV"))
+                    src.append(" V"+random.nextInt(vars));
+            }
+            src.append('\n');
+        }
+        return src.toString();
+    }
+
+    /**Random jump address below given one*/
+    private static int jump(Random random, int jumps) {
+        return random.nextInt(1<<16)%jumps;
+    }
+
+    /**
+     * Random program with jumps to any address of its -O0 code and just
+     * past it
+     */
+    static String randomJumps(Random random, int ops) {
+        //the jump operands do not change the size of the code
+        long seed = random.nextLong();
+        int size = size(random(new Random(seed),ops,1,all),0);
+        return random(new Random(seed),ops,size+2,all);
+    }
+
+    /**Number of rom words given source compiles to with given flags*/
+    static int size(String source, int flags) {
+        String code = compileOISC.compileString(source,flags);
+        int ret = 0;
+        for (String line : code.split("\n"))
+            if (line.indexOf(" : ")>=0)
+                ret++;
+        return ret;
+    }
+
+    /**
+     * Result of a run: how it stopped, and the variables if it halted
+     *
+     * @param status run status, see virtualOISC.getStatus()
+     * @param ram contents of ram after the run
+     */
+    static String result(int status, int[] ram) {
+        if (status==virtualOISC.faulted)
+            return "fault";
+        if (status!=virtualOISC.halted)
+            return "stopped";
+        StringBuffer ret = new StringBuffer("halted");
+        for (int i=0;i<vars;i++)
+            ret.append(' ').append(ram[firstVar-i]);
+        return ret.toString();
+    }
+
+    /**Result of running given image in the interpreter*/
+    static String interpret(imageOISC image) {
+        virtualOISC vm = new virtualOISC(image);
+        vm.setBudget(budget);
+        vm.interpret();
+        return result(vm.getStatus(),ram(vm));
+    }
+
+    /**Result of compiling given source with given flags and running it*/
+    static String interpret(String source, int flags) {
+        return interpret(compileOISC.compileImage(source,flags));
+    }
+
+    /**
+     * Program reading values from ioPort and writing each plus given
+     * amount, until it has read a value below 1. Reads past the end of
+     * input give 0, so the last value written is the amount itself.
+     */
+    static String filter(int amount) {
+        String defs = "DEF X 0\nDEF Y 0\nDEF K "+amount+"\nDEF ONE 1\n";
+        return defs+"MOV ioPort X\nADD X K Y\nMOV Y ioPort\nIFGT X ONE "+
+            size(defs,0)+"\n";
+    }
+
+    /**
+     * Output of a run of given image on given input, through a port with
+     * buffers of given size
+     */
+    static byte[] output(imageOISC image, byte[] input, int size) {
+        virtualOISC vm = new virtualOISC(image);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        vm.setPort(new portOISC(portOISC.from(new ByteArrayInputStream(input)),
+                portOISC.to(out),size));
+        vm.setBudget(budget);
+        vm.interpret();
+        return out.toByteArray();
+    }
+
+    /**Ram of given instance after its last run*/
+    static int[] ram(virtualOISC vm) {
+        int[] ret = new int[virtualOISC.memSize];
+        for (int i=0;i<ret.length;i++)
+            ret[i] = vm.getRam(i);
+        return ret;
+    }
+}
@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of incremental compilation: every compilation of a session has to
+ * give the code a standalone compilation of the same source gives, however
+ * the source was edited since the previous one.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class sessionOISCTest {
+    @Test
+    void editsMatchStandalone() {
+        int[] flags = {0,compileOISC.optimizeFlag,compileOISC.stripFlag,
+                compileOISC.fastMathFlag,
+                compileOISC.fastMathFlag|compileOISC.optimizeFlag};
+        for (int flag : flags) {
+            Random random = new Random(19+flag);
+            compileOISC.session session = new compileOISC.session(flag);
+            String src = sampleOISC.randomJumps(random,12);
+            for (int i=0;i<40;i++) {
+                String msg = "flags "+flag+":\n"+src;
+                assertEquals(compileOISC.compileString(src,flag),
+                        session.compileString(src),msg);
+                imageOISC image = compileOISC.compileImage(src,flag),
+                    incremental = session.compileImage(src);
+                assertArrayEquals(image.getRom(),incremental.getRom(),msg);
+                assertArrayEquals(image.getRam(),incremental.getRam(),msg);
+                assertEquals(image.getEntry(),incremental.getEntry(),msg);
+                assertEquals(sampleOISC.interpret(src,0),
+                        sampleOISC.interpret(incremental),msg);
+                src = edit(random,src);
+            }
+        }
+    }
+
+    @Test
+    void unchangedLinesAreReused() {
+        compileOISC.session session = new compileOISC.session(0);
+        String src = "DEF A 2\nDEF B 3\nADD A B A\nSUB A B B\nMOV B A\n";
+        session.compileImage(src);
+        session.compileImage(src.replace("SUB A B B","ADD A B B"));
+        assertTrue(session.getReused()>0);
+    }
+
+    /**
+     * Given source with one operation changed, inserted or removed, or
+     * with a random new source, keeping the DEF lines
+     */
+    private static String edit(Random random, String source) {
+        List<String> lines = new ArrayList<String>(
+                Arrays.asList(source.split("\n")));
+        String[] other = sampleOISC.randomJumps(random,12).split("\n");
+        int ops = lines.size()-sampleOISC.vars;
+        int at = sampleOISC.vars+random.nextInt(ops+1);
+        switch (random.nextInt(4)) {
+        case 0:
+            if (at<lines.size())
+                lines.set(at,other[sampleOISC.vars+random.nextInt(12)]);
+            break;
+        case 1:
+            lines.add(at,other[sampleOISC.vars+random.nextInt(12)]);
+            break;
+        case 2:
+            if ((at<lines.size())&&(ops>1))
+                lines.remove(at);
+            break;
+        default:
+            return sampleOISC.randomJumps(random,2+random.nextInt(12));
+        }
+        StringBuffer ret = new StringBuffer();
+        for (String line : lines)
+            ret.append(line).append('\n');
+        return ret.toString();
+    }
+}
@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the translator: the generated class, compiled and run, has to
+ * dump the ram the interpreter leaves and count the same instructions.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+class translateOISCTest {
+    /**Loads one class from given class file bytes*/
+    private static class loader extends ClassLoader {
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name,bytes,0,bytes.length);
+        }
+    }
+
+    /**What the interpreter run of given vm would make a translation print*/
+    private static String expected(virtualOISC vm, long count) {
+        StringBuffer ret = new StringBuffer();
+        if (vm.getStatus()==virtualOISC.faulted)
+            ret.append("Read from uninitialized ram at rom address "+
+                    vm.getPCount()+", halting.\n");
+        ret.append("Displaying all loaded addresses in ram: \n");
+        for (int i=0;i<virtualOISC.memSize;i++)
+            if (vm.getRam(i)!=virtualOISC.uninit)
+                ret.append(String.format("Addr: %3d Val: %3d\n",i,
+                        vm.getRam(i)));
+        ret.append("Done. "+count+" instructions executed.\n");
+        return ret.toString();
+    }
+
+    @Test
+    void translationMatchesInterpreter() throws Exception {
+        Random random = new Random(4);
+        int programs = 0;
+        while (programs<10) {
+            String src = sampleOISC.randomJumps(random,2+random.nextInt(14));
+            imageOISC image = compileOISC.compileImage(src);
+            virtualOISC vm = new virtualOISC(image);
+            vm.setBudget(sampleOISC.budget);
+            long count = vm.interpret();
+            //the translation runs until the program stops by itself
+            if ((vm.getStatus()!=virtualOISC.halted)&&
+                    (vm.getStatus()!=virtualOISC.faulted))
+                continue;
+            programs++;
+
+            String name = "translated"+programs;
+            byte[] bytes = jitOISC.javac(name,
+                    translateOISC.source(image,name,"test"));
+            assertNotNull(bytes,src);
+            Class<?> translated = new loader().define(name,bytes);
+            PrintStream out = System.out;
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(printed,true));
+            try {
+                translated.getMethod("main",String[].class).invoke(null,
+                        (Object) new String[0]);
+            }
+            finally {
+                System.setOut(out);
+            }
+            assertEquals(expected(vm,count),
+                    printed.toString().replace("\r\n","\n"),src);
+        }
+    }
+}
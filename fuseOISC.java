@@ -0,0 +1,173 @@
+/**
+ * Finds the instruction sequences the macros of compileOISC leave in rom,
+ * so the interpreter can run each of them as one superinstruction instead
+ * of dispatching every instruction on its own. Works on any rom, the
+ * sequences are recognized by their shape only, so images compiled long
+ * ago profit as well.
+ * <br>
+ * <br>Recognized sequences, with z the zero register the macros use and
+ * n the address after each instruction:
+ * <ul>
+ * <li> <tt>move</tt>, the copy of MOV a b:
+ * <tt>subleq b,b,n; subleq a,z,n; subleq z,b,n; subleq z,z,n</tt>
+ * <li> <tt>add</tt>, the sum of ADD a b c:
+ * <tt>subleq a,z,n; subleq b,z,n; subleq c,c,n; subleq z,c,n;
+ * subleq z,z,n</tt>
+ * <li> <tt>loop</tt>, the loop at the end of MUL and DIV code, which adds
+ * x to y until v drops to 0 or below by steps of u:
+ * <tt>p: subleq x,y,n; subleq u,v,e; subleq z,z,p</tt>
+ * </ul>
+ * Sequences are only fused if none of their cells is ioPort and the cells
+ * written are distinct from each other and from those only read, so a
+ * superinstruction gives exactly the ram contents, pCount and instruction
+ * count the instructions give one by one, including the 8-bit overflow
+ * of virtualOISC.wrap and the branch of the last instruction.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class fuseOISC {
+    /**Superinstruction kinds*/
+    public static final int move = 0, add = 1, loop = 2;
+    /**Number of instructions of each kind, of one pass for loop*/
+    private static final int[] lengths = {4,5,3};
+
+    /**
+     * One superinstruction, starting at the address it is stored at
+     */
+    public static class op {
+        public final int kind;
+        /**
+         * cells the instructions use, a,b,z for move, a,b,c,z for add,
+         * x,y,u,v,z for loop
+         */
+        public final int[] cells;
+        /**cells written, a subset of cells*/
+        public final int[] writes;
+        /**C of the branching instruction of loop, where it exits to*/
+        public final int exit;
+        /**first and last address of the instructions*/
+        public final int first, last;
+
+        op(int nkind, int[] ncells, int[] nwrites, int nexit, int nfirst) {
+            kind = nkind;
+            cells = ncells;
+            writes = nwrites;
+            exit = nexit;
+            first = nfirst;
+            last = nfirst+lengths[nkind]-1;
+        }
+
+        /**
+         * True if running this superinstruction can pass through given
+         * pCount before it ends, meaning it stops there or at an
+         * instruction inside it
+         */
+        public boolean passes(int pc) {
+            if (kind==loop)
+                return (pc>=first)&&(pc<=last);
+            return (pc>first)&&(pc<=last);
+        }
+    }
+
+    /**
+     * Find superinstructions in given rom
+     *
+     * @param rom decoded rom words
+     * @return superinstruction starting at each address, null where none
+     */
+    public static op[] fuse(int[] rom) {
+        op[] ret = new op[virtualOISC.memSize];
+        for (int p=0;p<virtualOISC.memSize;p++) {
+            ret[p] = fuseMove(rom,p);
+            if (ret[p]==null)
+                ret[p] = fuseAdd(rom,p);
+            if (ret[p]==null)
+                ret[p] = fuseLoop(rom,p);
+        }
+        return ret;
+    }
+
+    /**move starting at address p, null if there is none*/
+    private static op fuseMove(int[] rom, int p) {
+        if (!straight(rom,p,4))
+            return null;
+        int b = b(rom[p]), a = a(rom[p+1]), z = b(rom[p+1]);
+        if ((a(rom[p])!=b)||(a(rom[p+2])!=z)||(b(rom[p+2])!=b)||
+                (a(rom[p+3])!=z)||(b(rom[p+3])!=z)||
+                !distinct(a,b,z)||!distinct(b,z))
+            return null;
+        return new op(move,new int[] {a,b,z},new int[] {b,z},0,p);
+    }
+
+    /**add starting at address p, null if there is none*/
+    private static op fuseAdd(int[] rom, int p) {
+        if (!straight(rom,p,5))
+            return null;
+        int a = a(rom[p]), z = b(rom[p]), b = a(rom[p+1]), c = b(rom[p+2]);
+        if ((b(rom[p+1])!=z)||(a(rom[p+2])!=c)||(a(rom[p+3])!=z)||
+                (b(rom[p+3])!=c)||(a(rom[p+4])!=z)||(b(rom[p+4])!=z)||
+                !distinct(a,z)||!distinct(b,z)||!distinct(c,z))
+            return null;
+        return new op(add,new int[] {a,b,c,z},new int[] {c,z},0,p);
+    }
+
+    /**loop starting at address p, null if there is none*/
+    private static op fuseLoop(int[] rom, int p) {
+        if ((p+2>=virtualOISC.memSize)||!straight(rom,p,1)||
+                !subleq(rom[p+1])||!subleq(rom[p+2])||
+                (virtualOISC.operC(rom[p+2])!=p))
+            return null;
+        int x = a(rom[p]), y = b(rom[p]), u = a(rom[p+1]), v = b(rom[p+1]),
+            z = a(rom[p+2]);
+        if ((b(rom[p+2])!=z)||!distinct(y,v,z)||!distinct(v,z)||
+                !distinct(x,y,v,z)||!distinct(u,y,v,z))
+            return null;
+        return new op(loop,new int[] {x,y,u,v,z},new int[] {y,v,z},
+                virtualOISC.operC(rom[p+1]),p);
+    }
+
+    /**
+     * True if the n words from p on are subleq instructions that always
+     * go on to the next address
+     */
+    private static boolean straight(int[] rom, int p, int n) {
+        if (p+n>virtualOISC.memSize)
+            return false;
+        for (int i=p;i<p+n;i++)
+            if (!subleq(rom[i])||(virtualOISC.operC(rom[i])!=i+1))
+                return false;
+        return true;
+    }
+
+    /**True if word is a subleq instruction, not a load or empty slot*/
+    private static boolean subleq(int word) {
+        return (word!=0)&&!virtualOISC.isLoad(word);
+    }
+
+    /**A field of subleq word*/
+    private static int a(int word) {
+        return virtualOISC.operA(word);
+    }
+
+    /**B field of subleq word*/
+    private static int b(int word) {
+        return virtualOISC.operB(word);
+    }
+
+    /**
+     * True if the first cell differs from all others and no cell is
+     * ioPort
+     */
+    private static boolean distinct(int cell, int... others) {
+        if (cell==virtualOISC.ioPort)
+            return false;
+        for (int other : others)
+            if ((other==cell)||(other==virtualOISC.ioPort))
+                return false;
+        return true;
+    }
+}
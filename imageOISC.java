@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A program image: decoded rom words, optionally the initial contents of
+ * ram and the entry address runs start at when ram starts out with those
+ * contents. Images written by compileOISC hold the values of the load
+ * instructions at the start of rom as ram section, with the entry address
+ * after them, so runs skip those instructions. The load instructions can
+ * also be left out of rom altogether. Images can be stored in a compact
+ * binary file format, which is much faster to load than .mif text. The
+ * .mif format is still used for the VHDL toolchain.
+ * <br>
+ * <br><b>Binary format</b>, all numbers big-endian:
+ * <ul>
+ * <li> magic number <tt>OISC</tt> in ascii (4 bytes)
+ * <li> format version (2 bytes)
+ * <li> flags (2 bytes), bit 0 is set if a ram section is present
+ * <li> rom depth in words (2 bytes), must be 256
+ * <li> instruction width in bits (2 bytes), must be 25
+ * <li> entry address (2 bytes), only in version 2, version 1 images start
+ * at 0
+ * <li> rom words, one 4 byte word per address, packed like virtualOISC
+ * decodes them
+ * <li> optional ram section: a 32 byte bitmap of initialized addresses,
+ * lowest address in the most significant bit of the first byte, followed
+ * by one two's complement byte per address
+ * </ul>
+ * Files are read whole into one buffer. Version 1 and 2 are read,
+ * version 2 is written.
+ * <br>
+ * <br>Images are immutable once created, so one image can be shared by
+ * any number of virtualOISC instances on any number of threads. Besides
+ * rom and ram an image keeps the empty slot links of rom, the
+ * superinstructions found in it and its jit compiled version, so those
+ * are only computed once per program.
+ * <br>
+ * <br>Images loaded from .mif files written by compileOISC also know the
+ * PKOPL source line each rom address was compiled from, for profiling.
+ * Binary images do not store source lines.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class imageOISC {
+    /**Binary image file identification*/
+    public static final int magic = 0x4F495343, version = 2;
+    /**Flag bit set when image contains a ram section*/
+    public static final int ramFlag = 1;
+    /**File name extension for binary images*/
+    public static String extension = ".rom";
+
+    /**Initial ram of images without a ram section, every cell uninit*/
+    static final int[] emptyRam = new int[virtualOISC.memSize];
+    static {
+        Arrays.fill(emptyRam,virtualOISC.uninit);
+    }
+
+    /**decoded rom words, never modified*/
+    final int[] rom;
+    /**initial ram, null if image has no ram section*/
+    private final int[] ram;
+    /**ram contents every run starts from, never modified*/
+    final int[] start;
+    /**rom address runs start at when ram starts out as start*/
+    final int entry;
+    /**first non-empty rom address at or after each address*/
+    final int[] skip;
+    /**superinstruction starting at each rom address, see fuseOISC*/
+    final fuseOISC.op[] fused;
+    /**source line of each rom address, null if unknown*/
+    private final int[] lines;
+
+    /**jit compiled rom, null until first needed*/
+    private jitOISC.program jitted;
+    private boolean jitTried;
+
+    /**
+     * Creates image from given contents. The image takes over the arrays,
+     * they must not be modified afterwards.
+     *
+     * @param nrom decoded rom words, memSize long
+     * @param nram initial ram with uninit marking unwritten cells, null if
+     * ram starts out empty
+     */
+    imageOISC(int[] nrom, int[] nram) {
+        this(nrom,nram,null);
+    }
+
+    /**
+     * Creates image from given contents and source lines. The image takes
+     * over the arrays, they must not be modified afterwards.
+     *
+     * @param nrom decoded rom words, memSize long
+     * @param nram initial ram with uninit marking unwritten cells, null if
+     * ram starts out empty
+     * @param nlines PKOPL source line of each rom address, 0 where not
+     * known, null if there are none
+     */
+    imageOISC(int[] nrom, int[] nram, int[] nlines) {
+        this(nrom,nram,nlines,0);
+    }
+
+    /**
+     * Creates image from given contents, source lines and entry address.
+     * The image takes over the arrays, they must not be modified
+     * afterwards.
+     *
+     * @param nrom decoded rom words, memSize long
+     * @param nram initial ram with uninit marking unwritten cells, null if
+     * ram starts out empty
+     * @param nlines PKOPL source line of each rom address, 0 where not
+     * known, null if there are none
+     * @param nentry rom address to start at with ram set to nram, rom
+     * before it may only set up the same ram
+     */
+    imageOISC(int[] nrom, int[] nram, int[] nlines, int nentry) {
+        rom = nrom;
+        ram = nram;
+        lines = nlines;
+        entry = nentry;
+        start = (ram!=null) ? ram : emptyRam;
+        skip = virtualOISC.link(rom);
+        fused = fuseOISC.fuse(rom);
+    }
+
+    /**copy of rom words*/
+    public int[] getRom() {
+        return rom.clone();
+    }
+
+    /**copy of initial ram, null if there is none*/
+    public int[] getRam() {
+        return (ram!=null) ? ram.clone() : null;
+    }
+
+    /**accessor for entry address*/
+    public int getEntry() {
+        return entry;
+    }
+
+    /**PKOPL source line given rom address was compiled from, 0 if unknown*/
+    public int getLine(int addr) {
+        return (lines!=null) ? lines[addr] : 0;
+    }
+
+    /**
+     * Jit compiled version of rom, compiled on first call and shared by
+     * every run of this image.
+     *
+     * @return compiled program, null if rom cannot be compiled
+     */
+    public synchronized jitOISC.program jit() {
+        if (!jitTried) {
+            jitTried = true;
+            jitted = jitOISC.compile(rom,entry);
+        }
+        return jitted;
+    }
+
+    /**
+     * Load an image from given file, either a binary image or a .mif file.
+     * The format is detected from the magic number.
+     *
+     * @param file image or mif file
+     * @return loaded image
+     * @throws IOException if file cannot be read or is not formatted
+     * correctly
+     */
+    public static imageOISC load(String file) throws IOException {
+        if (isImage(file))
+            return read(file);
+
+        int[] nrom = new int[virtualOISC.memSize],
+            nlines = new int[virtualOISC.memSize];
+        mifOISC.read(file,nrom,nlines);
+        return new imageOISC(nrom,null,nlines);
+    }
+
+    /**True if given file starts with the binary image magic number*/
+    public static boolean isImage(String file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt()==magic;
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read binary image from given file. Images are small, so the file is
+     * read into a buffer instead of mapped, which would keep it locked on
+     * Windows until the mapping is garbage collected.
+     *
+     * @param file binary image file
+     * @return loaded image
+     * @throws IOException if file cannot be read or is not a valid image
+     */
+    public static imageOISC read(String file) throws IOException {
+        int size = virtualOISC.memSize;
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            FileChannel channel = raf.getChannel();
+            //bytes past the largest image are never looked at
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(
+                    channel.size(),14+size*4+size/8+size));
+            while ((channel.read(buf)>=0)&&buf.hasRemaining())
+                ;
+            buf.flip();
+
+            if ((buf.remaining()<12)||(buf.getInt()!=magic))
+                throw new IOException("File "+file+" is not a rom image.");
+            int fversion = buf.getShort();
+            if ((fversion<1)||(fversion>version))
+                throw new IOException("File "+file+" has unsupported image " +
+                        "version "+fversion+".");
+            int flags = buf.getShort(), depth = buf.getShort(),
+                width = buf.getShort();
+            if ((depth!=size)||(width!=virtualOISC.instrWidth))
+                throw new IOException("File "+file+" has depth "+depth+
+                        " and width "+width+", expected "+size+" and "+
+                        virtualOISC.instrWidth+".");
+            int nentry = 0;
+            if (fversion>=2) {
+                if (buf.remaining()<2)
+                    throw new IOException("File "+file+" is truncated.");
+                nentry = buf.getShort();
+                if ((nentry<0)||(nentry>=size))
+                    throw new IOException("File "+file+" has invalid entry " +
+                            "address "+nentry+".");
+            }
+
+            boolean hasRam = (flags&ramFlag)!=0;
+            if (buf.remaining()<size*4+(hasRam ? size/8+size : 0))
+                throw new IOException("File "+file+" is truncated.");
+
+            int[] nrom = new int[size];
+            buf.asIntBuffer().get(nrom);
+            buf.position(buf.position()+size*4);
+            for (int i=0;i<size;i++)
+                if ((nrom[i]>>>virtualOISC.instrWidth)!=0)
+                    throw new IOException("File "+file+" has invalid word at " +
+                            "address "+i+".");
+
+            int[] nram = null;
+            if (hasRam) {
+                nram = new int[size];
+                byte[] written = new byte[size/8];
+                buf.get(written);
+                for (int i=0;i<size;i++) {
+                    int val = buf.get();
+                    if ((written[i>>3]&(0x80>>>(i&7)))!=0)
+                        nram[i] = val;
+                    else
+                        nram[i] = virtualOISC.uninit;
+                }
+            }
+
+            return new imageOISC(nrom,nram,null,nentry);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write this image to given file in binary format.
+     *
+     * @param file file to write to
+     * @throws IOException if file cannot be written
+     */
+    public void write(String file) throws IOException {
+        int size = virtualOISC.memSize;
+        ByteBuffer buf = ByteBuffer.allocate(14+size*4+
+                ((ram!=null) ? size/8+size : 0));
+
+        buf.putInt(magic);
+        buf.putShort((short) version);
+        buf.putShort((short) ((ram!=null) ? ramFlag : 0));
+        buf.putShort((short) size);
+        buf.putShort((short) virtualOISC.instrWidth);
+        buf.putShort((short) entry);
+        for (int i=0;i<size;i++)
+            buf.putInt(rom[i]);
+
+        if (ram!=null) {
+            byte[] written = new byte[size/8];
+            for (int i=0;i<size;i++)
+                if (ram[i]!=virtualOISC.uninit)
+                    written[i>>3] |= 0x80>>>(i&7);
+            buf.put(written);
+            for (int i=0;i<size;i++)
+                buf.put((ram[i]!=virtualOISC.uninit) ? (byte) ram[i] : 0);
+        }
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buf.array());
+        }
+        finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.*;
+import javax.tools.*;
+
+/**
+ * Translates a loaded OISC rom into a JVM class so HotSpot can optimize
+ * the program itself instead of the interpreter loop.
+ * <br>Each basic block, a straight-line run of instructions that only
+ * ends at a branch or right before a branch target, becomes one static
+ * method of the generated class. A small dispatch loop switches on the
+ * pCount returned by each block. Ram stays the same <tt>int[]</tt> the
+ * interpreter uses, with the same uninitialized marker and 8-bit
+ * overflow behavior, so both engines give identical results.
+ * <br>The generated source is compiled in memory with the system java
+ * compiler and defined as a hidden class, so nothing is written to disk.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class jitOISC {
+    /**Name given to generated classes*/
+    private static String className = "oiscProgram";
+    /**
+     * Longest straight-line run put in one block method. Longer runs are
+     * split, since HotSpot does not compile methods over 8000 bytes of
+     * bytecode.
+     */
+    private static int maxBlock = 32;
+
+    /**
+     * Compiled program interface implemented by generated classes.
+     */
+    public interface program {
+        /**
+         * Run program from given pCount until pCount leaves rom, or until
+         * count[0] reaches count[1]. The count is checked when a block
+         * ends, so a run can stop up to a block later than count[1].
+         *
+         * @param ram ram contents, modified in place
+         * @param pc pCount to start at, the first non-empty rom address
+         * at or after 0 or the entry address, or a pCount returned by an
+         * earlier call
+         * @param count count[0] is incremented by number of instructions
+         * executed, count[1] is the limit for it
+         * @return final pCount, or ~pCount of the instruction that read
+         * an uninitialized ram cell
+         */
+        int run(int[] ram, int pc, long[] count);
+    }
+
+    /**
+     * Generate, compile and load a class running given rom.
+     *
+     * @param rom decoded rom words
+     * @param entry entry address of the image, runs can start here or at 0
+     * @return compiled program, null if compilation is not possible
+     */
+    public static program compile(int[] rom, int entry) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac==null) {
+            System.out.println("jitOISC:compile:no java compiler available, " +
+                    "a JDK is needed to use the jit.");
+            return null;
+        }
+        if (virtualOISC.usesIoPort(rom)) {
+            System.out.println("jitOISC:compile:program uses ioPort, which " +
+                    "the jit does not support.");
+            return null;
+        }
+
+        StringBuffer src = new StringBuffer();
+        src.append("public final class "+className+
+                " implements jitOISC.program {\n");
+        emitBlocks(rom,entry,src);
+        src.append("}\n");
+
+        byte[] bytes = javac(javac,className,src.toString());
+        if (bytes==null)
+            return null;
+
+        try {
+            Class<?> cls = MethodHandles.lookup().defineHiddenClass(bytes,true).
+                    lookupClass();
+            return (program) cls.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            System.out.println("jitOISC:compile:cannot load generated class: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the dispatch method <tt>run(int[],int,long[])</tt> and one
+     * static method per basic block of rom to out, as java source. The
+     * generated code only depends on java.lang, so it can also be used
+     * by standalone classes.
+     *
+     * @param rom decoded rom words
+     * @param entry entry address of the image, runs can start here or at 0
+     * @param out class body is appended here
+     */
+    public static void emitBlocks(int[] rom, int entry, StringBuffer out) {
+        int[] skip = virtualOISC.link(rom);
+        boolean[] leader = leaders(rom,skip,entry);
+        int size = virtualOISC.memSize;
+
+        //dispatch loop
+        out.append("    public int run(int[] m, int pc, long[] n) {\n");
+        out.append("        while ((pc>=0)&&(pc<"+size+")&&(n[0]<n[1])) {\n");
+        out.append("            switch (pc) {\n");
+        for (int i=0;i<size;i++)
+            if (leader[i])
+                out.append("            case "+i+": pc = b"+i+"(m,n); break;\n");
+        out.append("            default: throw new IllegalStateException(" +
+                "\"no block at \"+pc);\n");
+        out.append("            }\n");
+        out.append("        }\n");
+        out.append("        return pc;\n");
+        out.append("    }\n\n");
+
+        //blocks
+        for (int i=0;i<size;i++)
+            if (leader[i])
+                emitBlock(rom,skip,leader,i,out);
+    }
+
+    /**
+     * Find block leaders: start of program, entry address, branch targets, the
+     * instruction after each branch, and every maxBlock-th instruction of
+     * longer straight-line runs.
+     */
+    private static boolean[] leaders(int[] rom, int[] skip, int entry) {
+        int size = virtualOISC.memSize;
+        boolean[] ret = new boolean[size+1];
+        ret[skip[0]] = true;
+        ret[skip[entry]] = true;
+
+        for (int i=0;i<size;i++) {
+            if (rom[i]==0)
+                continue;
+            int target = skip[virtualOISC.operC(rom[i])];
+            if (target!=skip[i+1]) {
+                ret[target] = true;
+                ret[skip[i+1]] = true;
+            }
+        }
+        
+        //split long runs
+        int run = 0;
+        for (int i=0;i<size;i++) {
+            if (rom[i]==0)
+                continue;
+            if (ret[i])
+                run = 0;
+            if (++run>=maxBlock) {
+                ret[skip[i+1]] = true;
+                run = 0;
+            }
+        }
+        return ret;
+    }
+
+    /**Write the method for the block starting at given leader*/
+    private static void emitBlock(int[] rom, int[] skip, boolean[] leader,
+            int start, StringBuffer out) {
+        out.append("    private static int b"+start+"(int[] m, long[] n) {\n");
+        out.append("        int a, b;\n");
+
+        int pc = start, len = 0;
+        while (true) {
+            int word = rom[pc];
+            int operB = virtualOISC.operB(word);
+            int next = skip[pc+1], target = skip[virtualOISC.operC(word)];
+            len++;
+
+            out.append("        //"+pc+": "+virtualOISC.disassemble(word)+"\n");
+            if (virtualOISC.isLoad(word)) {
+                int val = virtualOISC.operA(word);
+                out.append("        m["+operB+"] = "+val+";\n");
+                //branch of a load is known at compile time
+                if (val<=0)
+                    next = target;
+            }
+            else {
+                int operA = virtualOISC.operA(word);
+                out.append("        a = m["+operA+"]; b = m["+operB+"];\n");
+                out.append("        if ((a==Integer.MIN_VALUE)||" +
+                        "(b==Integer.MIN_VALUE)) { n[0] += "+(len-1)+
+                        "; return "+(~pc)+"; }\n");
+                out.append("        b -= a;\n");
+                out.append("        if (b<-128) b += 255; " +
+                        "else if (b>127) b -= 255;\n");
+                out.append("        m["+operB+"] = b;\n");
+                if (target!=next)
+                    out.append("        if (b<=0) { n[0] += "+len+"; return "+
+                            target+"; }\n");
+            }
+
+            //block ends when leaving rom or reaching another leader
+            if ((next>=virtualOISC.memSize)||leader[next]) {
+                out.append("        n[0] += "+len+";\n");
+                out.append("        return "+next+";\n");
+                break;
+            }
+            pc = next;
+        }
+        out.append("    }\n\n");
+    }
+
+    /**
+     * Compile a single class from source in memory with the system java
+     * compiler.
+     *
+     * @return class file bytes, null if compilation failed
+     */
+    public static byte[] javac(String name, String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac==null) {
+            System.out.println("jitOISC:javac:no java compiler available, " +
+                    "a JDK is needed.");
+            return null;
+        }
+        return javac(javac,name,source);
+    }
+
+    /**Compile a single class from source in memory with given compiler*/
+    private static byte[] javac(JavaCompiler javac, final String name,
+            final String source) {
+        final ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        StringWriter errors = new StringWriter();
+
+        JavaFileObject input = new SimpleJavaFileObject(
+                URI.create("string:///"+name+".java"),JavaFileObject.Kind.SOURCE) {
+            public CharSequence getCharContent(boolean ignoreErrors) {
+                return source;
+            }
+        };
+
+        //keep generated class file in memory instead of writing it out
+        JavaFileManager files = new ForwardingJavaFileManager<JavaFileManager>(
+                javac.getStandardFileManager(null,null,null)) {
+            public JavaFileObject getJavaFileForOutput(Location location,
+                    String cname, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///"+cname+
+                        kind.extension),kind) {
+                    public OutputStream openOutputStream() {
+                        return classFile;
+                    }
+                };
+            }
+        };
+
+        List<String> options = Arrays.asList("-classpath",
+                System.getProperty("java.class.path"),"-g:none");
+        boolean ok = javac.getTask(errors,files,null,options,null,
+                Collections.singletonList(input)).call();
+
+        if (!ok) {
+            System.out.println("jitOISC:javac:cannot compile generated source:");
+            System.out.println(errors);
+            return null;
+        }
+        return classFile.toByteArray();
+    }
+}
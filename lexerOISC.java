@@ -0,0 +1,163 @@
+/**
+ * Splits PKOPL source into tokens. A token is either a word, a run of
+ * characters that are not whitespace, or the end of a line. Lines end at
+ * <tt>\r\n</tt>, <tt>\n</tt>, <tt>\r</tt>, <tt>\u2028</tt>,
+ * <tt>\u2029</tt> or <tt>\u0085</tt>, like they do for
+ * <tt>Scanner.nextLine()</tt>. The last line gets an end of line token as
+ * well when it is not empty, so the number of end of line tokens is the
+ * number of lines.
+ * <br>
+ * <br>The lexer works on a char array without copying it and does not
+ * allocate anything per token: the current token is described by its
+ * offsets and position, and words are only turned into strings when
+ * asked for. One lexer can be reset to any number of sources.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class lexerOISC {
+    /**Token kinds: a word, the end of a line, the end of the source*/
+    public static final int word = 0, lineEnd = 1, end = 2;
+
+    /**source text, tokens are read from pos up to limit*/
+    private char[] buf;
+    private int pos, limit;
+    /**line number of pos and offset at which that line starts*/
+    private int line, lineStart;
+
+    /**kind, offsets, line and column of the current token*/
+    private int kind, start, stop, tokenLine, tokenColumn;
+
+    /**Constructor for a lexer without source, see reset*/
+    lexerOISC() {
+        reset(new char[0],0,0);
+    }
+
+    /**
+     * Start reading given part of a char array, counting lines from 1
+     *
+     * @param nbuf source text
+     * @param offset offset of the first character to read
+     * @param length number of characters to read
+     */
+    public void reset(char[] nbuf, int offset, int length) {
+        reset(nbuf,offset,length,1);
+    }
+
+    /**
+     * Start reading given part of a char array. The array is not copied
+     * and must not change while tokens are read. Lines are counted from
+     * given line number, so part of a larger source can be read with the
+     * line numbers it has there.
+     *
+     * @param nbuf source text
+     * @param offset offset of the first character to read
+     * @param length number of characters to read
+     * @param firstLine line number of the first line read
+     */
+    public void reset(char[] nbuf, int offset, int length, int firstLine) {
+        buf = nbuf;
+        pos = offset;
+        limit = offset+length;
+        line = firstLine;
+        lineStart = offset;
+        kind = end;
+    }
+
+    /**
+     * Read the next token
+     *
+     * @return kind of the token, word, lineEnd or end
+     */
+    public int next() {
+        //skip whitespace that does not end the line
+        while ((pos<limit)&&!isLineEnd(buf[pos])&&
+                Character.isWhitespace(buf[pos]))
+            pos++;
+
+        start = pos;
+        tokenLine = line;
+        tokenColumn = pos-lineStart+1;
+        if (pos>=limit) {
+            //a last line without line terminator still counts
+            kind = (pos>lineStart) ? lineEnd : end;
+            lineStart = pos;
+        }
+        else if (isLineEnd(buf[pos])) {
+            if ((buf[pos]=='\r')&&(pos+1<limit)&&(buf[pos+1]=='\n'))
+                pos++;
+            pos++;
+            line++;
+            lineStart = pos;
+            kind = lineEnd;
+        }
+        else {
+            while ((pos<limit)&&!Character.isWhitespace(buf[pos])&&
+                    !isLineEnd(buf[pos]))
+                pos++;
+            kind = word;
+        }
+        stop = pos;
+        return kind;
+    }
+
+    /**Skip the rest of the current line, up to its end of line token*/
+    public void skipLine() {
+        while ((pos<limit)&&!isLineEnd(buf[pos]))
+            pos++;
+    }
+
+    /**True if given character ends a line*/
+    private static boolean isLineEnd(char c) {
+        return (c=='\n')||(c=='\r')||(c=='\u2028')||(c=='\u2029')||
+            (c=='\u0085');
+    }
+
+    /**offset of the next character to read*/
+    public int getPosition() {
+        return pos;
+    }
+
+    /**accessor for kind of current token*/
+    public int getKind() {
+        return kind;
+    }
+
+    /**line of current token, counted from 1*/
+    public int getLine() {
+        return tokenLine;
+    }
+
+    /**column of current token, counted from 1*/
+    public int getColumn() {
+        return tokenColumn;
+    }
+
+    /**number of characters in current token*/
+    public int length() {
+        return stop-start;
+    }
+
+    /**character at given index of current token*/
+    public char charAt(int index) {
+        return buf[start+index];
+    }
+
+    /**True if current token is a word equal to given string*/
+    public boolean is(String s) {
+        if ((kind!=word)||(s.length()!=stop-start))
+            return false;
+        for (int i=0;i<s.length();i++)
+            if (buf[start+i]!=s.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**Current token as a string*/
+    public String text() {
+        return new String(buf,start,stop-start);
+    }
+}
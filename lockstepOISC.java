@@ -0,0 +1,493 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Runs one program image over many inputs at once, for parameter sweeps.
+ * Every input is a lane with its own ram, io and instruction count, and
+ * all lanes step through rom together: an instruction is fetched and
+ * decoded once and then applied to every lane at that address.
+ * <br>Run using: <tt>java lockstepOISC &lt;program&gt; &lt;address&gt;
+ * &lt;first&gt; &lt;last&gt; [budget]</tt>
+ * <br>Runs program with one lane for every value from first to last,
+ * -128 to 127 at most, stored in given ram address before the run, and
+ * prints how each lane stopped. Program files ending in <tt>.mif</tt> or <tt>.rom</tt> are
+ * loaded as rom images, anything else is compiled as PKOPL source.
+ * <br>
+ * <br>Ram is stored address first, one row of lanes per address, so an
+ * instruction reads and writes two rows from start to end. While all
+ * lanes run together those loops have no branches the JIT cannot turn
+ * into vector instructions. Lanes whose branches go different ways are
+ * split into groups, each waiting at the address it continues at. The
+ * group at the lowest address runs first, and groups reaching an address
+ * other lanes wait at merge with them, so lanes that took different
+ * paths through an if or out of a loop run together again afterwards.
+ * <br>
+ * <br>Each lane gives the same ram, pCount, status, fault and instruction
+ * count as a virtualOISC interpreter run with preload on, except that
+ * lanes stop only when they halt, fault or use up the budget: there is
+ * no timeout and no search for endless loops, so sweeps that may not
+ * halt need a budget. Input of a lane is a byte array read like the
+ * input stream of virtualOISC, output is collected per lane.
+ * Superinstructions are not used.
+ * <br>
+ * <br>A lockstepOISC runs once. Set up the lanes, call run() and read
+ * the results.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class lockstepOISC {
+    private static final int memSize = virtualOISC.memSize,
+        uninit = virtualOISC.uninit, ioPort = virtualOISC.ioPort;
+
+    /**program all lanes run*/
+    private final imageOISC image;
+    private final int lanes;
+    /**ram contents indexed by address, then lane*/
+    private final int[][] ram;
+    /**where each lane stopped, how and on which ram address it faulted*/
+    private final int[] pcs, statuses, faults;
+    /**instructions executed by each lane*/
+    private final long[] counts;
+    /**input of each lane and how much of it was read, null for none*/
+    private final byte[][] inputs;
+    private final int[] inputPos;
+    private final ByteArrayOutputStream[] outputs;
+    /**instruction budget of each lane, 0 for none*/
+    private long budget;
+    private boolean ran;
+
+    /**
+     * Lanes waiting at each rom address: first lane, lanes linked
+     * through next, number of lanes
+     */
+    private final int[] waitFirst, waitCount, next;
+    /**lanes of the running group, and room to split it*/
+    private int[] members, split;
+    /**instructions each member ran since counts were last updated*/
+    private long steps;
+
+    /**
+     * Constructor for given number of lanes running given image, each
+     * starting out with the initial ram of the image
+     *
+     * @param nimage program image, may be shared with other instances
+     * @param nlanes number of lanes
+     */
+    public lockstepOISC(imageOISC nimage, int nlanes) {
+        image = nimage;
+        lanes = nlanes;
+        ram = new int[memSize][lanes];
+        for (int i=0;i<memSize;i++)
+            Arrays.fill(ram[i],image.start[i]);
+        pcs = new int[lanes];
+        statuses = new int[lanes];
+        faults = new int[lanes];
+        counts = new long[lanes];
+        inputs = new byte[lanes][];
+        inputPos = new int[lanes];
+        outputs = new ByteArrayOutputStream[lanes];
+        waitFirst = new int[memSize];
+        waitCount = new int[memSize];
+        next = new int[lanes];
+        members = new int[lanes];
+        split = new int[lanes];
+    }
+
+    /**Set value of given ram address of given lane before the run*/
+    public void setRam(int lane, int address, int value) {
+        ram[address][lane] = value;
+    }
+
+    /**Set input ioPort reads from in given lane, null for none*/
+    public void setInput(int lane, byte[] in) {
+        inputs[lane] = in;
+    }
+
+    /**Set number of instructions after which a lane stops, 0 for no limit*/
+    public void setBudget(long nbudget) {
+        budget = nbudget;
+    }
+
+    /**number of lanes*/
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**pCount of given lane, memSize if it halted*/
+    public int getPCount(int lane) {
+        return pcs[lane];
+    }
+
+    /**how given lane stopped, see virtualOISC.getStatus()*/
+    public int getStatus(int lane) {
+        return statuses[lane];
+    }
+
+    /**ram address whose uninitialized read stopped given lane*/
+    public int getFault(int lane) {
+        return faults[lane];
+    }
+
+    /**instructions executed by given lane*/
+    public long getInstructions(int lane) {
+        return counts[lane];
+    }
+
+    /**contents of given ram address of given lane*/
+    public int getRam(int lane, int address) {
+        return ram[address][lane];
+    }
+
+    /**bytes given lane wrote to ioPort*/
+    public byte[] getOutput(int lane) {
+        return (outputs[lane]==null) ? new byte[0] :
+            outputs[lane].toByteArray();
+    }
+
+    /**
+     * Run all lanes until each has stopped
+     *
+     * @return number of instructions executed by all lanes together
+     */
+    public long run() {
+        if (ran)
+            throw new IllegalStateException("lockstepOISC:run:lanes " +
+                    "already ran");
+        ran = true;
+
+        int[] all = members;
+        for (int i=0;i<lanes;i++)
+            all[i] = i;
+        if (lanes>0)
+            park(image.skip[image.entry],all,lanes);
+
+        //run the waiting group at the lowest address until none is left
+        int pc;
+        while ((pc = lowest())<memSize) {
+            int size = take(pc,members,0);
+            runGroup(pc,size);
+        }
+
+        long total = 0;
+        for (int i=0;i<lanes;i++)
+            total += counts[i];
+        return total;
+    }
+
+    /**lowest rom address lanes wait at, memSize if none*/
+    private int lowest() {
+        for (int i=0;i<memSize;i++)
+            if (waitCount[i]>0)
+                return i;
+        return memSize;
+    }
+
+    /**Add given lanes to those waiting at pc, which may be memSize*/
+    private void park(int pc, int[] lanes, int size) {
+        if (pc>=memSize) {
+            for (int i=0;i<size;i++)
+                stop(lanes[i],memSize,virtualOISC.halted);
+            return;
+        }
+        int first = waitFirst[pc];
+        for (int i=0;i<size;i++) {
+            next[lanes[i]] = first;
+            first = lanes[i];
+        }
+        waitFirst[pc] = first;
+        waitCount[pc] += size;
+    }
+
+    /**
+     * Move lanes waiting at pc to given array
+     *
+     * @param to array to store lanes in
+     * @param at index in to to start at
+     * @return at plus the number of lanes moved
+     */
+    private int take(int pc, int[] to, int at) {
+        int lane = waitFirst[pc];
+        for (int i=waitCount[pc];i>0;i--) {
+            to[at++] = lane;
+            lane = next[lane];
+        }
+        waitCount[pc] = 0;
+        return at;
+    }
+
+    /**Stop given lane at pc with given status*/
+    private void stop(int lane, int pc, int status) {
+        pcs[lane] = pc;
+        statuses[lane] = status;
+    }
+
+    /**Add steps to the count of every member*/
+    private void flush(int size) {
+        if (steps==0)
+            return;
+        for (int i=0;i<size;i++)
+            counts[members[i]] += steps;
+        steps = 0;
+    }
+
+    /**
+     * Instructions every member can run before one of them reaches the
+     * budget, counts must be up to date
+     */
+    private long allowance(int size) {
+        if (budget<=0)
+            return Long.MAX_VALUE;
+        long most = 0;
+        for (int i=0;i<size;i++)
+            most = Math.max(most,counts[members[i]]);
+        return Math.max(budget-most,0);
+    }
+
+    /**
+     * Run the group of lanes in members from pc until it leaves rom, its
+     * lanes stop or branch different ways. Lanes that still run are left
+     * waiting at the address they continue at.
+     */
+    private void runGroup(int pc, int size) {
+        int[] skip = image.skip, rom = image.rom;
+        steps = 0;
+        long left = allowance(size);
+        while (true) {
+            if (pc>=memSize) {
+                flush(size);
+                park(memSize,members,size);
+                return;
+            }
+            if (waitCount[pc]>0) {
+                //lanes that took another path get here, run them along
+                flush(size);
+                size = take(pc,members,size);
+                left = allowance(size);
+            }
+            if (left==0) {
+                flush(size);
+                int kept = 0;
+                for (int i=0;i<size;i++) {
+                    int lane = members[i];
+                    if (counts[lane]>=budget)
+                        stop(lane,pc,virtualOISC.outOfBudget);
+                    else
+                        members[kept++] = lane;
+                }
+                size = kept;
+                if (size==0)
+                    return;
+                left = allowance(size);
+            }
+
+            int word = rom[pc];
+            int a = (word>>>16)&0xff, b = (word>>>8)&0xff, c = word&0xff;
+            int taken;
+            if (virtualOISC.isLoad(word)) {
+                int val = (byte) (word>>>16);
+                if (b==ioPort)
+                    for (int i=0;i<size;i++)
+                        write(members[i],val);
+                else if (size==lanes)
+                    Arrays.fill(ram[b],val);
+                else
+                    for (int i=0;i<size;i++)
+                        ram[b][members[i]] = val;
+                taken = (val<=0) ? size : 0;
+            }
+            else if ((size==lanes)&&(a!=ioPort)&&(b!=ioPort)&&
+                    subleqAll(ram[a],ram[b]))
+                taken = partition(ram[b],size);
+            else {
+                int kept = 0, ntaken = 0;
+                for (int i=0;i<size;i++) {
+                    int lane = members[i];
+                    int operA = (a==ioPort) ? read(lane) : ram[a][lane];
+                    int operB = (b==ioPort) ? 0 : ram[b][lane];
+                    if ((operA==uninit)||(operB==uninit)) {
+                        counts[lane] += steps;
+                        faults[lane] = (operA==uninit) ? a : b;
+                        stop(lane,pc,virtualOISC.faulted);
+                        continue;
+                    }
+                    int val = virtualOISC.wrap(operB-operA);
+                    if (b==ioPort)
+                        write(lane,val);
+                    else
+                        ram[b][lane] = val;
+                    if (val<=0)
+                        split[ntaken++] = lane;
+                    else
+                        members[kept++] = lane;
+                }
+                //taken lanes go after the others
+                System.arraycopy(split,0,members,kept,ntaken);
+                size = kept+ntaken;
+                taken = ntaken;
+                if (size==0)
+                    return;
+            }
+            steps++;
+            left--;
+
+            if (taken==0)
+                pc = skip[pc+1];
+            else if (taken==size)
+                pc = skip[c];
+            else {
+                //branches went different ways, both sides wait
+                flush(size);
+                int kept = size-taken;
+                System.arraycopy(members,kept,split,0,taken);
+                park(skip[c],split,taken);
+                park(skip[pc+1],members,kept);
+                return;
+            }
+        }
+    }
+
+    /**
+     * subleq on all lanes, row b minus row a into row b, if no lane reads
+     * an uninitialized cell. The loops have no data dependent branches,
+     * so the JIT can run them as vector instructions.
+     *
+     * @return false if nothing was done because a cell is uninitialized
+     */
+    private boolean subleqAll(int[] ra, int[] rb) {
+        int n = lanes;
+        boolean bad = false;
+        for (int l=0;l<n;l++)
+            bad |= (ra[l]==uninit)|(rb[l]==uninit);
+        if (bad)
+            return false;
+        for (int l=0;l<n;l++) {
+            int val = rb[l]-ra[l];
+            //same as virtualOISC.wrap, without branches
+            val += (val<-128) ? 255 : 0;
+            val -= (val>127) ? 255 : 0;
+            rb[l] = val;
+        }
+        return true;
+    }
+
+    /**
+     * Order members so that lanes with row at or below 0 come last
+     *
+     * @return number of such lanes
+     */
+    private int partition(int[] row, int size) {
+        int taken = 0;
+        for (int l=0;l<lanes;l++)
+            taken += (row[l]<=0) ? 1 : 0;
+        if ((taken==0)||(taken==size))
+            return taken;
+        int kept = 0, at = size-taken;
+        for (int i=0;i<size;i++) {
+            int lane = members[i];
+            if (row[lane]<=0)
+                split[at++] = lane;
+            else
+                split[kept++] = lane;
+        }
+        int[] swap = members;
+        members = split;
+        split = swap;
+        return taken;
+    }
+
+    /**Read next input value of given lane, 0 at end of input*/
+    private int read(int lane) {
+        byte[] in = inputs[lane];
+        if ((in==null)||(inputPos[lane]>=in.length))
+            return 0;
+        return in[inputPos[lane]++];
+    }
+
+    /**Write value to output of given lane*/
+    private void write(int lane, int val) {
+        if (outputs[lane]==null)
+            outputs[lane] = new ByteArrayOutputStream();
+        outputs[lane].write(val);
+    }
+
+    /**Report names of virtualOISC run statuses*/
+    private static String[] statusNames = {"halted","fault","budget",
+        "timeout","loop"};
+
+    /**Main method handles command line input*/
+    public static void main(String[] args) {
+        imageOISC image;
+        int address, first, last;
+        long budget;
+        try {
+            address = Integer.parseInt(args[1]);
+            first = Integer.parseInt(args[2]);
+            last = Integer.parseInt(args[3]);
+            budget = (args.length>4) ? Long.parseLong(args[4]) : 0;
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid input, you need to specify program " +
+                    "file, address and range of values.");
+            return;
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid address, value or budget.");
+            return;
+        }
+        if ((address<0)||(address>=memSize)||(first>last)) {
+            System.out.println("Invalid address or range of values.");
+            return;
+        }
+        if ((first<-128)||(last>127)) {
+            System.out.println("Invalid range of values, ram holds values " +
+                    "from -128 to 127.");
+            return;
+        }
+
+        String name = args[0];
+        try {
+            if (name.endsWith(".mif")||name.endsWith(imageOISC.extension))
+                image = imageOISC.load(name);
+            else
+                image = compileOISC.compileImage(new String(
+                        Files.readAllBytes(Paths.get(name)),"US-ASCII"));
+        }
+        catch (NoSuchFileException e) {
+            System.out.println("Cannot find file: "+name);
+            return;
+        }
+        catch (IOException e) {
+            System.out.println(e.getMessage()+" Aborting run.");
+            return;
+        }
+
+        lockstepOISC sweep = new lockstepOISC(image,last-first+1);
+        for (int i=0;i<sweep.getLanes();i++)
+            sweep.setRam(i,address,first+i);
+        sweep.setBudget(budget);
+        long start = System.nanoTime();
+        long total = sweep.run();
+        long millis = (System.nanoTime()-start)/1000000;
+
+        for (int i=0;i<sweep.getLanes();i++) {
+            StringBuffer line = new StringBuffer();
+            line.append(String.format("m(%d)=%4d %-7s %10d instr, pCount %3d",
+                    address,first+i,statusNames[sweep.getStatus(i)],
+                    sweep.getInstructions(i),sweep.getPCount(i)));
+            byte[] out = sweep.getOutput(i);
+            if (out.length>0) {
+                line.append(", output ");
+                for (int j=0;j<out.length;j++)
+                    line.append(String.format("%02x",out[j]&0xff));
+            }
+            System.out.println(line);
+        }
+        System.out.println("Done. "+total+" instructions executed in "+
+                millis+" ms.");
+    }
+}
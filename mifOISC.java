@@ -0,0 +1,398 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads .mif (memory initialization file) rom images into decoded rom
+ * words. The file is read into memory and scanned once byte by byte,
+ * without creating objects per line. Files of mapSize bytes or more are
+ * mapped instead of read. A mapped file stays locked on Windows until the
+ * mapping is garbage collected, so a program could not compile to the
+ * same .mif file again right after loading it.
+ * <br>
+ * <br>Supported syntax:
+ * <ul>
+ * <li> header entries <tt>DEPTH</tt>, <tt>WIDTH</tt>, <tt>ADDRESS_RADIX</tt>
+ * and <tt>DATA_RADIX</tt> in any order, radixes being one of
+ * <tt>BIN</tt>, <tt>OCT</tt>, <tt>DEC</tt>, <tt>UNS</tt> or <tt>HEX</tt>
+ * (<tt>HEX</tt> if not given)
+ * <li> <tt>CONTENT BEGIN</tt> ... <tt>END;</tt> block
+ * <li> <tt>address : value ;</tt> entries, several values fill consecutive
+ * addresses
+ * <li> <tt>[first..last] : value ;</tt> range entries, several values are
+ * repeated over the range
+ * <li> <tt>-- line</tt> and <tt>% block %</tt> comments
+ * </ul>
+ * A <tt>-- line n</tt> comment right after an entry, as written by
+ * compileOISC, records the PKOPL source line the entry was compiled from.
+ * Keywords are not case sensitive. Depth may not exceed the rom size and
+ * width has to be the OISC instruction width. Errors are reported with
+ * the line and column they were found at.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class mifOISC {
+    /**Files of this many bytes or more are mapped into memory*/
+    public static final long mapSize = 1<<20;
+
+    private ByteBuffer buf;
+    private String name;
+    /**current line number and position where it starts*/
+    private int line, lineStart;
+
+    /**
+     * Constructor starts scanning at the beginning of given buffer
+     *
+     * @param nbuf file contents
+     * @param nname file name used in error messages
+     */
+    mifOISC(ByteBuffer nbuf, String nname) {
+        buf = nbuf;
+        name = nname;
+        line = 1;
+        lineStart = buf.position();
+    }
+
+    /**
+     * Read decoded instructions from given .mif file into rom.
+     *
+     * @param file mif file
+     * @param rom array instructions are stored in by address
+     * @return number of rom entries read
+     * @throws IOException if file cannot be read or is not formatted
+     * correctly
+     */
+    public static int read(String file, int[] rom) throws IOException {
+        return read(file,rom,null);
+    }
+
+    /**
+     * Read decoded instructions and their source lines from given .mif
+     * file.
+     *
+     * @param file mif file
+     * @param rom array instructions are stored in by address
+     * @param lines array source line numbers are stored in by address, 0
+     * where the file does not give one, null if not needed
+     * @return number of rom entries read
+     * @throws IOException if file cannot be read or is not formatted
+     * correctly
+     */
+    public static int read(String file, int[] rom, int[] lines)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer bytes;
+            if (channel.size()>=mapSize)
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY,0,
+                        channel.size());
+            else {
+                bytes = ByteBuffer.allocate((int) channel.size());
+                while ((channel.read(bytes)>=0)&&bytes.hasRemaining())
+                    ;
+                bytes.flip();
+            }
+            return (new mifOISC(bytes,file)).parse(rom,lines);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Parse whole file into rom.
+     *
+     * @param rom array instructions are stored in by address
+     * @return number of rom entries read
+     * @throws IOException on syntax errors
+     */
+    public int parse(int[] rom) throws IOException {
+        return parse(rom,null);
+    }
+
+    /**
+     * Parse whole file into rom, recording source lines.
+     *
+     * @param rom array instructions are stored in by address
+     * @param lines array source lines are stored in by address, null if
+     * not needed
+     * @return number of rom entries read
+     * @throws IOException on syntax errors
+     */
+    public int parse(int[] rom, int[] lines) throws IOException {
+        int depth = virtualOISC.memSize, addrRadix = 16, dataRadix = 16;
+        int count = 0;
+
+        //header
+        while (true) {
+            skipSpace();
+            if (word("CONTENT"))
+                break;
+            else if (word("DEPTH")) {
+                expect('=');
+                depth = (int) number(10);
+                if ((depth<=0)||(depth>virtualOISC.memSize))
+                    throw error("depth must be between 1 and "+
+                            virtualOISC.memSize);
+            }
+            else if (word("WIDTH")) {
+                expect('=');
+                if (number(10)!=virtualOISC.instrWidth)
+                    throw error("width must be "+virtualOISC.instrWidth);
+            }
+            else if (word("ADDRESS_RADIX")) {
+                expect('=');
+                addrRadix = radix();
+            }
+            else if (word("DATA_RADIX")) {
+                expect('=');
+                dataRadix = radix();
+            }
+            else
+                throw error("expected header entry or CONTENT");
+            expect(';');
+        }
+
+        skipSpace();
+        if (!word("BEGIN"))
+            throw error("expected BEGIN");
+
+        //content
+        while (true) {
+            skipSpace();
+            if (word("END")) {
+                expect(';');
+                break;
+            }
+
+            int first, last;
+            boolean range = peek()=='[';
+            if (range) {
+                buf.get();
+                first = address(addrRadix,depth);
+                expect('.');
+                if (!buf.hasRemaining()||(buf.get()!='.'))
+                    throw error("expected ..");
+                last = address(addrRadix,depth);
+                expect(']');
+                if (last<first)
+                    throw error("empty address range");
+            }
+            else
+                first = last = address(addrRadix,depth);
+            expect(':');
+
+            //values, repeated over a range or filling consecutive addresses
+            int addr = first, values = 0;
+            do {
+                long val = number(dataRadix);
+                if ((val>>>virtualOISC.instrWidth)!=0)
+                    throw error("value wider than "+virtualOISC.instrWidth+
+                            " bits");
+                if (!range&&(addr>=depth))
+                    throw error("address "+addr+" outside rom");
+                rom[addr++] = (int) val;
+                if (range&&(addr>last))
+                    addr = first;
+                values++;
+                skipSpace();
+            } while (peek()!=';');
+            buf.get();
+
+            //fill rest of range with repeated values
+            for (int i=values;range&&(i<=last-first);i++)
+                rom[first+i] = rom[first+(i%values)];
+            if (!range)
+                last = first+values-1;
+
+            int source = sourceLine();
+            if (lines!=null)
+                for (int i=first;i<=last;i++)
+                    lines[i] = source;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Consume a <tt>-- line n</tt> comment if it follows on the current
+     * line.
+     *
+     * @return source line number n, 0 if there is no such comment
+     */
+    private int sourceLine() throws IOException {
+        int pos = buf.position();
+        skipBlanks();
+        if ((buf.remaining()>1)&&(peek()=='-')&&
+                (buf.get(buf.position()+1)=='-')) {
+            buf.position(buf.position()+2);
+            skipBlanks();
+            if (word("LINE")) {
+                skipBlanks();
+                if (Character.digit(peek(),10)<0) {
+                    buf.position(pos);
+                    return 0;
+                }
+                int ret = (int) number(10);
+                //rest of the comment
+                while (buf.hasRemaining()&&(peek()!='\n'))
+                    buf.get();
+                return ret;
+            }
+        }
+        buf.position(pos);
+        return 0;
+    }
+
+    /**Parse an address in given radix and check it against depth*/
+    private int address(int radix, int depth) throws IOException {
+        long addr = number(radix);
+        if (addr>=depth)
+            throw error("address "+addr+" outside rom");
+        return (int) addr;
+    }
+
+    /**Parse a radix name*/
+    private int radix() throws IOException {
+        skipSpace();
+        if (word("BIN"))
+            return 2;
+        if (word("OCT"))
+            return 8;
+        if (word("DEC")||word("UNS"))
+            return 10;
+        if (word("HEX"))
+            return 16;
+        throw error("expected BIN, OCT, DEC, UNS or HEX");
+    }
+
+    /**Parse an unsigned number in given radix*/
+    private long number(int radix) throws IOException {
+        skipSpace();
+        long ret = 0;
+        int digits = 0;
+        while (buf.hasRemaining()) {
+            int digit = Character.digit(peek(),radix);
+            if (digit<0) {
+                if (Character.isLetterOrDigit(peek()))
+                    throw error("invalid digit '"+(char) peek()+
+                            "' for radix "+radix);
+                break;
+            }
+            buf.get();
+            ret = ret*radix+digit;
+            if (ret>Integer.MAX_VALUE)
+                throw error("number too large");
+            digits++;
+        }
+        if (digits==0)
+            throw error("expected number");
+        return ret;
+    }
+
+    /**
+     * Consume given keyword if it comes next, ignoring case.
+     *
+     * @return true if keyword was found
+     */
+    private boolean word(String keyword) {
+        int pos = buf.position(), len = keyword.length();
+        if (buf.limit()-pos<len)
+            return false;
+        for (int i=0;i<len;i++)
+            if (Character.toUpperCase(buf.get(pos+i))!=keyword.charAt(i))
+                return false;
+        //keyword has to end here
+        if ((pos+len<buf.limit())&&isWordChar(buf.get(pos+len)))
+            return false;
+        buf.position(pos+len);
+        return true;
+    }
+
+    /**Consume given character, after skipping space*/
+    private void expect(char c) throws IOException {
+        skipSpace();
+        if (!buf.hasRemaining()||(peek()!=c))
+            throw error("expected '"+c+"'");
+        buf.get();
+    }
+
+    /**Skip spaces and tabs on the current line*/
+    private void skipBlanks() {
+        while ((peek()==' ')||(peek()=='\t'))
+            buf.get();
+    }
+
+    /**Skip white space and comments, counting lines*/
+    private void skipSpace() throws IOException {
+        while (buf.hasRemaining()) {
+            int c = peek();
+            if (c=='\n') {
+                buf.get();
+                newLine();
+            }
+            else if ((c==' ')||(c=='\t')||(c=='\r'))
+                buf.get();
+            else if ((c=='-')&&(buf.remaining()>1)&&
+                    (buf.get(buf.position()+1)=='-')) {
+                //line comment
+                while (buf.hasRemaining()&&(peek()!='\n'))
+                    buf.get();
+            }
+            else if (c=='%') {
+                //block comment
+                int startLine = line, startCol = column();
+                buf.get();
+                while (true) {
+                    if (!buf.hasRemaining()) {
+                        line = startLine;
+                        throw new IOException(name+":"+startLine+":"+startCol+
+                                ": unterminated comment.");
+                    }
+                    int d = buf.get();
+                    if (d=='%')
+                        break;
+                    if (d=='\n')
+                        newLine();
+                }
+            }
+            else
+                break;
+        }
+    }
+
+    /**Record start of a new line*/
+    private void newLine() {
+        line++;
+        lineStart = buf.position();
+    }
+
+    /**Next byte without consuming it, 0 at end of file*/
+    private int peek() {
+        if (!buf.hasRemaining())
+            return 0;
+        return buf.get(buf.position());
+    }
+
+    /**Column of current position, starting at 1*/
+    private int column() {
+        return buf.position()-lineStart+1;
+    }
+
+    /**True for characters that can be part of a keyword*/
+    private static boolean isWordChar(int c) {
+        return Character.isLetterOrDigit(c)||(c=='_');
+    }
+
+    /**Builds exception for syntax error at current position*/
+    private IOException error(String msg) {
+        if (!buf.hasRemaining())
+            msg += " at end of file";
+        return new IOException(name+":"+line+":"+column()+": "+msg+".");
+    }
+}
@@ -0,0 +1,528 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Simulates an OISC with several cores. Every core has its own pCount
+ * and rom, all cores share one ram and one io port.
+ * <br>Run using: <tt>java multiOISC [-threads] [-quantum &lt;n&gt;]
+ * [-budget &lt;n&gt;] [-in &lt;file&gt;] [-out &lt;file&gt;] &lt;program&gt;
+ * [program...]</tt>
+ * <br>Runs one core per program, give a program more than once to run it
+ * on several cores. Program files ending in <tt>.mif</tt> or
+ * <tt>.rom</tt> are loaded as rom images, anything else is compiled as
+ * PKOPL source. Prints how each core stopped and the contents of ram.
+ * <br>
+ * <br>Ram starts out with the initial ram of the image of every core,
+ * in core order, so cores running the same image see the values they
+ * expect, and each core starts at the entry address of its image. Cells
+ * can be set before a run, ram is not reset between runs. A core stops
+ * when its pCount leaves rom, on a read from uninitialized ram, when it
+ * used up its budget or at the instruction whose io made the port fail,
+ * the others keep running. There is no timeout
+ * and no search for endless loops.
+ * <br>
+ * <br>Cores run in one of two modes:
+ * <ul>
+ * <li> scheduled: one thread runs the cores round robin, each for a
+ * fixed quantum of instructions in turn. Runs are deterministic, the
+ * same program and quantum always give the same result.
+ * <li> threads: every core runs on a thread of its own, as fast as the
+ * host lets it. Ram is an AtomicIntegerArray and every subleq is atomic:
+ * B is written with a compare and set of the value read, retrying if
+ * another core wrote B in between. Subleq is a fetch and subtract, so
+ * cores can use it to count, lock and signal. Io is serialized on the
+ * port. Results depend on timing.
+ * </ul>
+ * Each core gives the same results as a virtualOISC interpreter run when
+ * it is the only one. The io port reads and writes like the one of
+ * virtualOISC, by default input is empty and output is kept in memory.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class multiOISC {
+    private static final int memSize = virtualOISC.memSize,
+        uninit = virtualOISC.uninit, ioPort = virtualOISC.ioPort;
+
+    /**One simulated core*/
+    private static class core {
+        private final imageOISC image;
+        private int pc;
+        /**how the core stopped and on which ram address it faulted*/
+        private int status, fault;
+        private long count;
+        /**true while the core runs*/
+        private boolean running;
+
+        core(imageOISC nimage) {
+            image = nimage;
+        }
+    }
+
+    private final core[] cores;
+    /**shared ram, used by scheduled runs*/
+    private final int[] ram;
+    /**shared ram while running on threads, null otherwise*/
+    private AtomicIntegerArray sharedRam;
+    private portOISC port;
+    /**instruction budget of each core, 0 for none*/
+    private long budget;
+    /**instructions each core runs per turn in scheduled runs*/
+    private int quantum;
+    private final ByteArrayOutputStream output;
+
+    /**Default quantum of scheduled runs*/
+    public static final int defaultQuantum = 1;
+
+    /**
+     * Constructor for one core per given image, the same image may be
+     * given for several cores
+     *
+     * @param images rom of each core
+     */
+    public multiOISC(imageOISC[] images) {
+        cores = new core[images.length];
+        ram = new int[memSize];
+        Arrays.fill(ram,uninit);
+        for (int i=0;i<images.length;i++) {
+            cores[i] = new core(images[i]);
+            int[] start = images[i].start;
+            for (int j=0;j<memSize;j++)
+                if (start[j]!=uninit)
+                    ram[j] = start[j];
+        }
+        output = new ByteArrayOutputStream();
+        port = new portOISC(new byte[0],portOISC.to(output));
+        quantum = defaultQuantum;
+    }
+
+    /**Set value of given ram address before the run*/
+    public void setRam(int address, int value) {
+        ram[address] = value;
+    }
+
+    /**contents of given ram address*/
+    public int getRam(int address) {
+        return ram[address];
+    }
+
+    /**Set io port shared by all cores*/
+    public void setPort(portOISC nport) {
+        port = nport;
+    }
+
+    /**Set number of instructions after which a core stops, 0 for no limit*/
+    public void setBudget(long nbudget) {
+        budget = nbudget;
+    }
+
+    /**Set number of instructions a core runs per turn in scheduled runs*/
+    public void setQuantum(int nquantum) {
+        quantum = Math.max(nquantum,1);
+    }
+
+    /**number of cores*/
+    public int getCores() {
+        return cores.length;
+    }
+
+    /**pCount of given core, memSize if it halted*/
+    public int getPCount(int core) {
+        return cores[core].pc;
+    }
+
+    /**how given core stopped, see virtualOISC.getStatus()*/
+    public int getStatus(int core) {
+        return cores[core].status;
+    }
+
+    /**
+     * ram address whose uninitialized read stopped given core, ioPort if
+     * the port failed
+     */
+    public int getFault(int core) {
+        return cores[core].fault;
+    }
+
+    /**instructions executed by given core*/
+    public long getInstructions(int core) {
+        return cores[core].count;
+    }
+
+    /**output written by the default port*/
+    public byte[] getOutput() {
+        return output.toByteArray();
+    }
+
+    /**Put every core at its first instruction*/
+    private void reset() {
+        for (core c : cores) {
+            c.pc = c.image.skip[c.image.entry];
+            c.status = virtualOISC.halted;
+            c.count = 0;
+            c.running = true;
+        }
+    }
+
+    /**
+     * Run the cores round robin on this thread, each for a quantum of
+     * instructions per turn, until all have stopped
+     *
+     * @return number of instructions executed by all cores together
+     */
+    public long runScheduled() {
+        reset();
+        int left = cores.length;
+        while (left>0) {
+            for (core c : cores) {
+                if (!c.running)
+                    continue;
+                for (int i=0;i<quantum;i++)
+                    if (!step(c))
+                        break;
+                if (!c.running)
+                    left--;
+            }
+        }
+        flushPort();
+        return total();
+    }
+
+    /**
+     * Run every core on a thread of its own until all have stopped
+     *
+     * @return number of instructions executed by all cores together
+     */
+    public long runThreads() throws InterruptedException {
+        reset();
+        sharedRam = new AtomicIntegerArray(ram);
+        Thread[] threads = new Thread[cores.length];
+        for (int i=0;i<cores.length;i++) {
+            final core c = cores[i];
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    //interrupts are checked now and then, not every step
+                    while (sharedStep(c))
+                        if (((c.count&0xffff)==0)&&
+                                Thread.currentThread().isInterrupted())
+                            break;
+                }
+            },"multiOISC-"+i);
+        }
+        for (Thread thread : threads)
+            thread.start();
+        try {
+            for (Thread thread : threads)
+                thread.join();
+        }
+        catch (InterruptedException e) {
+            for (Thread thread : threads)
+                thread.interrupt();
+            throw e;
+        }
+        finally {
+            //also after an interrupt, so ram shows where cores got to
+            for (int i=0;i<memSize;i++)
+                ram[i] = sharedRam.get(i);
+            flushPort();
+        }
+        sharedRam = null;
+        return total();
+    }
+
+    /**instructions executed by all cores together*/
+    private long total() {
+        long ret = 0;
+        for (core c : cores)
+            ret += c.count;
+        return ret;
+    }
+
+    /**
+     * Stop given core if it left rom or used up its budget
+     *
+     * @return true if the core can run its next instruction
+     */
+    private boolean check(core c) {
+        if (c.pc>=memSize)
+            c.status = virtualOISC.halted;
+        else if ((budget>0)&&(c.count>=budget))
+            c.status = virtualOISC.outOfBudget;
+        else
+            return true;
+        c.running = false;
+        return false;
+    }
+
+    /**
+     * Stop given core at its instruction if the io port failed, like
+     * virtualOISC does, fault is then ioPort
+     *
+     * @return true if the port did not fail
+     */
+    private boolean checkPort(core c) {
+        if (port.getError()==null)
+            return true;
+        c.fault = ioPort;
+        c.status = virtualOISC.ioFailed;
+        c.running = false;
+        return false;
+    }
+
+    /**Flush the port, output of the last buffer may fail too*/
+    private void flushPort() {
+        port.flush();
+        if (port.getError()!=null)
+            for (core c : cores)
+                if (c.status==virtualOISC.halted)
+                    c.status = virtualOISC.ioFailed;
+    }
+
+    /**Stop given core on a read of given uninitialized ram address*/
+    private static void fault(core c, int address) {
+        c.fault = address;
+        c.status = virtualOISC.faulted;
+        c.running = false;
+    }
+
+    /**
+     * Execute next instruction of given core on plain ram, like
+     * virtualOISC.step() does
+     *
+     * @return false if the core stopped
+     */
+    private boolean step(core c) {
+        if (!check(c))
+            return false;
+        int word = c.image.rom[c.pc];
+        int a = (word>>>16)&0xff, b = (word>>>8)&0xff, val;
+        boolean io = (b==ioPort);
+        if (virtualOISC.isLoad(word))
+            val = (byte) (word>>>16);
+        else {
+            io |= (a==ioPort);
+            int operA = (a==ioPort) ? port.read() : ram[a];
+            int operB = (b==ioPort) ? 0 : ram[b];
+            if ((operA==uninit)||(operB==uninit)) {
+                fault(c,(operA==uninit) ? a : b);
+                return false;
+            }
+            val = virtualOISC.wrap(operB-operA);
+        }
+        if (b==ioPort)
+            port.write(val);
+        else
+            ram[b] = val;
+        if (io&&!checkPort(c))
+            return false;
+        return advance(c,word,val);
+    }
+
+    /**
+     * Execute next instruction of given core on ram shared between
+     * threads, B is written atomically with the value read from it
+     *
+     * @return false if the core stopped
+     */
+    private boolean sharedStep(core c) {
+        if (!check(c))
+            return false;
+        AtomicIntegerArray ram = sharedRam;
+        int word = c.image.rom[c.pc];
+        int a = (word>>>16)&0xff, b = (word>>>8)&0xff, val;
+        if (virtualOISC.isLoad(word)) {
+            val = (byte) (word>>>16);
+            if (b==ioPort)
+                synchronized (port) {
+                    port.write(val);
+                    if (!checkPort(c))
+                        return false;
+                }
+            else
+                ram.set(b,val);
+        }
+        else if (b==ioPort) {
+            synchronized (port) {
+                int operA = (a==ioPort) ? port.read() : ram.get(a);
+                if (operA==uninit) {
+                    fault(c,a);
+                    return false;
+                }
+                val = virtualOISC.wrap(-operA);
+                port.write(val);
+                if (!checkPort(c))
+                    return false;
+            }
+        }
+        else {
+            //input is read once, not again when the write of B is retried
+            int input = 0;
+            boolean failed = false;
+            if (a==ioPort)
+                synchronized (port) {
+                    input = port.read();
+                    failed = port.getError()!=null;
+                }
+            while (true) {
+                int operB = ram.get(b);
+                //a cell minus itself, read once
+                int operA = (a==ioPort) ? input : (a==b) ? operB : ram.get(a);
+                if ((operA==uninit)||(operB==uninit)) {
+                    fault(c,(operA==uninit) ? a : b);
+                    return false;
+                }
+                val = virtualOISC.wrap(operB-operA);
+                if (ram.compareAndSet(b,operB,val))
+                    break;
+            }
+            //B is written like in virtualOISC before the core stops
+            if (failed)
+                synchronized (port) {
+                    return checkPort(c);
+                }
+        }
+        return advance(c,word,val);
+    }
+
+    /**Move given core past its instruction, which wrote val*/
+    private static boolean advance(core c, int word, int val) {
+        c.count++;
+        c.pc = c.image.skip[(val<=0) ? (word&0xff) : c.pc+1];
+        return true;
+    }
+
+    /**Report names of virtualOISC run statuses*/
+    private static String[] statusNames = {"halted","fault","budget",
+        "timeout","loop","io"};
+
+    /**Main method handles command line input*/
+    public static void main(String[] args) {
+        boolean threads = false;
+        int quantum = defaultQuantum;
+        long budget = 0;
+        String in = null, out = null;
+        int arg = 0;
+        try {
+            while (args[arg].startsWith("-")) {
+                if (args[arg].equals("-threads"))
+                    threads = true;
+                else if (args[arg].equals("-quantum"))
+                    quantum = Integer.parseInt(args[++arg]);
+                else if (args[arg].equals("-budget"))
+                    budget = Long.parseLong(args[++arg]);
+                else if (args[arg].equals("-in"))
+                    in = args[++arg];
+                else if (args[arg].equals("-out"))
+                    out = args[++arg];
+                else {
+                    System.out.println("Unknown option "+args[arg]+".");
+                    return;
+                }
+                arg++;
+            }
+            if (arg>=args.length)
+                throw new ArrayIndexOutOfBoundsException();
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid input, you need to specify at " +
+                    "least one program file.");
+            return;
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid quantum or budget.");
+            return;
+        }
+
+        //programs given for several cores are loaded once
+        Map<String,imageOISC> loaded = new HashMap<String,imageOISC>();
+        imageOISC[] images = new imageOISC[args.length-arg];
+        for (int i=0;i<images.length;i++) {
+            String name = args[arg+i];
+            try {
+                if (!loaded.containsKey(name))
+                    loaded.put(name,
+                            (name.endsWith(".mif")||
+                                    name.endsWith(imageOISC.extension)) ?
+                            imageOISC.load(name) :
+                            compileOISC.compileImage(new String(
+                                Files.readAllBytes(Paths.get(name)),
+                                "US-ASCII")));
+            }
+            catch (NoSuchFileException e) {
+                System.out.println("Cannot find file: "+name);
+                return;
+            }
+            catch (IOException e) {
+                System.out.println(e.getMessage()+" Aborting run.");
+                return;
+            }
+            images[i] = loaded.get(name);
+        }
+
+        multiOISC machine = new multiOISC(images);
+        machine.setBudget(budget);
+        machine.setQuantum(quantum);
+        portOISC port = null;
+        long total, start = System.nanoTime();
+        try {
+            if ((in!=null)||(out!=null)) {
+                portOISC.sink sink = (out==null) ?
+                        portOISC.to(machine.output) : portOISC.toFile(out);
+                port = (in==null) ? new portOISC(new byte[0],sink) :
+                    new portOISC(portOISC.fromFile(in),sink);
+                machine.setPort(port);
+            }
+            total = threads ? machine.runThreads() : machine.runScheduled();
+            if (port!=null) {
+                if (port.getError()!=null)
+                    System.out.println("multiOISC:main:io failed: "+
+                            port.getError());
+                port.close();
+            }
+        }
+        catch (NoSuchFileException e) {
+            System.out.println("Cannot find file: "+e.getMessage());
+            return;
+        }
+        catch (IOException e) {
+            System.out.println("Cannot open file: "+e.getMessage());
+            return;
+        }
+        catch (InterruptedException e) {
+            System.out.println("multiOISC:main:interrupted.");
+            return;
+        }
+        long millis = (System.nanoTime()-start)/1000000;
+
+        for (int i=0;i<machine.getCores();i++) {
+            System.out.printf("Core %d %s: %s, %d instructions, pCount %d",
+                    i,args[arg+i],statusNames[machine.getStatus(i)],
+                    machine.getInstructions(i),machine.getPCount(i));
+            if (machine.getStatus(i)==virtualOISC.faulted)
+                System.out.print(", read of uninitialized ram address "+
+                        machine.getFault(i));
+            else if (machine.getStatus(i)==virtualOISC.ioFailed)
+                System.out.print(", io port failed");
+            System.out.println();
+        }
+        if ((out==null)&&(machine.getOutput().length>0)) {
+            StringBuffer line = new StringBuffer("Output: ");
+            byte[] output = machine.getOutput();
+            for (int i=0;i<output.length;i++)
+                line.append(String.format("%02x",output[i]&0xff));
+            System.out.println(line);
+        }
+        System.out.println("Ram:");
+        for (int i=0;i<memSize;i++)
+            if (machine.getRam(i)!=uninit)
+                System.out.printf("Addr: %3d Val: %3d\n",i,machine.getRam(i));
+        System.out.println("Done. "+total+" instructions executed in "+
+                millis+" ms"+(threads ? " on "+machine.getCores()+
+                        " threads." : ", quantum "+quantum+"."));
+    }
+}
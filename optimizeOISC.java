@@ -0,0 +1,576 @@
+import java.util.*;
+
+/**
+ * Peephole optimizer for code generated by compileOISC. It works on the
+ * compiled instructions as packed words (see virtualOISC) and removes
+ * instructions that do no work:
+ * <ul>
+ * <li> clears (<tt>subleq m(r), m(r)</tt>) of a cell already known to be 0
+ * <li> subtractions of a cell known to be 0, which leave the destination
+ * as it was
+ * <li> a clear followed by a subtraction that computes the value the
+ * cell already holds, like <tt>tempAReg = -m(x)</tt> when an earlier source
+ * line left the same negation there and x did not change since
+ * <li> writes to the scratch registers of the compiler (zeroRegister,
+ * tempAReg, tempBReg and tempCReg) that are overwritten before they are
+ * read again
+ * <li> instructions that cannot be reached
+ * </ul>
+ * Only instructions that continue with the next instruction are removed,
+ * branches are kept but threaded: a branch to a jump that does nothing
+ * else, like JMP (<tt>subleq zeroRegister, zeroRegister, c</tt>), goes to
+ * the target of that jump instead, and an instruction whose result is
+ * known to be &lt;=0 takes over the target of a jump right after it. A
+ * branch that is never taken is turned into a plain instruction.
+ * <br>Last, runs of code that end in such a jump are laid out so the
+ * jump target follows the jump, which can then be removed. Unconditional
+ * jumps are always taken, so this shortens the path that runs. Known
+ * values, either constants or the negation of another cell, and scratch
+ * register liveness are followed over all paths through the program.
+ * The scratch registers are not live when the program halts, so their
+ * final contents can differ from the unoptimized program.
+ * <br>After removing instructions the remaining ones are moved up and
+ * every branch target, including the addresses given to JMP, IFLE and
+ * IFGT in the source, is moved to the new address of its instruction. A
+ * target whose instruction was removed moves to the next instruction
+ * that is kept.
+ * <br>Instructions are not removed if they read ioPort or a cell that is
+ * not initialized by the load instructions at the start of the program,
+ * so input and faults on uninitialized reads happen as before.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class optimizeOISC {
+    /**Scratch registers are the addresses from firstTemp to lastTemp*/
+    private static final int firstTemp = 250, lastTemp = 253;
+    /**
+     * Kinds of known values of a ram cell: nothing known, a constant,
+     * the negation of the value of another cell, or that negated again
+     */
+    private static final int unknown = 0, constant = 1, negated = 2,
+        negatedTwice = 3;
+
+    /**instructions and their source lines, size of them are used*/
+    private int[] code, lines;
+    private int size;
+    /**per instruction flags of the current pass*/
+    private boolean[] leader, removed;
+    /**known values before each instruction in the current pass*/
+    private int[][] known;
+    /**
+     * ram cells written by the load instructions at program start, and
+     * the number of those instructions. They are never removed, since
+     * clearing a cell reads it and would fail without them.
+     */
+    private boolean[] initialized;
+    private int prefix;
+
+    /**
+     * Constructor takes over the code arrays
+     *
+     * @param ncode packed instruction words by address
+     * @param nlines source line of each instruction
+     * @param nsize number of instructions
+     */
+    optimizeOISC(int[] ncode, int[] nlines, int nsize) {
+        code = ncode;
+        lines = nlines;
+        size = nsize;
+
+        initialized = new boolean[virtualOISC.memSize];
+        while ((prefix<size)&&virtualOISC.isLoad(code[prefix]))
+            initialized[virtualOISC.operB(code[prefix++])] = true;
+        initialized[virtualOISC.ioPort] = false;
+    }
+
+    /**
+     * Optimize given code in place, until no more instructions can be
+     * removed.
+     *
+     * @param code packed instruction words by address, entries that are
+     * freed at the end are set to 0
+     * @param lines source line of each instruction, moved along with it
+     * @param size number of instructions
+     * @return number of instructions left
+     */
+    public static int optimize(int[] code, int[] lines, int size) {
+        optimizeOISC opt = new optimizeOISC(code,lines,size);
+        while (opt.pass())
+            ;
+        return opt.size;
+    }
+
+    /**
+     * Remove the first instructions of given code, moving the rest up
+     * and their branch targets along with them. Used to drop load
+     * instructions whose results are put in ram by other means.
+     *
+     * @param code packed instruction words by address, entries that are
+     * freed at the end are set to 0
+     * @param lines source line of each instruction, moved along with it
+     * @param size number of instructions
+     * @param count number of instructions to remove
+     * @return number of instructions left
+     */
+    public static int strip(int[] code, int[] lines, int size, int count) {
+        optimizeOISC opt = new optimizeOISC(code,lines,size);
+        opt.removed = new boolean[size];
+        for (int i=0;i<count;i++)
+            opt.removed[i] = true;
+        opt.compact();
+        return opt.size;
+    }
+
+    /**
+     * One round of removal. Redundant instructions and dead writes are
+     * removed in separate rounds, since removing one kind can make the
+     * other kind needed.
+     *
+     * @return true if any instruction was removed
+     */
+    private boolean pass() {
+        findLeaders();
+        removed = new boolean[size];
+        known = knownValues();
+        if (!removeRedundant()&&!removeDead()&&!threadJumps())
+            return layout();
+        compact();
+        return true;
+    }
+
+    /**Mark start of program, branch targets and instructions after branches*/
+    private void findLeaders() {
+        leader = new boolean[size+1];
+        leader[0] = true;
+        for (int i=0;i<size;i++) {
+            int target = virtualOISC.operC(code[i]);
+            if (target!=i+1) {
+                if (target<size)
+                    leader[target] = true;
+                leader[i+1] = true;
+            }
+        }
+    }
+
+    /**True if instruction at i always continues with the next one*/
+    private boolean straight(int i) {
+        return virtualOISC.operC(code[i])==i+1;
+    }
+
+    /**
+     * Remove unreachable instructions, clears of cells known to be 0,
+     * subtractions of cells known to be 0, and clears followed by a
+     * subtraction that put back the value the cell already held.
+     *
+     * @return true if any instruction was removed
+     */
+    private boolean removeRedundant() {
+        boolean ret = false;
+
+        for (int i=0;i<size;i++) {
+            int word = code[i];
+            int a = virtualOISC.operA(word), b = virtualOISC.operB(word);
+            if (known[i]==null) {
+                ret = removed[i] = true;
+                continue;
+            }
+            if (virtualOISC.isLoad(word)||
+                    (b==virtualOISC.ioPort)||!straight(i))
+                continue;
+
+            if (a==b) {
+                if (known[i][b]==constant(0))
+                    ret = removed[i] = true;
+                else if (recomputes(i,known[i])) {
+                    ret = removed[i] = removed[i+1] = true;
+                    i++;
+                }
+            }
+            //b was written before if anything is known about it
+            else if ((known[i][a]==constant(0))&&
+                    (initialized[b]||(known[i][b]!=unknown)))
+                ret = removed[i] = true;
+        }
+        return ret;
+    }
+
+    /**
+     * True if the clear at i and the subtraction after it only compute
+     * the value the cleared cell holds already, like the negation of a
+     * variable that the previous source line left in tempAReg.
+     */
+    private boolean recomputes(int i, int[] known) {
+        if ((i+1>=size)||leader[i+1]||!straight(i+1))
+            return false;
+        int word = code[i+1], b = virtualOISC.operB(code[i]);
+        int a = virtualOISC.operA(word);
+        if (virtualOISC.isLoad(word)||(virtualOISC.operB(word)!=b)||
+                (a==b)||(a==virtualOISC.ioPort)||(known[b]==unknown))
+            return false;
+
+        int[] after = known.clone();
+        follow(code[i],after);
+        follow(word,after);
+        return after[b]==known[b];
+    }
+
+    /**
+     * Known values of all ram cells before each instruction, following
+     * all paths through the program. A value is known before an
+     * instruction when every path leading there gives the same value.
+     *
+     * @return known values by address and ram cell, null for
+     * instructions that cannot be reached
+     */
+    private int[][] knownValues() {
+        int[][] ret = new int[size][];
+        boolean[] queued = new boolean[size];
+        LinkedList<Integer> work = new LinkedList<Integer>();
+        ret[0] = new int[virtualOISC.memSize];
+        work.add(0);
+
+        while (!work.isEmpty()) {
+            int i = work.removeFirst();
+            queued[i] = false;
+            int[] out = ret[i].clone();
+            follow(code[i],out);
+
+            for (int next : successors(i,ret[i])) {
+                if (next>=size)
+                    continue;
+                boolean changed = false;
+                if (ret[next]==null) {
+                    ret[next] = out.clone();
+                    changed = true;
+                }
+                else
+                    for (int j=0;j<out.length;j++)
+                        if ((ret[next][j]!=out[j])&&(ret[next][j]!=unknown)) {
+                            ret[next][j] = unknown;
+                            changed = true;
+                        }
+                if (changed&&!queued[next]) {
+                    queued[next] = true;
+                    work.add(next);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**Update known values of ram cells for executing one instruction*/
+    private static void follow(int word, int[] known) {
+        int a = virtualOISC.operA(word), b = virtualOISC.operB(word);
+        int value;
+        if (b==virtualOISC.ioPort)
+            return;
+        if (virtualOISC.isLoad(word))
+            value = constant(a);
+        else if (a==b)
+            value = constant(0);
+        else if (a==virtualOISC.ioPort)
+            value = unknown;
+        else if (known[a]==constant(0))
+            return;
+        else
+            value = subtract(a,known[a],known[b]);
+
+        //values given relative to b are no longer true
+        for (int i=0;i<known.length;i++)
+            if ((kind(known[i])>constant)&&(operand(known[i])==b))
+                known[i] = unknown;
+        known[b] = value;
+    }
+
+    /**
+     * Known value of m(b)-m(a), given what is known about m(a) and m(b).
+     * Negation wraps like subleq does, so negating -128 gives -127 and
+     * negating twice does not always give back the original value.
+     * Negating three times is the same as negating once.
+     */
+    private static int subtract(int a, int knownA, int knownB) {
+        if ((kind(knownA)==constant)&&(kind(knownB)==constant))
+            return constant(virtualOISC.wrap(operand(knownB)-operand(knownA)));
+        if (knownB!=constant(0))
+            return unknown;
+        if (kind(knownA)==unknown)
+            return value(negated,a);
+        if (kind(knownA)==negated)
+            return value(negatedTwice,operand(knownA));
+        return value(negated,operand(knownA));
+    }
+
+    /**Known value of given kind, operand is a constant or an address*/
+    private static int value(int kind, int operand) {
+        return (kind<<8)|(operand&0xff);
+    }
+
+    /**Known value of a constant*/
+    private static int constant(int val) {
+        return value(constant,val);
+    }
+
+    /**Kind of a known value*/
+    private static int kind(int value) {
+        return value>>8;
+    }
+
+    /**Constant or address of a known value, constants are sign extended*/
+    private static int operand(int value) {
+        return (kind(value)==constant) ? (byte) value : value&0xff;
+    }
+
+    /**
+     * Remove writes to scratch registers that are not read before being
+     * overwritten, using scratch register liveness over all paths.
+     *
+     * @return true if any instruction was removed
+     */
+    private boolean removeDead() {
+        //live scratch registers after each instruction, one bit each
+        int[] liveOut = new int[size];
+        int[] liveIn = new int[size+1];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i=size-1;i>=0;i--) {
+                int out = 0;
+                for (int next : successors(i))
+                    if (next<size)
+                        out |= liveIn[next];
+                int in = transfer(code[i],out);
+                if ((out!=liveOut[i])||(in!=liveIn[i])) {
+                    liveOut[i] = out;
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean ret = false;
+        for (int i=prefix;i<size;i++) {
+            int word = code[i];
+            int a = virtualOISC.operA(word), b = virtualOISC.operB(word);
+            if ((bit(b)==0)||((liveOut[i]&bit(b))!=0)||!straight(i))
+                continue;
+            if (virtualOISC.isLoad(word)||(a==b)||initialized[a])
+                ret = removed[i] = true;
+        }
+        return ret;
+    }
+
+    /**Addresses execution can continue at after instruction i*/
+    private int[] successors(int i) {
+        int word = code[i], target = virtualOISC.operC(word);
+        if (virtualOISC.isLoad(word))
+            return new int[] {(virtualOISC.operA(word)<=0) ? target : i+1};
+        if (target==i+1)
+            return new int[] {i+1};
+        return new int[] {i+1,target};
+    }
+
+    /**
+     * Addresses execution can continue at after instruction i, leaving
+     * out a branch target or the next instruction if known values show
+     * it is never used
+     */
+    private int[] successors(int i, int[] known) {
+        switch (jumps(code[i],known)) {
+        case 1:
+            return new int[] {virtualOISC.operC(code[i])};
+        case -1:
+            return new int[] {i+1};
+        }
+        return successors(i);
+    }
+
+    /**
+     * Check if an instruction continues at its target.
+     *
+     * @param word instruction
+     * @param known known values before it, null if not known
+     * @return 1 if it always does, -1 if it never does, 0 if that depends
+     * on values that are not known
+     */
+    private static int jumps(int word, int[] known) {
+        int a = virtualOISC.operA(word), b = virtualOISC.operB(word);
+        if (virtualOISC.isLoad(word))
+            return (a<=0) ? 1 : -1;
+        if ((known==null)||(a==virtualOISC.ioPort)||(b==virtualOISC.ioPort))
+            return 0;
+        if (a==b)
+            return 1;
+        int result = (known[a]==constant(0)) ? known[b] :
+            subtract(a,known[a],known[b]);
+        if (kind(result)!=constant)
+            return 0;
+        return (operand(result)<=0) ? 1 : -1;
+    }
+
+    /**
+     * Send branches that are always taken, or can be, through jumps that
+     * do nothing else, and turn branches that are never taken into plain
+     * instructions.
+     *
+     * @return true if any target was changed
+     */
+    private boolean threadJumps() {
+        boolean ret = false;
+        for (int i=0;i<size;i++) {
+            int word = code[i], target = virtualOISC.operC(word), next;
+            if (known[i]==null)
+                continue;
+
+            int jump = jumps(word,known[i]);
+            if (jump<0)
+                next = i+1;
+            else if ((jump>0)||(target!=i+1))
+                next = thread(target);
+            else
+                continue;
+
+            if ((next!=target)&&(next<virtualOISC.memSize)) {
+                code[i] = (word&~0xff)|next;
+                ret = true;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Final target of the jumps doing nothing else starting at given
+     * address, the address itself if there are none or they loop
+     */
+    private int thread(int target) {
+        int ret = target;
+        for (int steps=0;(ret<size)&&emptyJump(ret);steps++) {
+            if (steps>=size)
+                return target;
+            ret = virtualOISC.operC(code[ret]);
+        }
+        return ret;
+    }
+
+    /**True if instruction at i jumps and changes nothing, clearing a 0*/
+    private boolean emptyJump(int i) {
+        int word = code[i], b = virtualOISC.operB(word);
+        return (known[i]!=null)&&!virtualOISC.isLoad(word)&&
+            (virtualOISC.operA(word)==b)&&(known[i][b]==constant(0));
+    }
+
+    /**
+     * Move runs of instructions, which end where the last instruction
+     * always jumps, so that a run ending in a jump doing nothing else is
+     * followed by the run the jump goes to. The first run, which holds
+     * the program start, and the last one, which can run past the end of
+     * the program, stay in place. Other runs keep their order.
+     *
+     * @return true if any code was moved
+     */
+    private boolean layout() {
+        //runs as {first address, last address + 1}
+        List<int[]> runs = new ArrayList<int[]>();
+        int[] runAt = new int[size];
+        Arrays.fill(runAt,-1);
+        for (int i=0,start=0;i<size;i++)
+            if ((i==size-1)||(jumps(code[i],known[i])>0)) {
+                runAt[start] = runs.size();
+                runs.add(new int[] {start,i+1});
+                start = i+1;
+            }
+
+        int last = runs.size()-1, cur = 0;
+        boolean[] placed = new boolean[runs.size()];
+        List<Integer> order = new ArrayList<Integer>();
+        order.add(0);
+        placed[0] = true;
+        while (order.size()<last) {
+            int end = runs.get(cur)[1]-1, target = virtualOISC.operC(code[end]);
+            int next = (target<size) ? runAt[target] : -1;
+            if (!emptyJump(end)||(next<=0)||(next==last)||placed[next]) {
+                next = 1;
+                while (placed[next])
+                    next++;
+            }
+            order.add(next);
+            placed[next] = true;
+            cur = next;
+        }
+        if (last>0)
+            order.add(last);
+
+        boolean moved = false;
+        for (int i=0;i<order.size();i++)
+            moved |= order.get(i)!=i;
+        if (!moved)
+            return false;
+
+        //new address of each instruction
+        int[] map = new int[size];
+        int n = 0;
+        for (int run : order)
+            for (int i=runs.get(run)[0];i<runs.get(run)[1];i++)
+                map[i] = n++;
+
+        int[] ncode = new int[size], nlines = new int[size];
+        for (int i=0;i<size;i++) {
+            int word = code[i], target = virtualOISC.operC(word);
+            if (target<size)
+                word = (word&~0xff)|map[target];
+            ncode[map[i]] = word;
+            nlines[map[i]] = lines[i];
+        }
+        System.arraycopy(ncode,0,code,0,size);
+        System.arraycopy(nlines,0,lines,0,size);
+        return true;
+    }
+
+    /**Live scratch registers before an instruction, given those after it*/
+    private static int transfer(int word, int out) {
+        int a = virtualOISC.operA(word), b = virtualOISC.operB(word);
+        //loads and clears only write b
+        if (virtualOISC.isLoad(word)||(a==b))
+            return out&~bit(b);
+        return out|bit(a)|bit(b);
+    }
+
+    /**Liveness bit of given address, 0 if it is not a scratch register*/
+    private static int bit(int addr) {
+        if ((addr<firstTemp)||(addr>lastTemp))
+            return 0;
+        return 1<<(addr-firstTemp);
+    }
+
+    /**Move kept instructions up and fix branch targets*/
+    private void compact() {
+        //new address of each instruction, or of the next kept one
+        int[] map = new int[size+1];
+        int n = 0;
+        for (int i=0;i<size;i++) {
+            map[i] = n;
+            if (!removed[i])
+                n++;
+        }
+        map[size] = n;
+
+        for (int i=0;i<size;i++) {
+            if (removed[i])
+                continue;
+            int word = code[i], target = virtualOISC.operC(word);
+            //targets past the end of the program stay where they are
+            if (target<=size)
+                target = map[target];
+            code[map[i]] = (word&~0xff)|target;
+            lines[map[i]] = lines[i];
+        }
+        for (int i=n;i<size;i++) {
+            code[i] = 0;
+            lines[i] = 0;
+        }
+        size = n;
+    }
+}
@@ -0,0 +1,237 @@
+import java.nio.CharBuffer;
+import java.util.*;
+
+/**
+ * Parses PKOPL source into a syntax tree: a list of operations, one per
+ * source line that holds an operator, each with its operands. compileOISC
+ * generates code from that list, so the source is read once and passes
+ * that look at the whole program can work on it before any code exists.
+ * <br>
+ * <br>Each line holds at most one operation. The first word of a line is
+ * the operator, the words after it are its operands, and anything past
+ * the operands the operator takes is ignored, so comments can follow
+ * them. Lines that cannot be compiled are kept in the list, either with
+ * operator unknown or marked as incomplete when operands are missing, so
+ * the compiler can report them in source order.
+ * <br>
+ * <br>Operands are classified by their form, as decimal numbers (digits
+ * only), binary numbers (prefix <tt>#</tt>), hex numbers (prefix
+ * <tt>$</tt>) or variable names. Their values are only worked out by the
+ * compiler, since variable addresses depend on the DEF lines before them.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class parseOISC {
+    /**Operator names, indexed by operator code*/
+    public static final String[] operators = {"DEF","JMP","ADD","SUB",
+        "DIV","MUL","IFGT","IFLE","MOV"};
+    /**Operator codes, unknown for lines whose operator is not known*/
+    public static final int def = 0, jmp = 1, add = 2, sub = 3, div = 4,
+        mul = 5, ifgt = 6, ifle = 7, mov = 8, unknown = -1;
+    /**Number of operands each operator takes, indexed by operator code*/
+    private static final int[] operandCounts = {2,1,3,3,3,3,3,3,2};
+    /**Operand kinds: decimal number, binary number, hex number, name*/
+    public static final int number = 0, binary = 1, hex = 2, name = 3;
+
+    /**
+     * One operand, with the line and column it starts at
+     */
+    public static class operand {
+        public final int kind;
+        public final String text;
+        public final int line, column;
+
+        operand(int nkind, String ntext, int nline, int ncolumn) {
+            kind = nkind;
+            text = ntext;
+            line = nline;
+            column = ncolumn;
+        }
+
+        /**text without the prefix of binary and hex numbers*/
+        public String digits() {
+            return ((kind==binary)||(kind==hex)) ? text.substring(1) : text;
+        }
+    }
+
+    /**
+     * One operation, with the line and column its operator starts at
+     */
+    public static class operation {
+        /**operator code, unknown if the operator is not known*/
+        public final int operator;
+        /**operator as written in source*/
+        public final String name;
+        /**operands read, fewer than the operator takes if incomplete*/
+        public final operand[] operands;
+        public final int line, column;
+        /**false if the line ended before all operands were read*/
+        public final boolean complete;
+
+        operation(int noperator, String nname, operand[] noperands,
+                int nline, int ncolumn, boolean ncomplete) {
+            operator = noperator;
+            name = nname;
+            operands = noperands;
+            line = nline;
+            column = ncolumn;
+            complete = ncomplete;
+        }
+    }
+
+    private lexerOISC lexer;
+    /**number of lines read by the last parse*/
+    private int lines;
+    /**
+     * offsets at which the lines read by the last parse start, followed
+     * by the offset its source ends at
+     */
+    private int[] lineStarts;
+
+    /**Constructor for a parser, which can parse any number of sources*/
+    parseOISC() {
+        lexer = new lexerOISC();
+    }
+
+    /**accessor for number of source lines read by the last parse*/
+    public int getLines() {
+        return lines;
+    }
+
+    /**
+     * Offsets in the source array at which the lines read by the last
+     * parse start, followed by the offset the source ends at
+     *
+     * @return array of getLines()+1 offsets
+     */
+    public int[] getLineStarts() {
+        return Arrays.copyOf(lineStarts,lines+1);
+    }
+
+    /**
+     * Parse given source. Char buffers backed by an array are read in
+     * place, anything else is copied once.
+     *
+     * @param source PKOPL source
+     * @return operations in source order
+     */
+    public List<operation> parse(CharSequence source) {
+        if ((source instanceof CharBuffer)&&((CharBuffer) source).hasArray()) {
+            CharBuffer buf = (CharBuffer) source;
+            return parse(buf.array(),buf.arrayOffset()+buf.position(),
+                    buf.remaining());
+        }
+        char[] buf = source.toString().toCharArray();
+        return parse(buf,0,buf.length);
+    }
+
+    /**
+     * Parse given part of a char array, which must not change meanwhile
+     *
+     * @param buf source text
+     * @param offset offset of the first character of source
+     * @param length length of source
+     * @return operations in source order
+     */
+    public List<operation> parse(char[] buf, int offset, int length) {
+        return parse(buf,offset,length,1);
+    }
+
+    /**
+     * Parse given part of a char array, which must not change meanwhile,
+     * numbering its lines from given line on. Used to parse again only
+     * the lines of a source that changed.
+     *
+     * @param buf source text
+     * @param offset offset of the first character of source, which has
+     * to start a line
+     * @param length length of source
+     * @param firstLine line number of the first line
+     * @return operations in source order
+     */
+    public List<operation> parse(char[] buf, int offset, int length,
+            int firstLine) {
+        List<operation> ret = new ArrayList<operation>();
+        lexer.reset(buf,offset,length,firstLine);
+        lines = 0;
+        lineStarts = new int[16];
+        lineStarts[0] = offset;
+
+        int kind;
+        while ((kind = lexer.next())!=lexerOISC.end) {
+            if (kind==lexerOISC.lineEnd) {
+                lineEnd();
+                continue;
+            }
+            int line = lexer.getLine(), column = lexer.getColumn();
+            int oper = operator();
+            if (oper==unknown) {
+                ret.add(new operation(unknown,lexer.text(),new operand[0],
+                        line,column,true));
+                lexer.skipLine();
+                continue;
+            }
+
+            operand[] opers = new operand[operandCounts[oper]];
+            int count = 0;
+            while ((count<opers.length)&&((kind = lexer.next())==
+                    lexerOISC.word))
+                opers[count++] = operand();
+            if (count<opers.length) {
+                ret.add(new operation(oper,operators[oper],
+                        Arrays.copyOf(opers,count),line,column,false));
+                //the line or source ended
+                if (kind==lexerOISC.lineEnd)
+                    lineEnd();
+                else
+                    break;
+            }
+            else {
+                ret.add(new operation(oper,operators[oper],opers,line,column,
+                        true));
+                lexer.skipLine();
+            }
+        }
+        return ret;
+    }
+
+    /**Count the line ended by current token and note where the next starts*/
+    private void lineEnd() {
+        lines++;
+        if (lines>=lineStarts.length)
+            lineStarts = Arrays.copyOf(lineStarts,lineStarts.length*2);
+        lineStarts[lines] = lexer.getPosition();
+    }
+
+    /**Operator code of current token*/
+    private int operator() {
+        for (int i=0;i<operators.length;i++)
+            if (lexer.is(operators[i]))
+                return i;
+        return unknown;
+    }
+
+    /**Current token as operand*/
+    private operand operand() {
+        int kind = number;
+        char first = lexer.charAt(0);
+        if (first=='#')
+            kind = binary;
+        else if (first=='$')
+            kind = hex;
+        else
+            for (int i=0;i<lexer.length();i++) {
+                char c = lexer.charAt(i);
+                if ((c<'0')||(c>'9')) {
+                    kind = name;
+                    break;
+                }
+            }
+        return new operand(kind,lexer.text(),lexer.getLine(),
+                lexer.getColumn());
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded pipe between two threads, for chaining OISC programs into a
+ * pipeline where each stage runs on its own thread and core.
+ * <br>Run using: <tt>java pipeOISC &lt;input file&gt; &lt;output file&gt;
+ * &lt;program&gt; [program...]</tt>
+ * <br>Runs the programs as a pipeline: the input file is fed to the
+ * ioPort of the first program, the output of each program is the input of
+ * the next one and the output of the last is written to the output file.
+ * Program files ending in <tt>.mif</tt> or <tt>.rom</tt> are loaded as
+ * rom images, anything else is compiled as PKOPL source.
+ * <br>
+ * <br>A pipe is a ring buffer with one writing and one reading thread, so
+ * it needs no locks: the writer alone moves the tail and the reader alone
+ * moves the head. A full pipe parks the writer and an empty one parks the
+ * reader until the other side moves, nothing spins. The ports of
+ * virtualOISC move whole buffers through the pipe, so those hand overs
+ * happen once per buffer, not once per value. Closing the sink ends the
+ * input of the reader after everything written, closing the source makes
+ * further writes fail, which stops the run of the writing stage.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class pipeOISC {
+    /**Default pipe capacity in bytes*/
+    public static final int defaultCapacity = 1<<16;
+
+    /**ring buffer, capacity is a power of 2*/
+    private final byte[] buf;
+    private final int mask;
+    /**bytes read and written so far, the buffer holds the ones between*/
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    /**thread parked on an empty or full pipe, null if none*/
+    private volatile Thread reader, writer;
+    /**set when the sink or the source is closed*/
+    private volatile boolean writeClosed, readClosed;
+
+    /**Constructor for pipe with default capacity*/
+    public pipeOISC() {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Constructor for pipe with given capacity
+     *
+     * @param capacity bytes the pipe holds, rounded up to a power of 2
+     */
+    public pipeOISC(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity,1));
+        if (size<capacity)
+            size <<= 1;
+        buf = new byte[size];
+        mask = size-1;
+    }
+
+    /**
+     * The end of the pipe a port reads from, for one thread only
+     */
+    public portOISC.source source() {
+        return new portOISC.source() {
+            public int read(byte[] dst, int off, int len) throws IOException {
+                long h = head.get();
+                long avail;
+                while ((avail = tail.get()-h)==0) {
+                    //everything written before the close is in tail
+                    if (writeClosed&&(tail.get()==h))
+                        return -1;
+                    reader = Thread.currentThread();
+                    if ((tail.get()==h)&&!writeClosed)
+                        LockSupport.park(this);
+                    reader = null;
+                    if (Thread.interrupted())
+                        throw new InterruptedIOException();
+                }
+                int n = (int) Math.min(len,avail);
+                copy(h,dst,off,n,true);
+                head.set(h+n);
+                wake(writer);
+                return n;
+            }
+            public void close() {
+                readClosed = true;
+                wake(writer);
+            }
+        };
+    }
+
+    /**
+     * The end of the pipe a port writes to, for one thread only
+     */
+    public portOISC.sink sink() {
+        return new portOISC.sink() {
+            public void write(byte[] src, int off, int len) throws IOException {
+                while (len>0) {
+                    long t = tail.get();
+                    long free;
+                    while ((free = buf.length-(t-head.get()))==0) {
+                        if (readClosed)
+                            throw new IOException("pipe closed by reader");
+                        writer = Thread.currentThread();
+                        if ((t-head.get()==buf.length)&&!readClosed)
+                            LockSupport.park(this);
+                        writer = null;
+                        if (Thread.interrupted())
+                            throw new InterruptedIOException();
+                    }
+                    if (readClosed)
+                        throw new IOException("pipe closed by reader");
+                    int n = (int) Math.min(len,free);
+                    copy(t,src,off,n,false);
+                    tail.set(t+n);
+                    wake(reader);
+                    off += n;
+                    len -= n;
+                }
+            }
+            public void flush() {}
+            public void close() {
+                writeClosed = true;
+                wake(reader);
+            }
+        };
+    }
+
+    /**
+     * Copy n bytes between the ring at given position and an array
+     *
+     * @param out true to copy from the ring to the array
+     */
+    private void copy(long pos, byte[] array, int off, int n, boolean out) {
+        int at = (int) pos&mask;
+        int first = Math.min(n,buf.length-at);
+        if (out) {
+            System.arraycopy(buf,at,array,off,first);
+            System.arraycopy(buf,0,array,off+first,n-first);
+        }
+        else {
+            System.arraycopy(array,off,buf,at,first);
+            System.arraycopy(array,off+first,buf,0,n-first);
+        }
+    }
+
+    /**Unpark given thread, if any*/
+    private static void wake(Thread thread) {
+        if (thread!=null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Start running the interpreter of given instance on a new thread.
+     * Its port is closed when the run ends, so a pipe it writes to ends
+     * there.
+     *
+     * @param vm instance to run, with its port set up
+     * @param count where the thread stores the number of instructions
+     * executed, at given index
+     * @return started thread
+     */
+    public static Thread start(final virtualOISC vm, final long[] count,
+            final int index) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    count[index] = vm.interpret();
+                }
+                finally {
+                    try {
+                        vm.getPort().close();
+                    }
+                    catch (IOException e) {}
+                }
+            }
+        },"pipeOISC-"+index);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Runs given instances as a pipeline, each on its own thread. The
+     * first reads from given source, each writes to the next through a
+     * pipe, and the last writes to given sink. Source and sink are closed
+     * when their stage ends. The ports of the instances are replaced.
+     *
+     * @param stages instances in pipeline order
+     * @param in source of the first stage
+     * @param out sink of the last stage
+     * @param capacity capacity of each pipe in bytes
+     * @return number of instructions executed by each stage
+     */
+    public static long[] pipeline(virtualOISC[] stages, portOISC.source in,
+            portOISC.sink out, int capacity) throws InterruptedException {
+        long[] counts = new long[stages.length];
+        Thread[] threads = new Thread[stages.length];
+        portOISC.source from = in;
+        for (int i=0;i<stages.length;i++) {
+            portOISC.sink to = out;
+            pipeOISC pipe = null;
+            if (i<stages.length-1) {
+                pipe = new pipeOISC(capacity);
+                to = pipe.sink();
+            }
+            stages[i].setPort(new portOISC(from,to));
+            if (pipe!=null)
+                from = pipe.source();
+        }
+        for (int i=0;i<stages.length;i++)
+            threads[i] = start(stages[i],counts,i);
+        try {
+            for (int i=0;i<stages.length;i++)
+                threads[i].join();
+        }
+        catch (InterruptedException e) {
+            for (int i=0;i<stages.length;i++)
+                threads[i].interrupt();
+            throw e;
+        }
+        return counts;
+    }
+
+    /**Main method handles command line input*/
+    public static void main(String[] args) {
+        if (args.length<3) {
+            System.out.println("Invalid input, you need to specify input " +
+                    "file, output file and programs.");
+            return;
+        }
+
+        virtualOISC[] stages = new virtualOISC[args.length-2];
+        for (int i=0;i<stages.length;i++) {
+            String name = args[i+2];
+            imageOISC image;
+            try {
+                if (name.endsWith(".mif")||name.endsWith(imageOISC.extension))
+                    image = imageOISC.load(name);
+                else
+                    image = compileOISC.compileImage(new String(
+                            Files.readAllBytes(Paths.get(name)),"US-ASCII"));
+            }
+            catch (NoSuchFileException e) {
+                System.out.println("Cannot find file: "+name);
+                return;
+            }
+            catch (IOException e) {
+                System.out.println(e.getMessage()+" Aborting run.");
+                return;
+            }
+            stages[i] = new virtualOISC(image);
+        }
+
+        long start = System.nanoTime();
+        long[] counts;
+        try {
+            counts = pipeline(stages,portOISC.fromFile(args[0]),
+                    portOISC.toFile(args[1]),defaultCapacity);
+        }
+        catch (NoSuchFileException e) {
+            System.out.println("Cannot find file: "+args[0]);
+            return;
+        }
+        catch (IOException e) {
+            System.out.println("Cannot open file: "+e.getMessage());
+            return;
+        }
+        catch (InterruptedException e) {
+            System.out.println("pipeOISC:main:interrupted.");
+            return;
+        }
+        long millis = (System.nanoTime()-start)/1000000;
+
+        long total = 0;
+        for (int i=0;i<stages.length;i++) {
+            System.out.print("Stage "+(i+1)+" "+args[i+2]+": "+counts[i]+
+                    " instructions");
+            if (stages[i].getStatus()==virtualOISC.ioFailed)
+                System.out.print(", io failed: "+
+                        stages[i].getPort().getError());
+            else if (stages[i].getStatus()!=virtualOISC.halted)
+                System.out.print(", stopped at rom address "+
+                        stages[i].getPCount());
+            System.out.println(".");
+            total += counts[i];
+        }
+        System.out.println("Done. "+total+" instructions executed in "+
+                millis+" ms, output written to "+args[1]+".");
+    }
+}
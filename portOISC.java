@@ -0,0 +1,342 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Buffered io for the ioPort of virtualOISC. A port reads input from a
+ * source and writes output to a sink through buffers of its own, so a
+ * program that does a lot of io does not pay a stream call for every
+ * value. Sources and sinks can be byte arrays, files, any stream, such as
+ * a pipe, or queues of byte arrays that other threads fill and empty.
+ * <br>
+ * <br>Each input byte is read as a two's complement value and end of
+ * input reads as 0, each output value is written as one byte. Input is
+ * read ahead a buffer at a time. Output is written to the sink when the
+ * buffer is full, when the port is flushed, which virtualOISC does at the
+ * end of every run, and before the port waits for more input, so a
+ * program talking to another one through pipes or queues never waits
+ * for an answer to output it has not sent.
+ * <br>
+ * <br>A port without source or sink leaves that direction to virtualOISC,
+ * which then prompts the user or prints to the screen.
+ * <br>The first error of the source or sink is kept, see getError(), and
+ * virtualOISC stops its run on it. After an error of the source the
+ * input reads as ended, after an error of the sink output is dropped.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class portOISC implements Closeable {
+    /**Default size of the input and output buffers*/
+    public static final int bufferSize = 1<<16;
+    /**Queue element marking end of input, compared by reference*/
+    public static final byte[] end = new byte[0];
+
+    /**Where input comes from*/
+    public interface source extends Closeable {
+        /**
+         * Read at most len bytes into buf at off, waiting until at least
+         * one is there
+         *
+         * @return number of bytes read, -1 at end of input
+         */
+        int read(byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**Where output goes*/
+    public interface sink extends Closeable {
+        /**Write len bytes of buf at off*/
+        void write(byte[] buf, int off, int len) throws IOException;
+        /**Pass written bytes on, if the sink holds any back*/
+        void flush() throws IOException;
+    }
+
+    private source in;
+    private sink out;
+    /**input buffer, bytes from inPos to inEnd are not read yet*/
+    private byte[] inBuf;
+    private int inPos, inEnd;
+    /**no more input after the buffer, buffer belongs to the caller*/
+    private boolean inDone, borrowed;
+    /**output buffer, bytes up to outPos are not written yet*/
+    private byte[] outBuf;
+    private int outPos;
+    /**size of buffers allocated for sources and sinks*/
+    private final int size;
+    /**first error of source or sink, null if none*/
+    private IOException error;
+    /**sink failed, output is dropped*/
+    private boolean outFailed;
+
+    /**Constructor for port that leaves io to keyboard and screen*/
+    public portOISC() {
+        this((source) null,null);
+    }
+
+    /**
+     * Constructor for port with given source and sink
+     *
+     * @param nin source, null to prompt the user
+     * @param nout sink, null to print to the screen
+     */
+    public portOISC(source nin, sink nout) {
+        this(nin,nout,bufferSize);
+    }
+
+    /**
+     * Constructor for port with given source, sink and buffer size
+     *
+     * @param nin source, null to prompt the user
+     * @param nout sink, null to print to the screen
+     * @param nsize size of input and output buffers in bytes
+     */
+    public portOISC(source nin, sink nout, int nsize) {
+        size = nsize;
+        inBuf = outBuf = new byte[0];
+        setSource(nin);
+        setSink(nout);
+    }
+
+    /**
+     * Constructor for port reading given bytes, without a copy, and
+     * writing to given sink
+     *
+     * @param input all input of the port
+     * @param nout sink, null to print to the screen
+     */
+    public portOISC(byte[] input, sink nout) {
+        this((source) null,nout);
+        inBuf = input;
+        inEnd = input.length;
+        inDone = borrowed = true;
+    }
+
+    /**
+     * Read from given source from now on, input read ahead from the one
+     * before is dropped and an error kept is cleared
+     *
+     * @param nin source, null to prompt the user
+     */
+    public void setSource(source nin) {
+        in = nin;
+        error = null;
+        inPos = inEnd = 0;
+        inDone = false;
+        //a direction left to the user needs no buffer
+        if ((in!=null)&&(borrowed||(inBuf.length<size)))
+            inBuf = new byte[size];
+        borrowed = false;
+    }
+
+    /**
+     * Write to given sink from now on, output buffered for the one before
+     * is written to it first and an error kept is cleared
+     *
+     * @param nout sink, null to print to the screen
+     */
+    public void setSink(sink nout) {
+        flush();
+        out = nout;
+        error = null;
+        outFailed = false;
+        if ((out!=null)&&(outBuf.length<size))
+            outBuf = new byte[size];
+    }
+
+    /**True if input comes from a source, not from the user*/
+    public boolean hasInput() {
+        return inDone||(in!=null);
+    }
+
+    /**True if output goes to a sink, not to the screen*/
+    public boolean hasOutput() {
+        return out!=null;
+    }
+
+    /**
+     * First error of source or sink since they were set, null if none
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**Keep given error unless there was one before*/
+    private void fail(IOException e) {
+        if (error==null)
+            error = e;
+    }
+
+    /**
+     * Read next input value, 0 at end of input or when the source fails
+     */
+    public int read() {
+        if (inPos<inEnd)
+            return inBuf[inPos++];
+        if (inDone||(in==null))
+            return 0;
+        try {
+            //whoever sends the input may wait for our output
+            flush();
+            int n = in.read(inBuf,0,inBuf.length);
+            if (n<=0) {
+                inDone = true;
+                return 0;
+            }
+            inPos = 0;
+            inEnd = n;
+            return inBuf[inPos++];
+        }
+        catch (IOException e) {
+            fail(e);
+            inDone = true;
+            return 0;
+        }
+    }
+
+    /**Write a value as one byte, output is lost when the sink fails*/
+    public void write(int val) {
+        if (out==null)
+            return;
+        if (outPos==outBuf.length)
+            drain();
+        outBuf[outPos++] = (byte) val;
+    }
+
+    /**Write buffered output to the sink and flush it*/
+    public void flush() {
+        drain();
+        if ((out!=null)&&!outFailed)
+            try {
+                out.flush();
+            }
+            catch (IOException e) {
+                fail(e);
+                outFailed = true;
+            }
+    }
+
+    /**Write buffered output to the sink*/
+    private void drain() {
+        if ((outPos==0)||(out==null))
+            return;
+        if (!outFailed)
+            try {
+                out.write(outBuf,0,outPos);
+            }
+            catch (IOException e) {
+                fail(e);
+                outFailed = true;
+            }
+        outPos = 0;
+    }
+
+    /**Flush output and close source and sink*/
+    public void close() throws IOException {
+        flush();
+        try {
+            if (in!=null)
+                in.close();
+        }
+        finally {
+            if (out!=null)
+                out.close();
+        }
+    }
+
+    /**Source reading given stream, such as a PipedInputStream*/
+    public static source from(final InputStream stream) {
+        return new source() {
+            public int read(byte[] buf, int off, int len) throws IOException {
+                return stream.read(buf,off,len);
+            }
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    /**Source reading given file*/
+    public static source fromFile(String file) throws IOException {
+        return from(Files.newInputStream(Paths.get(file)));
+    }
+
+    /**
+     * Source taking byte arrays from given queue until it takes end.
+     * Arrays must not be modified after they are put in the queue.
+     */
+    public static source from(final BlockingQueue<byte[]> queue) {
+        return new source() {
+            private byte[] chunk;
+            private int pos;
+
+            public int read(byte[] buf, int off, int len) throws IOException {
+                try {
+                    while ((chunk==null)||(pos==chunk.length)) {
+                        if (chunk==end)
+                            return -1;
+                        chunk = queue.take();
+                        pos = 0;
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                int n = Math.min(len,chunk.length-pos);
+                System.arraycopy(chunk,pos,buf,off,n);
+                pos += n;
+                return n;
+            }
+            public void close() {}
+        };
+    }
+
+    /**Sink writing to given stream, such as a PipedOutputStream*/
+    public static sink to(final OutputStream stream) {
+        return new sink() {
+            public void write(byte[] buf, int off, int len) throws IOException {
+                stream.write(buf,off,len);
+            }
+            public void flush() throws IOException {
+                stream.flush();
+            }
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    /**Sink writing given file, which is created or truncated*/
+    public static sink toFile(String file) throws IOException {
+        return to(Files.newOutputStream(Paths.get(file)));
+    }
+
+    /**
+     * Sink putting written output into given queue as byte arrays,
+     * followed by end when closed
+     */
+    public static sink to(final BlockingQueue<byte[]> queue) {
+        return new sink() {
+            public void write(byte[] buf, int off, int len) throws IOException {
+                put(Arrays.copyOfRange(buf,off,off+len));
+            }
+            public void flush() {}
+            public void close() throws IOException {
+                put(end);
+            }
+            private void put(byte[] chunk) throws IOException {
+                try {
+                    queue.put(chunk);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+
+/**
+ * Execution profile of one run of a program, collected by the profiling
+ * loop of virtualOISC. Counts how often each rom address was executed,
+ * how often each branch was taken and not taken, and how often each ram
+ * address was read and written.
+ * <br>
+ * <br>The report lists the hottest instructions, the hottest loops and
+ * the most used ram addresses. A loop is a branch whose target lies at or
+ * before the branch itself and that was taken at least once, like the
+ * back jumps of the MUL and DIV macros of compileOISC. Loops are reported
+ * with the PKOPL source lines they were compiled from, when the image
+ * knows them.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class profileOISC {
+    /**Number of entries shown in each table of the report*/
+    private static int reportSize = 10;
+
+    /**profiled program*/
+    private imageOISC image;
+    /**counts per rom address*/
+    private long[] exec, taken, notTaken;
+    /**counts per ram address*/
+    private long[] reads, writes;
+    private long total;
+
+    /**
+     * Constructor starts an empty profile of given image
+     *
+     * @param nimage profiled program
+     */
+    profileOISC(imageOISC nimage) {
+        image = nimage;
+        exec = new long[virtualOISC.memSize];
+        taken = new long[virtualOISC.memSize];
+        notTaken = new long[virtualOISC.memSize];
+        reads = new long[virtualOISC.memSize];
+        writes = new long[virtualOISC.memSize];
+    }
+
+    /**
+     * Record execution of an instruction
+     *
+     * @param pc address of executed instruction
+     * @param next address execution continued at, after skipping empty
+     * slots
+     */
+    void count(int pc, int next) {
+        int word = image.rom[pc];
+        int b = virtualOISC.operB(word);
+
+        exec[pc]++;
+        total++;
+        if (!virtualOISC.isLoad(word)) {
+            reads[virtualOISC.operA(word)]++;
+            reads[b]++;
+        }
+        writes[b]++;
+
+        //instructions whose target is the next instruction do not branch
+        int target = image.skip[virtualOISC.operC(word)];
+        if (target!=image.skip[pc+1]) {
+            if (next==target)
+                taken[pc]++;
+            else
+                notTaken[pc]++;
+        }
+    }
+
+    /**accessor for number of instructions executed*/
+    public long getTotal() {
+        return total;
+    }
+
+    /**number of times instruction at given rom address was executed*/
+    public long getCount(int addr) {
+        return exec[addr];
+    }
+
+    /**number of times branch at given rom address was taken*/
+    public long getTaken(int addr) {
+        return taken[addr];
+    }
+
+    /**number of times branch at given rom address was not taken*/
+    public long getNotTaken(int addr) {
+        return notTaken[addr];
+    }
+
+    /**number of reads from given ram address*/
+    public long getReads(int addr) {
+        return reads[addr];
+    }
+
+    /**number of writes to given ram address*/
+    public long getWrites(int addr) {
+        return writes[addr];
+    }
+
+    /**Display the profile report*/
+    public void report() {
+        System.out.println("Profile of "+total+" executed instructions.");
+        if (total==0)
+            return;
+
+        System.out.println("Hottest instructions:");
+        System.out.println("Addr  Line        Count       %        Taken" +
+                "    Not taken  Instr");
+        for (int addr : top(exec)) {
+            int word = image.rom[addr];
+            System.out.printf("%4d %5s %12d %6.2f%%",addr,
+                    line(image.getLine(addr)),exec[addr],percent(exec[addr]));
+            if (taken[addr]+notTaken[addr]>0)
+                System.out.printf(" %12d %12d",taken[addr],notTaken[addr]);
+            else
+                System.out.printf(" %12s %12s","-","-");
+            System.out.println("  "+virtualOISC.disassemble(word));
+        }
+
+        System.out.println("Hot loops:");
+        List<long[]> loops = loops();
+        if (loops.size()==0)
+            System.out.println("No loops executed.");
+        else
+            System.out.println("Addr        Lines      Iterations  " +
+                    "Instructions       %");
+        for (int i=0;(i<loops.size())&&(i<reportSize);i++) {
+            long[] loop = loops.get(i);
+            System.out.printf("%3d-%3d %9s %15d %13d %6.2f%%\n",loop[0],loop[1],
+                    lines((int) loop[0],(int) loop[1]),loop[2],loop[3],
+                    percent(loop[3]));
+        }
+
+        System.out.println("Most used ram addresses:");
+        System.out.println("Addr        Reads       Writes");
+        long[] access = new long[virtualOISC.memSize];
+        for (int i=0;i<access.length;i++)
+            access[i] = reads[i]+writes[i];
+        for (int addr : top(access))
+            System.out.printf("%4d %12d %12d\n",addr,reads[addr],writes[addr]);
+        System.out.println("Done.");
+    }
+
+    /**
+     * Find executed loops, as {first address, back jump address,
+     * iterations, instructions executed inside}, hottest first.
+     * Instructions of nested loops count for the outer loops as well.
+     */
+    private List<long[]> loops() {
+        List<long[]> ret = new ArrayList<long[]>();
+        for (int pc=0;pc<virtualOISC.memSize;pc++) {
+            int start = image.skip[virtualOISC.operC(image.rom[pc])];
+            if ((taken[pc]==0)||(start>pc))
+                continue;
+            long inside = 0;
+            for (int i=start;i<=pc;i++)
+                inside += exec[i];
+            ret.add(new long[] {start,pc,taken[pc],inside});
+        }
+
+        Collections.sort(ret,new Comparator<long[]>() {
+            public int compare(long[] x, long[] y) {
+                return Long.compare(y[3],x[3]);
+            }
+        });
+        return ret;
+    }
+
+    /**Addresses with the highest non-zero counts, highest first*/
+    private static List<Integer> top(final long[] counts) {
+        List<Integer> ret = new ArrayList<Integer>();
+        for (int i=0;i<counts.length;i++)
+            if (counts[i]>0)
+                ret.add(i);
+
+        Collections.sort(ret,new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(counts[y],counts[x]);
+            }
+        });
+        return ret.subList(0,Math.min(reportSize,ret.size()));
+    }
+
+    /**Source lines covered by given rom address range, as a string*/
+    private String lines(int first, int last) {
+        int min = 0, max = 0;
+        for (int i=first;i<=last;i++) {
+            int line = image.getLine(i);
+            if (line==0)
+                continue;
+            if ((min==0)||(line<min))
+                min = line;
+            if (line>max)
+                max = line;
+        }
+        if (min==max)
+            return line(min);
+        return min+"-"+max;
+    }
+
+    /**Source line number as a string, "?" if unknown*/
+    private static String line(int line) {
+        return (line==0) ? "?" : Integer.toString(line);
+    }
+
+    /**Share of all executed instructions in percent*/
+    private double percent(long count) {
+        return 100.0*count/total;
+    }
+}
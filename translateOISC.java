@@ -0,0 +1,172 @@
+import java.io.*;
+
+/**
+ * Translates a .mif file or binary rom image into a standalone java
+ * program that runs the OISC program without the emulator.
+ * <br>
+ * Run using: <tt>java translateOISC &lt;rom file&gt; [output file]</tt>
+ * <br>If output file ends with <tt>.class</tt> the generated source is
+ * compiled and the class file is written, otherwise java source is
+ * written. If output file is not specified name "compiled.java" is assumed.
+ * The class is named after the output file.
+ * <br>
+ * <br>Every instruction becomes straight-line java code, grouped into
+ * one method per basic block the same way jitOISC does it, with branches
+ * turned into jumps between blocks. The generated class only needs
+ * java.lang: running it with <tt>java &lt;class name&gt;</tt> starts from
+ * the initial ram of the image at its entry address, runs the program
+ * and dumps the resulting ram contents like the <tt>ramdump</tt> command
+ * of virtualOISC.
+ * <br>
+ * <i>
+ * <br>Part of project OISCcompiler
+ * </i>
+ * @author Paksoy Kader
+ */
+
+public class translateOISC {
+
+    /**
+     * Translates given rom file and writes the result to given target file
+     *
+     * @param inputFile mif or binary image file that contains rom
+     * @param targetFile .java or .class file to write to
+     */
+    public static void translate(String inputFile, String targetFile) {
+        System.out.println("Reading rom from file: "+inputFile);
+        imageOISC image = null;
+        try {
+            image = imageOISC.load(inputFile);
+        }
+        catch (FileNotFoundException e) {
+            System.out.println("Cannot find file: "+inputFile);
+            System.exit(0);
+        }
+        catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(0);
+        }
+
+        if (virtualOISC.usesIoPort(image.rom)) {
+            System.out.println("translateOISC:translate:program uses ioPort, " +
+                    "which cannot be translated.");
+            System.exit(0);
+        }
+
+        String name = new File(targetFile).getName();
+        if (name.indexOf('.')>=0)
+            name = name.substring(0,name.lastIndexOf('.'));
+        if (!validName(name)) {
+            System.out.println("translateOISC:translate:cannot name class " +
+                    "after output file "+targetFile+".");
+            System.exit(0);
+        }
+
+        String source = source(image,name,inputFile);
+
+        OutputStream output = null;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(targetFile));
+            if (targetFile.endsWith(".class")) {
+                byte[] bytes = jitOISC.javac(name,source);
+                if (bytes==null)
+                    System.exit(0);
+                output.write(bytes);
+            }
+            else
+                output.write(source.getBytes("US-ASCII"));
+        } catch (IOException e) {
+            System.out.println("translateOISC:translate:error when writing to " +
+                    "file.");
+            System.exit(0);
+        }
+        finally {
+            if (output != null)
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    System.out.println("translateOISC:translate:error while " +
+                            "closing output stream.");
+                    System.exit(0);
+                }
+        }
+
+        System.out.println("Finished translating file "+inputFile+
+                " to class "+name+".");
+    }
+
+    /**
+     * Generate standalone class source for given image
+     *
+     * @param image rom and initial ram
+     * @param name class name
+     * @param origin file image was read from, noted in the source
+     * @return java source
+     */
+    public static String source(imageOISC image, String name, String origin) {
+        int size = virtualOISC.memSize;
+        StringBuffer src = new StringBuffer();
+
+        src.append("/**\n * OISC program translated from "+origin+
+                " by translateOISC.\n */\n");
+        src.append("public final class "+name+" {\n");
+        jitOISC.emitBlocks(image.rom,image.entry,src);
+
+        src.append("    public static void main(String[] args) {\n");
+        src.append("        int[] m = new int["+size+"];\n");
+        src.append("        java.util.Arrays.fill(m,Integer.MIN_VALUE);\n");
+        int[] ram = image.getRam();
+        for (int i=0;(ram!=null)&&(i<size);i++)
+            if (ram[i]!=virtualOISC.uninit)
+                src.append("        m["+i+"] = "+ram[i]+";\n");
+        src.append("        long[] n = {0,Long.MAX_VALUE};\n");
+        src.append("        int pc = new "+name+"().run(m,"+image.skip[image.entry]+",n);\n");
+        src.append("        if (pc<0)\n");
+        src.append("            System.out.println(\"Read from uninitialized " +
+                "ram at rom address \"+(~pc)+\", halting.\");\n");
+        src.append("        System.out.println(\"Displaying all loaded " +
+                "addresses in ram: \");\n");
+        src.append("        for (int i=0;i<"+size+";i++)\n");
+        src.append("            if (m[i]!=Integer.MIN_VALUE)\n");
+        src.append("                System.out.printf(\"Addr: %3d Val: %3d\\n\"," +
+                "i,m[i]);\n");
+        src.append("        System.out.println(\"Done. \"+n[0]+" +
+                "\" instructions executed.\");\n");
+        src.append("    }\n");
+        src.append("}\n");
+
+        return src.toString();
+    }
+
+    /**Checks that name can be used as a java class name*/
+    private static boolean validName(String name) {
+        if ((name.length()==0)||!Character.isJavaIdentifierStart(name.charAt(0)))
+            return false;
+        for (int i=1;i<name.length();i++)
+            if (!Character.isJavaIdentifierPart(name.charAt(i)))
+                return false;
+        return true;
+    }
+
+    /**Main method handles command line input*/
+    public static void main(String[] args) {
+        try {
+            String sourceFile = args[0];
+            String targetFile;
+            if (args.length>1) {
+                targetFile = args[1];
+                System.out.println("Using output file: "+targetFile);
+            }
+            else {
+                targetFile = "compiled.java";
+                System.out.println("Using default output file: "+targetFile);
+            }
+
+            translateOISC.translate(sourceFile,targetFile);
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("Invalid input, you need to specify rom file.");
+            System.exit(0);
+        }
+    }
+}
@@ -1,24 +1,81 @@
 import java.io.*;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 
 /**
- * This program emulates an OISC chip and runs .mif files created by the
- * compiler.
+ * This program emulates an OISC chip and runs .mif files or binary rom
+ * images created by the compiler.
  * <br> Run using:
  * <tt>java virtualOISC</tt>
  * <br>Memory read from special io address results in user being prompted
  * for input. Write to the same address outputs to screen. 
+ * <br>The io address is ioPort, 255. It is read as input when it is the A
+ * operand of subleq, and reads as 0 when it is the B operand, so that
+ * <tt>subleq m(x), m(ioPort)</tt> outputs -m(x) and
+ * <tt>loadim v, m(ioPort)</tt> outputs v. When the io port of an
+ * instance has a source or sink, see portOISC, io uses those instead of
+ * the screen: each input byte is read as a two's complement value, end of
+ * input reads as 0, and each output value is written as one byte. Ports
+ * buffer both directions, output is flushed when a run ends. A run stops
+ * when the source or sink of the port fails.
+ * <br>
+ * <br>The program itself is an imageOISC, which is immutable and can be
+ * shared by any number of virtualOISC instances. An instance only holds
+ * pCount, io state and its ram. Ram is copy on write: until the first
+ * instruction writes to it an instance reads the initial ram of its
+ * image, without a copy of its own.
+ * <br>
+ * <br>Images compiled to binary rom files hold the ram set up by the load
+ * instructions at the start of rom, see imageOISC. Runs start with that
+ * ram already in place at the entry address of the image, unless preload
+ * is turned off, in which case they start at address 0 with empty ram and
+ * run the load instructions themselves.
+ * <br>
+ * <br>A run stops when pCount leaves rom, on a read from uninitialized
+ * ram, when an instruction budget or a wall-clock timeout runs out, or
+ * when the interpreter proves the program never halts. The machine is
+ * deterministic, so a program that does not read input and reaches the
+ * same pCount and ram contents twice loops forever. Runs that take
+ * longer than a slice of instructions look for such repeated states with
+ * Brent's cycle detection, comparing a hash of ram and confirming with
+ * the full state. Reading input restarts the search.
+ * <br>
+ * <br>The interpreter runs the instruction sequences of the MOV and ADD
+ * macros and the loops of MUL and DIV code as superinstructions, see
+ * fuseOISC, unless fusion is turned off. Superinstructions give the same
+ * ram, pCount, instruction count and faults as the instructions they
+ * replace, where they could differ, at a read from uninitialized ram or
+ * at the end of the budget or a slice, the instructions are run one by
+ * one. Profiling always runs single instructions.
  * <br>
  * <br>
  * <ul><b>Commands:</b>   
  * <li> <tt>compile &lt;file name&gt;:</tt> compile source code file using compileOISC
- * and load generated rom
- * <li> <tt>load &lt;file name&gt;:</tt> load rom state from specified file
+ * and load generated rom. Compiles after the first one only compile the
+ * lines that changed since the one before.
+ * <li> <tt>load &lt;file name&gt;:</tt> load rom state from specified .mif
+ * file or binary rom image
  * <li> <tt>romdump:</tt> dump all contents of rom to screen  
  * <li> <tt>ramdump:</tt> dump all contents of ram to screen 
  * <li> <tt>initram:</tt> initialize ram with immediate load instructions at
  * the beginning of rom, dump resulting ram state
- * <li> <tt>run:</tt> run program in rom
+ * <li> <tt>run [interp|jit|diff|profile]:</tt> run program in rom with the
+ * interpreter (default), with the jit compiler, with both while
+ * comparing their results, or with the interpreter while collecting an
+ * execution profile (see profileOISC)
+ * <li> <tt>budget &lt;instructions&gt;:</tt> stop runs after given number of
+ * instructions, 0 for no limit
+ * <li> <tt>timeout &lt;milliseconds&gt;:</tt> stop runs after given time, 0
+ * for no limit
+ * <li> <tt>preload [on|off]:</tt> start runs with the initial ram of the
+ * image in place at its entry address (default), or at address 0 with
+ * empty ram
+ * <li> <tt>io [&lt;input file&gt;|- [&lt;output file&gt;|-]]:</tt> read
+ * ioPort input from given file and write output to given file, <tt>-</tt>
+ * or nothing for keyboard and screen
+ * <li> <tt>fuse [on|off]:</tt> run instruction sequences the compiler
+ * generates as superinstructions in the interpreter (default), or one
+ * instruction at a time
  * <li> <tt>romget &lt;address&gt;:</tt> display instruction in specified address 
  * of rom
  * <li> <tt>ramget &lt;address&gt;:</tt> display contents of the given ram address
@@ -34,108 +91,401 @@ import java.util.*;
  */
 
 public class virtualOISC {
+    /**loaded program, shared with other instances*/
+    private imageOISC image;
     private int pCount;
-    private Hashtable<Integer,Integer> ram;
-    private Hashtable<Integer,instruction> rom;
+    /**
+     * ram contents indexed by address, unwritten cells hold uninit. Until
+     * ramOwned is set this is the initial ram of image and must not be
+     * written to.
+     */
+    private int[] ram;
+    private boolean ramOwned;
+    /**io port, without source or sink for keyboard and screen*/
+    private portOISC port;
+    /**ram address whose uninitialized read stopped the last run*/
+    private int fault;
+    /**how the last run stopped*/
+    private int status;
+    /**instruction budget and timeout in nanoseconds, 0 for none*/
+    private long budget, timeout;
+    private boolean loopDetection;
+    /**start runs at image entry address with its ram in place*/
+    private boolean preload;
+    /**run superinstructions of image in the interpreter*/
+    private boolean fusion;
+    /**number of values read from input, changes invalidate loop search*/
+    private long inputs;
+    /**state the loop search compares against, null when not searching*/
+    private snapshot loopCheck;
+    /**hash of ram contents kept during loop search*/
+    private long ramHash;
+    /**compile session of the compile command, null before first use*/
+    private compileOISC.session compiler;
+    
+    /**Number of addresses in both rom and ram*/
+    public static final int memSize = 256;
+    /**Marker for ram cells that have not been written to yet*/
+    public static final int uninit = Integer.MIN_VALUE;
+    /**Special io address*/
+    public static final int ioPort = 255;
+    
+    /**
+     * How a run stopped: pCount left rom, read of uninitialized ram,
+     * budget ran out, timeout passed, program proven to loop forever, or
+     * source or sink of the io port failed, see portOISC.getError()
+     */
+    public static final int halted = 0, faulted = 1, outOfBudget = 2,
+        timedOut = 3, looping = 4, ioFailed = 5;
+    /**Instructions run between checks of budget, timeout and loops*/
+    private static final int slice = 1<<16;
+    /**Superinstructions used when fusion is off, none*/
+    private static final fuseOISC.op[] unfused = new fuseOISC.op[memSize];
+    /**Random multiplier per ram address for the ram hash*/
+    private static final long[] hashKeys = new long[memSize];
+    static {
+        Random rand = new Random(0x4F495343);
+        for (int i=0;i<memSize;i++)
+            hashKeys[i] = rand.nextLong()|1;
+    }
+    
+    /**Machine state saved by the loop search*/
+    private static class snapshot {
+        private int pc;
+        private int[] ram;
+        private long hash, inputs;
+        /**steps since saved and steps until next save*/
+        private long steps, power;
+    }
     
     /**default constructor initializes private variables*/
-    virtualOISC() {
-        rom = new Hashtable<Integer,instruction>();
-        ram = new Hashtable<Integer,Integer>();
-        pCount = 0;
+    public virtualOISC() {
+        this(new imageOISC(new int[memSize],null));
+    }
+    
+    /**
+     * Constructor for an instance running given image
+     * 
+     * @param nimage program image, may be shared with other instances
+     */
+    public virtualOISC(imageOISC nimage) {
+        loopDetection = true;
+        preload = true;
+        port = new portOISC();
+        fusion = true;
+        load(nimage);
+    }
+    
+    /**Reset ram to the initial ram of image, without copying it*/
+    private void startRam() {
+        ram = preloaded() ? image.start : imageOISC.emptyRam;
+        ramOwned = false;
+    }
+    
+    /**
+     * Whether runs start from the initial ram of image. Images without
+     * entry address hold ram that rom does not set up, they always do.
+     */
+    private boolean preloaded() {
+        return preload||(image.entry==0);
+    }
+    
+    /**first rom address runs execute*/
+    private int startPc() {
+        return image.skip[preloaded() ? image.entry : 0];
+    }
+    
+    /**Returns ram for writing, copying the shared initial ram first*/
+    private int[] writableRam() {
+        if (!ramOwned) {
+            ram = ram.clone();
+            ramOwned = true;
+        }
+        return ram;
     }
     
     /**
-     * <i>instruction</i> class represents instructions in rom.
-     * <br>Constructor acts as instruction interpreter
-     * <br>Public method <i>execute()</i> executes instruction, modifies
-     * ram and pCount accordingly  
+     * Instructions are decoded once when rom is loaded, into a packed word
+     * that keeps the bit layout of the .mif line:
+     * <br>bit 24 is the op code, bits 23-16 hold A, bits 15-8 hold B and
+     * bits 7-0 hold C. For load instructions A is the 8-bit two's
+     * complement immediate value. An all zero word is an empty slot.
      */
-    private class instruction {
-        private boolean isLoad, isEmpty;
-        private int a, b, c;
+    public static final int loadBit = 1<<24, instrWidth = 25;
+    
+    /**Decode an instruction given as a string of 0s and 1s into a word*/
+    public static int decode(String instr) {
+        if (instr.length()!=instrWidth)
+            throw new NumberFormatException("instruction "+instr+
+                    " is not "+instrWidth+" bits long");
+        return binToInt(instr);
+    }
+    
+    /**True if word is a load instruction*/
+    public static boolean isLoad(int word) {
+        return (word&loadBit)!=0;
+    }
+    
+    /**A field of word, signed for load instructions*/
+    public static int operA(int word) {
+        if (isLoad(word))
+            return (byte) (word>>>16);
+        return (word>>>16)&0xff;
+    }
+    
+    /**B field of word*/
+    public static int operB(int word) {
+        return (word>>>8)&0xff;
+    }
+    
+    /**C field of word*/
+    public static int operC(int word) {
+        return word&0xff;
+    }
+    
+    /**display instruction word as string*/
+    public static String disassemble(int word) {
+        StringBuffer ret = new StringBuffer();
+        if (isLoad(word)) 
+            ret.append(String.format("loadim %6d",operA(word)));
+        else 
+            ret.append(String.format("subleq m(%3d)",operA(word)));
         
-        /**Constructor parses binary string
-         * 
-         * @param instr instruction as string of 0s 1s
-         */
-        instruction(String instr) {
-            isEmpty = (instr.equals("0000000000000000000000000"));
-            
-            //divide instruction into fields
-            String opCode = instr.substring(0,1); 
-            String operA = instr.substring(1,9);
-            String operB = instr.substring(9,17);
-            String operC = instr.substring(17);
-            
-            isLoad = (opCode.equals(compileOISC.loadInstruction));
-            
-            //for load instruction, A is signed
-            if (isLoad)
-                a = valToInt(operA);
-            else
-                a = binToInt(operA);
-            
-            //parse addresses
-            b = binToInt(operB);
-            c = binToInt(operC);
+        ret.append(String.format(", m(%3d), %3d",operB(word),operC(word)));
+        
+        return ret.toString();
+    }
+    
+    /**
+     * Precompute for every address the first non-empty rom address at or
+     * after it, memSize if there is none. The extra entry at memSize lets
+     * the result be indexed with any next pCount.
+     */
+    public static int[] link(int[] rom) {
+        int[] ret = new int[memSize+1];
+        ret[memSize] = memSize;
+        for (int i=memSize-1;i>=0;i--)
+            ret[i] = (rom[i]==0) ? ret[i+1] : i;
+        return ret;
+    }
+    
+    /**
+     * True if any instruction in rom reads or writes ioPort
+     */
+    public static boolean usesIoPort(int[] rom) {
+        for (int i=0;i<memSize;i++) {
+            int word = rom[i];
+            if ((word!=0)&&((operB(word)==ioPort)||
+                    (!isLoad(word)&&(operA(word)==ioPort))))
+                return true;
         }
+        return false;
+    }
+    
+    /**emulate overflow behavior of subtraction result*/
+    static int wrap(int val) {
+        if (val<-128)
+            return val+255;
+        else if (val>127)
+            return val-255;
+        return val;
+    }
+    
+    /**
+     * Executes the non-empty instruction at given address, modifies ram
+     * accordingly.
+     * 
+     * @param pc address of instruction
+     * @return address of next instruction, -1 if the instruction read
+     * a ram cell that was never written, the cell is stored in fault, or
+     * if the io port failed, fault is then ioPort
+     */
+    private int step(int pc) {
+        int word = image.rom[pc];
+        int b = (word>>>8)&0xff, val;
         
-        public void execute() {
-            if (isEmpty) {
-                pCount++;
-                return;
-            }
-                    
-            //check if load instr
-            if (isLoad) {
-                //load a into mem loc b
-                ram.put(b,a);
-            }
-            else {
-                int operA = ram.get(a);
-                int operB = ram.get(b);
-                operB -= operA;
-                
-                //emulate overflow behavior
-                if (operB<-128)
-                    operB += 255;
-                else if (operB>127)
-                    operB -= 255;
-                    
-                //update b
-                ram.put(b,operB);
+        if (b==ioPort)
+            return ioStep(pc);
+        
+        //check if load instr
+        if ((word&loadBit)!=0) {
+            //load a into mem loc b
+            val = (byte) (word>>>16);
+        }
+        else {
+            int a = (word>>>16)&0xff;
+            if (a==ioPort)
+                return ioStep(pc);
+            int operA = ram[a];
+            int operB = ram[b];
+            
+            //reading unwritten memory halts the machine
+            if ((operA==uninit)||(operB==uninit)) {
+                fault = (operA==uninit) ? a : b;
+                return -1;
             }
-                
-            //if b<=0 jmp c, otherwise move to next line
-            if (ram.get(b)<=0)
-                pCount = c;
-            else
-                pCount++;
+            val = wrap(operB-operA);
+        }
+        //update b
+        ram[b] = val;
             
-            return;
+        //if b<=0 jmp c, otherwise move to next line
+        if (val<=0)
+            return word&0xff;
+        return pc+1;
+    }
+    
+    /**step() for instructions that use ioPort*/
+    private int ioStep(int pc) {
+        int word = image.rom[pc];
+        int b = operB(word), val;
+        
+        if (isLoad(word))
+            val = operA(word);
+        else {
+            int a = operA(word);
+            int operA = (a==ioPort) ? readPort() : ram[a];
+            int operB = (b==ioPort) ? 0 : ram[b];
+            
+            if ((operA==uninit)||(operB==uninit)) {
+                fault = (operA==uninit) ? a : b;
+                return -1;
+            }
+            val = wrap(operB-operA);
         }
         
-        /**accessor for isLoad flag*/
-        public boolean isLoad() {
-            return isLoad;
+        if (b==ioPort)
+            writePort(val);
+        else
+            ram[b] = val;
+        
+        //stop at this instruction, fault ioPort marks the port
+        if (port.getError()!=null) {
+            fault = ioPort;
+            return -1;
         }
+        if (val<=0)
+            return operC(word);
+        return pc+1;
+    }
+    
+    /**Read a value from io port, or ask the user for it*/
+    private int readPort() {
+        inputs++;
+        if (port.hasInput())
+            return port.read();
         
-        /**display instruction as string*/
-        public String toString() {
-            //TODO
-            StringBuffer ret = new StringBuffer();
-            if (isLoad) 
-                ret.append(String.format("loadim %6d",a));
-            else 
-                ret.append(String.format("subleq m(%3d)",a));
-            
-            ret.append(String.format(", m(%3d), %3d",b,c));
-            
-            return ret.toString();
+        System.out.print("Input: ");
+        while (true) {
+            try {
+                int val = Integer.parseInt(getString(-1).trim());
+                if ((val>=-128)&&(val<=127))
+                    return val;
+            }
+            catch (NumberFormatException e) {}
+            System.out.print("Enter a number between -128 and 127: ");
         }
     }
     
+    /**Write a value to io port, or display it*/
+    private void writePort(int val) {
+        if (port.hasOutput())
+            port.write(val);
+        else
+            System.out.println("Output: "+val);
+    }
+    
+    /**Set io port ioPort reads from and writes to*/
+    public void setPort(portOISC nport) {
+        port = nport;
+    }
+    
+    /**accessor for io port*/
+    public portOISC getPort() {
+        return port;
+    }
+    
+    /**
+     * Set stream ioPort reads from, null to prompt the user. The stream
+     * is read a buffer at a time, ahead of the program.
+     */
+    public void setInput(InputStream in) {
+        port.setSource((in==null) ? null : portOISC.from(in));
+    }
+    
+    /**
+     * Set stream ioPort writes to, null to display on screen. Output is
+     * buffered and written when a run ends.
+     */
+    public void setOutput(OutputStream out) {
+        port.setSink((out==null) ? null : portOISC.to(out));
+    }
+    
+    /**
+     * Set number of instructions after which runs stop, 0 for no limit.
+     * The jit checks the budget when a block ends, so it can run a few
+     * instructions more.
+     */
+    public void setBudget(long nbudget) {
+        budget = nbudget;
+    }
+    
+    /**Set wall-clock time in milliseconds after which runs stop, 0 for no limit*/
+    public void setTimeout(long millis) {
+        timeout = millis*1000000;
+    }
+    
+    /**
+     * Turn starting runs with the initial ram of the image at its entry
+     * address on or off. When off runs start at address 0 with empty ram.
+     */
+    public void setPreload(boolean on) {
+        preload = on;
+    }
+    
+    /**Turn running superinstructions in the interpreter on or off*/
+    public void setFusion(boolean on) {
+        fusion = on;
+    }
+    
+    /**Turn search for endless loops in interpreter runs on or off*/
+    public void setLoopDetection(boolean on) {
+        loopDetection = on;
+    }
+    
+    /**accessor for pCount, memSize after a run that completed*/
+    public int getPCount() {
+        return pCount;
+    }
+    
+    /**
+     * Contents of given ram address, as the last run left it
+     * 
+     * @param address ram address
+     * @return value, uninit if never written
+     */
+    public int getRam(int address) {
+        return ram[address];
+    }
+    
+    /**how the last run stopped, one of halted, faulted, outOfBudget,
+     * timedOut, looping or ioFailed*/
+    public int getStatus() {
+        return status;
+    }
+    
+    /**
+     * Ram address whose uninitialized read stopped the last interpreter
+     * run, only meaningful when getStatus() is faulted
+     */
+    public int getFault() {
+        return fault;
+    }
+    
+    /**Keyboard input, shared so that read ahead lines are not lost*/
+    private static final BufferedReader stdin = new BufferedReader(
+            new InputStreamReader(System.in));
+    
     /**Prompts user to enter a string of given maximum length, if
      * negative max length is specified any legth string is accepted
      * 
@@ -143,9 +493,6 @@ public class virtualOISC {
      * @return entered string
      */
     public static String getString(int max) {
-        BufferedReader stdin = new BufferedReader(
-                new InputStreamReader(System.in));
-        
         String in;
         while (true) {
             try {
@@ -189,7 +536,18 @@ public class virtualOISC {
                         "compile <filename>: compile specified file using" +
                         " compileOISC and load rom from resulting file\n" +
                         "load <filename>: load rom from specified file\n" +
-                        "run: run program currently loaded to rom\n" +
+                        "run [interp|jit|diff|profile]: run program currently" +
+                        " loaded to rom with given engine\n" +
+                        "budget <instructions>: stop runs after given number" +
+                        " of instructions, 0 for no limit\n" +
+                        "timeout <milliseconds>: stop runs after given time," +
+                        " 0 for no limit\n" +
+                        "preload [on|off]: start runs with initial ram of" +
+                        " image in place or run its load instr\n" +
+                        "io [<infile>|- [<outfile>|-]]: redirect ioPort" +
+                        " to files, - for keyboard and screen\n" +
+                        "fuse [on|off]: run compiler macros as" +
+                        " superinstructions or one instr at a time\n" +
                         "initram: initialize ram by running load instr in rom\n"+
                         "ramdump: display current contents of ram\n" +
                         "romdump: display current contents of rom\n" +
@@ -199,7 +557,9 @@ public class virtualOISC {
             }
             
             else if (in.startsWith("compile")){ 
-                compileOISC.compile(in.substring(in.indexOf(" ")).trim(),
+                if (compiler==null)
+                    compiler = new compileOISC.session();
+                compiler.compile(in.substring(in.indexOf(" ")).trim(),
                             "compiled.mif");
                 load("compiled.mif");
             }
@@ -213,8 +573,57 @@ public class virtualOISC {
             else if (in.startsWith("romget")) 
                 romget(Integer.parseInt(in.substring(in.indexOf(" ")).trim()));
             
+            else if (in.startsWith("budget")) {
+                long limit = parseLimit(in.substring(6));
+                if (limit>=0) {
+                    setBudget(limit);
+                    System.out.println((limit>0) ? "Runs stop after "+limit+
+                            " instructions." : "No instruction budget.");
+                }
+            }
+            
+            else if (in.startsWith("timeout")) {
+                long limit = parseLimit(in.substring(7));
+                if (limit>=0) {
+                    setTimeout(limit);
+                    System.out.println((limit>0) ? "Runs stop after "+limit+
+                            " ms." : "No timeout.");
+                }
+            }
+            
+            else if (in.startsWith("preload")) {
+                String arg = in.substring(7).trim();
+                if (arg.equals("off"))
+                    setPreload(false);
+                else if (arg.equals("on")||(arg.length()==0))
+                    setPreload(true);
+                else
+                    System.out.println("Invalid argument, use on or off.");
+                System.out.println(preload ? "Runs start with initial ram " +
+                        "in place." : "Runs start at address 0 with empty ram.");
+            }
+            
+            else if (in.startsWith("io")) {
+                String[] files = in.substring(2).trim().split("\\s+");
+                io((files[0].length()==0) ? "-" : files[0],
+                        (files.length>1) ? files[1] : "-");
+            }
+            
+            else if (in.startsWith("fuse")) {
+                String arg = in.substring(4).trim();
+                if (arg.equals("off"))
+                    setFusion(false);
+                else if (arg.equals("on")||(arg.length()==0))
+                    setFusion(true);
+                else
+                    System.out.println("Invalid argument, use on or off.");
+                System.out.println(fusion ? "Interpreter runs " +
+                        "superinstructions." : "Interpreter runs one " +
+                        "instruction at a time.");
+            }
+            
             else if (in.startsWith("run"))
-                run();
+                run(in.substring(3).trim());
             
             else if (in.equals("romdump"))
                 romdump();
@@ -242,132 +651,561 @@ public class virtualOISC {
     }
     
     /**
-     * Load ROM state from specified .mif file. Format readable by the
-     * VHDL compiler is assumed.
+     * Load ROM state from specified file, either a binary rom image or a
+     * .mif file in the format readable by the VHDL compiler.
      * 
-     * @param file mif file
+     * @param file mif or image file
      */
     private void load(String file) {
+        System.out.println("Loading rom state from file "+file);
+        
+        int[] nrom = new int[memSize];
         try {
-            int count = 0;
-            pCount = 0;
-            System.out.println("Loading rom state from file "+file);
-            Scanner lineread = new Scanner(new FileInputStream(file));
-            String curline = new String();
-            
-            //flush current rom and ram
-            rom = new Hashtable<Integer,instruction>();
-            ram = new Hashtable<Integer,Integer>();
-            
-            //move down to begin line
-            while (!curline.equals("BEGIN")) {
-                if (lineread.hasNextLine())
-                    curline = lineread.nextLine();
-                else {
-                    System.out.println("File "+file+" not correctly" +
-                            " formatted.");
-                    return;
-                }
-            }
-            //skip BEGIN line
-            curline = lineread.nextLine();
-            
-            //read till the END; line
-            while (!curline.trim().equals("END;")) {
-                //seperate line by :
-                String[] splitline = curline.split("[:]");
-                
-                //delete trailing/leading whitespace
-                splitline[0] = splitline[0].trim();
-                splitline[1] = splitline[1].trim();
-                
-                //remove colon and everything after it from instr
-                splitline[1] = splitline[1].substring(0,
-                        splitline[1].indexOf(";")).trim();
-                
-                //load new instruction to correct address in ROM
-                rom.put(binToInt(splitline[0]),new instruction(splitline[1]));
-                
-                //read line
-                if (lineread.hasNextLine()) {
-                    curline = lineread.nextLine();
-                    count++;
-                }
-                else {
-                    System.out.println("File "+file+" not correctly" +
-                            " formatted.");
-                    return;
-                }
+            if (imageOISC.isImage(file)) {
+                imageOISC nimage = imageOISC.read(file);
+                load(nimage);
+                System.out.println("Finished loading rom image" +
+                        ((nimage.getRam()!=null) ? " with initial ram." : "."));
+                return;
             }
-            
+            int[] nlines = new int[memSize];
+            int count = mifOISC.read(file,nrom,nlines);
             System.out.println("Finished loading rom state, "+count+
                     " rom lines read.");
+            load(new imageOISC(nrom,null,nlines));
+            return;
         } 
         catch (FileNotFoundException e) {
             System.out.println("Cannot find file: "+file);
         }
-        catch (ArrayIndexOutOfBoundsException e) {
-            System.out.println("File "+file+" not formatted correctly. Aborting load.");
-            rom = new Hashtable<Integer,instruction>();
-            return;
+        catch (IOException e) {
+            System.out.println(e.getMessage()+" Aborting load.");
+            nrom = new int[memSize];
         }
-
+        load(new imageOISC(nrom,null));
+    }
+    
+    /**
+     * Load given image, without printing anything. Ram is flushed, the
+     * image is not copied.
+     * 
+     * @param nimage program image
+     */
+    public void load(imageOISC nimage) {
+        image = nimage;
+        pCount = 0;
+        startRam();
+    }
+    
+    /**
+     * Redirect ioPort to given files, closing files used before
+     * 
+     * @param in input file, - for the keyboard
+     * @param out output file, - for the screen
+     */
+    private void io(String in, String out) {
+        try {
+            port.close();
+        }
+        catch (IOException e) {
+            System.out.println("virtualOISC:io:error when closing files.");
+        }
+        port = new portOISC();
+        try {
+            if (!in.equals("-"))
+                port.setSource(portOISC.fromFile(in));
+            if (!out.equals("-"))
+                port.setSink(portOISC.toFile(out));
+        }
+        catch (NoSuchFileException e) {
+            System.out.println("Cannot find file: "+in);
+        }
+        catch (IOException e) {
+            System.out.println("Cannot open file: "+e.getMessage());
+        }
+        System.out.println("Input from "+(port.hasInput() ? in : "keyboard")+
+                ", output to "+(port.hasOutput() ? out : "screen")+".");
     }
     
     /**
-     * Outputs all contents of ROM to screen in an
-     * arbitrary order.
+     * Outputs all contents of ROM to screen in
+     * address order.
      */
     private void romdump() {
         System.out.println("Displaying instructions stored in rom: ");
-        Enumeration<Integer> romitr = rom.keys();
         
         //display all contents of rom
-        while (romitr.hasMoreElements()) {
-            Integer curaddr = romitr.nextElement();
-            System.out.printf("Addr: %3d Instr: ",curaddr.intValue());
-            System.out.println(rom.get(curaddr).toString());
+        for (int curaddr=0;curaddr<memSize;curaddr++) {
+            int word = image.rom[curaddr];
+            if (word==0)
+                continue;
+            System.out.printf("Addr: %3d Instr: ",curaddr);
+            System.out.println(disassemble(word));
         }
         System.out.println("Done.");
     }
     
     /**
-     * Outputs all contents of RAM to screen in an
-     * arbitrary order.
+     * Outputs all loaded contents of RAM to screen in
+     * address order.
      */
     private void ramdump() {
         System.out.println("Displaying all loaded addresses in ram: ");
-        Enumeration<Integer> ramitr = ram.keys();
         
         //display all contents of ram
-        while (ramitr.hasMoreElements()) {
-            Integer curaddr = ramitr.nextElement();
-            System.out.printf("Addr: %3d Val: %3d\n",curaddr.intValue(),
-                    ram.get(curaddr).intValue());
+        for (int curaddr=0;curaddr<memSize;curaddr++) {
+            if (ram[curaddr]==uninit)
+                continue;
+            System.out.printf("Addr: %3d Val: %3d\n",curaddr,ram[curaddr]);
         }
         System.out.println("Done.");
     }
     
-    /**Runs program stored in rom*/
-    private void run() {
+    /**
+     * Runs program stored in rom
+     * 
+     * @param engine "interp" or empty for the interpreter, "jit" for the
+     * jit compiler, "diff" to run both and compare results, "profile" to
+     * run the interpreter with profiling
+     */
+    private void run(String engine) {
+        long count;
+        System.out.println("Running program stored in rom.");
+        
+        if ((engine.length()==0)||engine.equals("interp"))
+            count = interpret();
+        else if (engine.equals("jit")) {
+            if (!jit())
+                return;
+            count = runJit();
+        }
+        else if (engine.equals("diff")) {
+            if (!jit())
+                return;
+            diff();
+            return;
+        }
+        else if (engine.equals("profile")) {
+            profileOISC prof = profile();
+            printStop(false);
+            prof.report();
+            return;
+        }
+        else {
+            System.out.println("Unknown engine "+engine+
+                    ", use interp, jit, diff or profile.");
+            return;
+        }
+        printStop(engine.equals("jit"));
+        System.out.println("Done. "+count+" instructions executed.");
+    }
+    
+    /**Tell user why last run stopped, if it did not halt normally*/
+    private void printStop(boolean jit) {
+        if (status==faulted) {
+            if (jit)
+                System.out.println("virtualOISC:run:read from uninitialized " +
+                        "ram at rom address "+pCount+", halting.");
+            else
+                System.out.println("virtualOISC:run:read from uninitialized " +
+                        "ram address "+fault+" at rom address "+pCount+
+                        ", halting.");
+        }
+        else if (status==outOfBudget)
+            System.out.println("virtualOISC:run:instruction budget used up " +
+                    "at rom address "+pCount+", stopping.");
+        else if (status==timedOut)
+            System.out.println("virtualOISC:run:timeout at rom address "+
+                    pCount+", stopping.");
+        else if (status==looping)
+            System.out.println("virtualOISC:run:program loops forever, " +
+                    "state at rom address "+pCount+" repeats, stopping.");
+        else if (status==ioFailed)
+            System.out.println("virtualOISC:run:io failed at rom address "+
+                    pCount+": "+port.getError()+", stopping.");
+    }
+    
+    /**
+     * Run program in rom with the interpreter, starting from initial ram.
+     * pCount is left at memSize, or at the instruction the run stopped at,
+     * see getStatus().
+     * 
+     * @return number of instructions executed
+     */
+    public long interpret() {
         //flush current ram
-        ram = new Hashtable<Integer,Integer>();
+        startRam();
+        loopCheck = null;
+        status = halted;
+        long start = System.nanoTime(), count = 0;
         
-        int count = 0;
-        pCount = 0;
-        System.out.println("Running program stored in rom.");
-        //while pCount in range
-        while (pCount<256) {
-            instruction curinst = rom.get(pCount);
+        int pc = startPc();
+        //every instruction writes ram
+        if (pc<memSize)
+            writableRam();
+        while (pc<memSize) {
+            if (outOfTime(count,start))
+                break;
+            int n = slice;
+            if ((budget>0)&&(budget-count<n))
+                n = (int) (budget-count);
             
-            if (curinst==null)
-                pCount++;
+            //first slice runs unchecked, most programs end in it
+            if (loopDetection&&(count>0)) {
+                if (loopCheck==null)
+                    startLoopCheck(pc);
+                pc = checkedSlice(pc,n);
+            }
+            else
+                pc = slice(pc,n);
+            count += sliceCount;
+            if (status!=halted)
+                break;
+        }
+        port.flush();
+        //output of the last buffer may fail too
+        if ((status==halted)&&(port.getError()!=null))
+            status = ioFailed;
+        pCount = pc;
+        return count;
+    }
+    
+    /**instructions executed by the last slice*/
+    private int sliceCount;
+    /**instructions executed by the last superStep*/
+    private int fusedCount;
+    
+    /**
+     * True if budget or timeout of a run is used up, sets status
+     * 
+     * @param count instructions executed so far
+     * @param start System.nanoTime() at start of run
+     */
+    private boolean outOfTime(long count, long start) {
+        if ((budget>0)&&(count>=budget))
+            status = outOfBudget;
+        else if ((timeout>0)&&(System.nanoTime()-start>=timeout))
+            status = timedOut;
+        return status!=halted;
+    }
+    
+    /**
+     * Execute at most n instructions starting from pc. Sets status on a
+     * fault and sliceCount to the number of instructions executed.
+     * 
+     * @return pCount to continue at
+     */
+    private int slice(int pc, int n) {
+        int[] skip = image.skip;
+        fuseOISC.op[] fused = fusion ? image.fused : unfused;
+        int i = 0;
+        //empty slots are skipped through links instead of stepping
+        while ((pc<memSize)&&(i<n)) {
+            fuseOISC.op op = fused[pc];
+            int next = (op!=null) ? superStep(op,pc,n-i) : -1;
+            if (next>=0)
+                i += fusedCount;
             else {
-                curinst.execute();
+                next = step(pc);
+                if (next<0) {
+                    status = (fault==ioPort) ? ioFailed : faulted;
+                    break;
+                }
+                i++;
+            }
+            pc = skip[next];
+        }
+        sliceCount = i;
+        return pc;
+    }
+    
+    /**
+     * slice() that also looks for a repeated state with Brent's
+     * algorithm: the state is saved at steps 1, 2, 4, 8... after the
+     * last save, and every state until the next save is compared with
+     * it. Sets status to looping when the saved state comes back.
+     * <br>Superinstructions only run when they do not pass the pCount of
+     * the saved state and end by the next save, so the states they skip
+     * could not have matched and saves happen at the same steps.
+     */
+    private int checkedSlice(int pc, int n) {
+        int[] skip = image.skip, rom = image.rom;
+        fuseOISC.op[] fused = fusion ? image.fused : unfused;
+        snapshot check = loopCheck;
+        //kept in locals, the loop runs for every instruction
+        long hash = ramHash, steps = check.steps, power = check.power;
+        int checkPc = check.pc;
+        long checkHash = check.hash;
+        int i = 0;
+        while ((pc<memSize)&&(i<n)) {
+            fuseOISC.op op = fused[pc];
+            int next = -1;
+            if ((op!=null)&&!op.passes(checkPc)) {
+                long before = cellHash(op.writes);
+                next = superStep(op,pc,(int) Math.min(n-i,power-steps));
+                if (next>=0) {
+                    hash += cellHash(op.writes)-before;
+                    i += fusedCount;
+                    steps += fusedCount-1;
+                }
+            }
+            if (next<0) {
+                int b = (rom[pc]>>>8)&0xff;
+                int old = ram[b];
+                next = step(pc);
+                if (next<0) {
+                    status = (fault==ioPort) ? ioFailed : faulted;
+                    break;
+                }
+                i++;
+                hash += ((long) ram[b]-old)*hashKeys[b];
+            }
+            pc = skip[next];
+            
+            if ((pc==checkPc)&&(hash==checkHash)&&(inputs==check.inputs)&&
+                    Arrays.equals(ram,check.ram)) {
+                status = looping;
+                break;
+            }
+            if ((++steps==power)||(inputs!=check.inputs)) {
+                //input makes earlier states useless, start over
+                power = (inputs!=check.inputs) ? 1 : power*2;
+                ramHash = hash;
+                saveState(pc);
+                steps = 0;
+                checkPc = pc;
+                checkHash = hash;
+            }
+        }
+        ramHash = hash;
+        check.steps = steps;
+        check.power = power;
+        sliceCount = i;
+        return pc;
+    }
+    
+    /**Part of the ram hash that given cells contribute*/
+    private long cellHash(int[] cells) {
+        long ret = 0;
+        for (int cell : cells)
+            ret += (long) ram[cell]*hashKeys[cell];
+        return ret;
+    }
+    
+    /**
+     * Execute given superinstruction at pc, if it can run as a whole:
+     * none of its cells may be uninitialized, so a fault happens at the
+     * same instruction as without fusion, and it must not take more than
+     * limit instructions. A loop runs until it exits or limit is reached
+     * and then stops after the instruction it reached. Sets fusedCount to
+     * the number of instructions executed.
+     * 
+     * @param op superinstruction starting at pc
+     * @param pc address of its first instruction
+     * @param limit maximum number of instructions to execute
+     * @return address of next instruction, -1 if nothing was executed
+     */
+    private int superStep(fuseOISC.op op, int pc, int limit) {
+        int[] cells = op.cells, ram = this.ram;
+        for (int cell : cells)
+            if (ram[cell]==uninit)
+                return -1;
+        
+        switch (op.kind) {
+        case fuseOISC.move: {
+            if (limit<4)
+                return -1;
+            int a = cells[0], b = cells[1], z = cells[2];
+            ram[b] = wrap(-wrap(ram[z]-ram[a]));
+            ram[z] = 0;
+            fusedCount = 4;
+            return pc+4;
+        }
+        case fuseOISC.add: {
+            if (limit<5)
+                return -1;
+            int a = cells[0], b = cells[1], c = cells[2], z = cells[3];
+            ram[c] = wrap(-wrap(wrap(ram[z]-ram[a])-ram[b]));
+            ram[z] = 0;
+            fusedCount = 5;
+            return pc+5;
+        }
+        default: {
+            int x = ram[cells[0]], y = ram[cells[1]], u = ram[cells[2]],
+                v = ram[cells[3]], z = ram[cells[4]];
+            int count = 0, next;
+            //one pass is y-=x, v-=u exiting if v<=0, z-=z jumping back
+            while (true) {
+                if (count>=limit) {
+                    next = pc;
+                    break;
+                }
+                y = wrap(y-x);
+                if (++count>=limit) {
+                    next = pc+1;
+                    break;
+                }
+                v = wrap(v-u);
+                count++;
+                if (v<=0) {
+                    next = op.exit;
+                    break;
+                }
+                if (count>=limit) {
+                    next = pc+2;
+                    break;
+                }
+                z = 0;
                 count++;
             }
+            if (count==0)
+                return -1;
+            ram[cells[1]] = y;
+            ram[cells[3]] = v;
+            ram[cells[4]] = z;
+            fusedCount = count;
+            return next;
         }
-        System.out.println("Done. "+count+" instructions executed.");
+        }
+    }
+    
+    /**Start searching for a repeated state, hashing current ram*/
+    private void startLoopCheck(int pc) {
+        ramHash = 0;
+        for (int i=0;i<memSize;i++)
+            ramHash += (long) ram[i]*hashKeys[i];
+        loopCheck = new snapshot();
+        loopCheck.ram = new int[memSize];
+        loopCheck.power = 1;
+        saveState(pc);
+    }
+    
+    /**Save current state for the loop search*/
+    private void saveState(int pc) {
+        snapshot check = loopCheck;
+        check.pc = pc;
+        System.arraycopy(ram,0,check.ram,0,memSize);
+        check.hash = ramHash;
+        check.inputs = inputs;
+        check.steps = 0;
+    }
+    
+    /**
+     * Run program in rom like interpret() does, counting executions per
+     * instruction, branch outcomes and ram accesses. This is a separate
+     * loop so that interpret() pays nothing for profiling.
+     * 
+     * @return collected profile
+     */
+    public profileOISC profile() {
+        //flush current ram
+        startRam();
+        int[] skip = image.skip;
+        profileOISC prof = new profileOISC(image);
+        status = halted;
+        
+        int pc = startPc();
+        if (pc<memSize)
+            writableRam();
+        while (pc<memSize) {
+            if ((budget>0)&&(prof.getTotal()>=budget)) {
+                status = outOfBudget;
+                break;
+            }
+            int next = step(pc);
+            if (next<0) {
+                status = (fault==ioPort) ? ioFailed : faulted;
+                break;
+            }
+            next = skip[next];
+            prof.count(pc,next);
+            pc = next;
+        }
+        port.flush();
+        //output of the last buffer may fail too
+        if ((status==halted)&&(port.getError()!=null))
+            status = ioFailed;
+        pCount = pc;
+        return prof;
+    }
+    
+    /**Compile rom with jitOISC if not already done, false on failure*/
+    public boolean jit() {
+        return image.jit()!=null;
+    }
+    
+    /**
+     * Run jit compiled program, starting from initial ram. Leaves pCount
+     * and status like interpret() does, except that the jit does not
+     * search for endless loops.
+     * 
+     * @return number of instructions executed
+     */
+    public long runJit() {
+        //flush current ram
+        startRam();
+        status = halted;
+        long start = System.nanoTime();
+        jitOISC.program jitted = image.jit();
+        int[] nram = writableRam();
+        
+        long[] count = new long[2];
+        int pc = startPc();
+        //the compiled program returns after each slice to check limits
+        while ((pc>=0)&&(pc<memSize)&&!outOfTime(count[0],start)) {
+            count[1] = count[0]+slice;
+            if ((budget>0)&&(count[1]>budget))
+                count[1] = budget;
+            pc = jitted.run(nram,pc,count);
+        }
+        if (pc<0) {
+            pc = ~pc;
+            status = faulted;
+        }
+        pCount = pc;
+        return count[0];
+    }
+    
+    /**
+     * Differential test: run program with both the interpreter and the
+     * jit from the same initial ram, report any difference in final ram,
+     * pCount or instruction count.
+     */
+    private void diff() {
+        long icount = interpret();
+        printStop(false);
+        if (status==looping) {
+            System.out.println("Not running jit, it does not detect " +
+                    "endless loops.");
+            return;
+        }
+        int ipc = pCount;
+        int[] iram = ram;
+        
+        long jcount = runJit();
+        boolean same = true;
+        
+        if (icount!=jcount) {
+            System.out.println("Instruction counts differ: interpreter "+
+                    icount+", jit "+jcount);
+            same = false;
+        }
+        if (ipc!=pCount) {
+            System.out.println("Final pCount differs: interpreter "+ipc+
+                    ", jit "+pCount);
+            same = false;
+        }
+        for (int i=0;i<memSize;i++) {
+            if (iram[i]!=ram[i]) {
+                System.out.println("Ram address "+i+" differs: interpreter "+
+                        iram[i]+", jit "+ram[i]);
+                same = false;
+            }
+        }
+        
+        if (same)
+            System.out.println("Engines agree. "+icount+
+                    " instructions executed.");
     }
     
     /**
@@ -376,24 +1214,20 @@ public class virtualOISC {
      */
     private void initram() {
         //flush current ram
-        ram = new Hashtable<Integer,Integer>();
+        startRam();
+        writableRam();
+        int[] skip = image.skip;
         
         int count = 0;
         pCount = 0;
         System.out.println("Initializing ram with load instructions in rom.");
         //while pCount in range
-        while (pCount<256) {
-            instruction curinst = rom.get(pCount);
-            if (curinst==null)
-                pCount++;
-            
-            else if (!curinst.isLoad())
+        while ((pCount = skip[pCount])<memSize) {
+            if (!isLoad(image.rom[pCount]))
                 break;
             
-            else {
-                count++;
-                curinst.execute();
-            }
+            count++;
+            pCount = step(pCount);
         }
         System.out.println("Done. "+count+" load instructions read.");
     }
@@ -402,15 +1236,47 @@ public class virtualOISC {
      * Display instruction in given ROM address
      */
     private void romget(int addr) {
+        if (!validAddr(addr))
+            return;
         System.out.printf("Addr: %3d",addr);
-        System.out.println(" "+rom.get(addr).toString());
+        if (image.rom[addr]==0)
+            System.out.println(" empty");
+        else
+            System.out.println(" "+disassemble(image.rom[addr]));
     }
     
     /**
      * Display contents of given RAM address
      */
     private void ramget(int addr) {
-        System.out.printf("Addr: %3d Value: %3d\n",addr,ram.get(addr));
+        if (!validAddr(addr))
+            return;
+        if (ram[addr]==uninit)
+            System.out.printf("Addr: %3d Value: uninitialized\n",addr);
+        else
+            System.out.printf("Addr: %3d Value: %3d\n",addr,ram[addr]);
+    }
+    
+    /**Parses a budget or timeout, complains and returns -1 if invalid*/
+    private static long parseLimit(String limit) {
+        try {
+            long ret = Long.parseLong(limit.trim());
+            if (ret>=0)
+                return ret;
+        }
+        catch (NumberFormatException e) {}
+        System.out.println("Invalid limit, use 0 or a positive integer.");
+        return -1;
+    }
+    
+    /**Checks that given address is in range, complains if not*/
+    private static boolean validAddr(int addr) {
+        if ((addr<0)||(addr>=memSize)) {
+            System.out.println("Invalid address, must be between 0 and "+
+                    (memSize-1)+".");
+            return false;
+        }
+        return true;
     }
     
     /**Converts given unisigned binary number to integer*/